@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./bench.sh > before.tsv            every operation, latency and throughput
+#          ./bench.sh -ops AddBooking,ListBookingInfoForUser -threads 16 -seconds 30
+# Keep -seed and the loaded data set the same for runs that are compared.
+java -cp lib/*:bin/ Benchmark $dbname $PGPORT $(logname) "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./export.sh -bookings 2019-01-01 2019-12-31 -out bookings.csv
+#          ./export.sh -format jsonl -out "|gzip > bookings.jsonl.gz" -bookings 2019-01-01 2019-12-31
+#          ./export.sh -format table -query "SELECT * FROM movies LIMIT 20"
+java -cp lib/*:bin/ Export $dbname $PGPORT $(logname) "$@"
@@ -0,0 +1,9 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+
+cd $root/java
+
+# Writes a synthetic data set in the format of ../data, by default to ../data/generated.
+# Example: ./generate.sh -scale 10 && ./load.sh -data ../data/generated -deferConstraints
+java -cp lib/*:bin/ DataGenerator "$@"
@@ -0,0 +1,13 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Runs ../sql/create.sql, streaming the ../data CSVs from this machine with COPY FROM STDIN
+# instead of reading them on the database server. Replaces the copy and psql steps of
+# ../postgresql/createdb.sh (the database itself must already exist).
+# Example: ./load.sh                      load tables in parallel in foreign key order
+#          ./load.sh -deferConstraints    load all tables at once, add keys afterwards
+java -cp lib/*:bin/ BulkLoader $dbname $PGPORT $(logname) "$@"
@@ -0,0 +1,13 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Requires a database converted with ../sql/partition.sql
+# Example: ./partitions.sh -list                              partitions and their row estimates
+#          ./partitions.sh -ensure 6                          create this month and the next 5
+#          ./partitions.sh -detach 2019-01                    move January 2019 to the archive schema
+#          ./partitions.sh -archive 2019-01 -dir /tmp/archive export it to CSV files and drop it
+java -cp lib/*:bin/ PartitionManager $dbname $PGPORT $(logname) "$@"
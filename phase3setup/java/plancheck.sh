@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./plancheck.sh            check plans against sql/plan_baseline.properties
+#          ./plancheck.sh -record    record the current plan costs as the baseline
+java -cp lib/*:bin/ PlanCheck $dbname $PGPORT $(logname) "$@"
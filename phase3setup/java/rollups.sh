@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./rollups.sh -fold          fold the pending changes into the rollups now
+#          ./rollups.sh -backfill 8    rebuild the rollups from the live tables with 8 workers
+java -cp lib/*:bin/ Rollups $dbname $PGPORT $(logname) "$@"
@@ -6,4 +6,6 @@ dbname=$(logname)_db
 cd $root/java
 
 # Example: ./run.sh
-java -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname)
+#          ./run.sh -batch ops.txt > results.jsonl     run a script of operations, see BatchRunner
+#          ./run.sh -batch - < ops.txt
+java -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname) "$@"
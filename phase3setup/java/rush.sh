@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Simulates an on-sale rush and audits the result for double-booked seats.
+# Example: ./rush.sh -customers 5000 -seconds 120 -hotShows 3
+#          java -Dticketmaster.pool.max=32 ... for a bigger connection pool
+java -cp lib/*:bin/ LoadDriver $dbname $PGPORT $(logname) "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+
+cd $root/java
+
+# Runs a BatchRunner script over the shard databases listed in SHARDS, in
+# shard order, each made with DBNAME=... SHARD=n CITIES='{...}' ../postgresql/createdb.sh
+# Example: SHARDS=east_db,west_db ./shards.sh demo_batch.txt
+#          SHARDS=east_db,west_db@5433 ./shards.sh - < script.txt
+java -cp lib/*:bin/ ShardRouter $SHARDS $PGPORT $(logname) "$@"
@@ -0,0 +1,567 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Runs Ticketmaster operations from a script instead of the menu, on one
+ * JVM and connection pool, and prints one JSON object per operation.
+ *
+ * Each line of the script is an operation name followed by key=value
+ * arguments; values containing spaces are double-quoted, seat lists are
+ * comma-separated. Blank lines and lines starting with # are skipped:
+ *
+ *   AddUser email=ann@example.com lname=Lee fname=Ann pwd=secret
+ *   AddBooking email=ann@example.com sid=83 seats=10,11 status=Paid
+ *   AddBooking email=ann@example.com sid=83 count=4 stype=Standard
+ *   ListTheatersPlayingShow title="The Lion King"
+ *
+ * Operations are run BATCH_SIZE at a time in one transaction, so a batch
+ * costs one commit instead of one per operation, and their results are
+ * printed once it has committed. If anything in a batch fails the batch is
+ * rolled back and its operations are run again one by one, so every line
+ * gets its own result. CancelPendingBookings, ClearCancelledBookings and
+ * RemoveShowsOnDate commit batch by batch themselves (see MaintenanceJob)
+ * and run on their own between batches. The monthly partitions new shows
+ * go into are created before the transaction, since creating one locks
+ * its table (see PartitionManager).
+ *
+ * Results look like
+ *
+ *   {"line":2,"op":"AddBooking","ok":true,"ms":1.9,"bid":12050}
+ *   {"line":3,"op":"ListTheatersPlayingShow","ok":true,"ms":0.8,"count":2,"rows":[["AMC 1","10:00:00"],...]}
+ *   {"line":4,"op":"AddBooking","ok":false,"ms":0.1,"error":"Seats not available"}
+ *
+ */
+
+public class BatchRunner{
+	// operations per transaction
+	static final int BATCH_SIZE = Integer.getInteger("ticketmaster.batch.size", 50);
+
+	/**
+	 * One operation of the script.
+	 */
+	static class Command{
+		final int line;
+		final String op;
+		final Map<String, String> args;
+
+		Command(int line, String op, Map<String, String> args){
+			this.line = line;
+			this.op = op;
+			this.args = args;
+		}
+
+		String get(String name){
+			String value = this.args.get(name);
+			if (value == null){
+				throw new IllegalArgumentException("Missing argument " + name);
+			}//end if
+			return value;
+		}
+
+		String get(String name, String otherwise){
+			String value = this.args.get(name);
+			return value == null ? otherwise : value;
+		}
+
+		long getLong(String name){
+			return Long.parseLong(get(name));
+		}
+
+		long getLong(String name, long otherwise){
+			String value = this.args.get(name);
+			return value == null ? otherwise : Long.parseLong(value);
+		}
+
+		int getInt(String name, int otherwise){
+			String value = this.args.get(name);
+			return value == null ? otherwise : Integer.parseInt(value);
+		}
+
+		int[] getInts(String name){
+			String[] parts = get(name).split(",");
+			int[] values = new int[parts.length];
+			for (int i = 0; i < parts.length; ++i){
+				values[i] = Integer.parseInt(parts[i].trim());
+			}//end for
+			return values;
+		}
+
+		/**
+		 * @return true for the operations that commit batch by batch themselves
+		 */
+		boolean isBulk(){
+			return this.op.equals("CancelPendingBookings") || this.op.equals("ClearCancelledBookings")
+				|| this.op.equals("RemoveShowsOnDate");
+		}
+	}
+
+	/**
+	 * The result line of one operation.
+	 */
+	static class Result{
+		final String json;
+		final boolean ok;
+
+		Result(String json, boolean ok){
+			this.json = json;
+			this.ok = ok;
+		}
+	}
+
+	/**
+	 * Collects rows as a JSON array.
+	 */
+	static class JsonRows implements RowHandler{
+		final StringBuilder json = new StringBuilder("[");
+
+		public void handleRow(Row row) throws SQLException {
+			if (row.getRowNumber() > 1){
+				this.json.append(',');
+			}//end if
+			this.json.append('[');
+			for (int i = 1; i <= row.getColumnCount(); ++i){
+				if (i > 1){
+					this.json.append(',');
+				}//end if
+				ResultWriter.appendJsonString(this.json, row.getString(i));
+			}//end for
+			this.json.append(']');
+		}
+
+		String toJson(){
+			return this.json.toString() + "]";
+		}
+	}
+
+	private final Ticketmaster _esql;
+	// set when the operations are run over shards instead of one database
+	private final ShardRouter _shards;
+	private final PrintStream _out;
+	private final int _batchSize;
+	private int _failures = 0;
+
+	public BatchRunner(Ticketmaster esql, PrintStream out, int batchSize){
+		this._esql = esql;
+		this._shards = null;
+		this._out = out;
+		this._batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Runs the operations over shards (see ShardRouter). A transaction
+	 * cannot span shards, so every operation runs on its own, committed by
+	 * the shard operations themselves.
+	 */
+	public BatchRunner(ShardRouter shards, PrintStream out){
+		this._esql = null;
+		this._shards = shards;
+		this._out = out;
+		this._batchSize = 1;
+	}
+
+	/**
+	 * Runs every operation of a script.
+	 *
+	 * @param script the commands, one per line
+	 * @return the number of operations that failed or were rejected
+	 * @throws java.io.IOException when the script cannot be read
+	 */
+	public int run(BufferedReader script) throws IOException {
+		List<Command> batch = new ArrayList<Command>();
+		String text;
+		int line = 0;
+		while ((text = script.readLine()) != null){
+			++line;
+			text = text.trim();
+			if (text.isEmpty() || text.startsWith("#")){
+				continue;
+			}//end if
+			Command command;
+			try{
+				command = parse(line, text);
+			}catch (IllegalArgumentException e){
+				print(failure(line, null, e));
+				continue;
+			}//end try
+			if (command.isBulk()){
+				runBatch(batch);
+				batch.clear();
+				print(execute(command));
+			}else{
+				batch.add(command);
+				if (batch.size() >= this._batchSize){
+					runBatch(batch);
+					batch.clear();
+				}//end if
+			}//end if
+		}//end while
+		runBatch(batch);
+		this._out.flush();
+		return this._failures;
+	}
+
+	/**
+	 * Splits a line into the operation name and its key=value arguments.
+	 */
+	static Command parse(int line, String text){
+		Map<String, String> args = new HashMap<String, String>();
+		int i = text.indexOf(' ');
+		String op = i < 0 ? text : text.substring(0, i);
+		i = i < 0 ? text.length() : i;
+		while (i < text.length()){
+			while (i < text.length() && text.charAt(i) == ' '){
+				++i;
+			}//end while
+			if (i >= text.length()){
+				break;
+			}//end if
+			int eq = text.indexOf('=', i);
+			if (eq < 0){
+				throw new IllegalArgumentException("Expected key=value at column " + (i + 1));
+			}//end if
+			String key = text.substring(i, eq);
+			StringBuilder value = new StringBuilder();
+			i = eq + 1;
+			if (i < text.length() && text.charAt(i) == '"'){
+				for (++i; i < text.length() && text.charAt(i) != '"'; ++i){
+					if (text.charAt(i) == '\\' && i + 1 < text.length()){
+						++i;
+					}//end if
+					value.append(text.charAt(i));
+				}//end for
+				if (i >= text.length()){
+					throw new IllegalArgumentException("Unterminated quote in " + key);
+				}//end if
+				++i;
+			}else{
+				for (; i < text.length() && text.charAt(i) != ' '; ++i){
+					value.append(text.charAt(i));
+				}//end for
+			}//end if
+			args.put(key, value.toString());
+		}//end while
+		return new Command(line, op, args);
+	}
+
+	/**
+	 * Runs a batch in one transaction and prints its results once committed;
+	 * if it fails, runs its operations again one transaction each.
+	 */
+	private void runBatch(final List<Command> batch){
+		if (batch.isEmpty()){
+			return;
+		}//end if
+		for (Command command : batch){
+			prepare(command);
+		}//end for
+		if (batch.size() > 1){
+			final List<Result> results = new ArrayList<Result>();
+			try{
+				this._esql.executeInTransaction(() -> {
+					for (Command command : batch){
+						results.add(executeOrThrow(command));
+					}//end for
+					return null;
+				});
+				for (Result result : results){
+					print(result);
+				}//end for
+				return;
+			}catch (Exception e){
+				// the seat inventory may have seen seats sold in the rolled-back transaction
+				this._esql.seats.invalidateAll();
+			}//end try
+		}//end if
+		for (Command command : batch){
+			print(execute(command));
+		}//end for
+	}
+
+	/**
+	 * Runs one operation in its own transaction, or without one for the
+	 * operations that commit batch by batch themselves.
+	 *
+	 * @return its result, success or failure
+	 */
+	private Result execute(final Command command){
+		try{
+			if (command.isBulk() || this._shards != null){
+				return executeOrThrow(command);
+			}//end if
+			prepare(command);
+			return this._esql.executeInTransaction(() -> executeOrThrow(command));
+		}catch (SQLException | RuntimeException e){
+			return failure(command.line, command.op, e);
+		}//end try
+	}
+
+	/**
+	 * Does what an operation needs done outside its transaction: creates
+	 * the partition of a new show's month, which would otherwise hold a
+	 * lock on Shows until the transaction ends.
+	 */
+	private void prepare(Command command){
+		if (this._shards != null || !command.op.equals("AddMovieShowingToTheater")){
+			return;
+		}//end if
+		try{
+			this._esql.partitions.ensureMonth(command.args.get("sdate"));
+		}catch (SQLException e){
+			// the operation tries again and reports the error
+		}//end try
+	}
+
+	private void print(Result result){
+		if (!result.ok){
+			++this._failures;
+		}//end if
+		this._out.println(result.json);
+	}
+
+	/**
+	 * @return the result line of an operation that failed with an exception
+	 */
+	private static Result failure(int line, String op, Exception e){
+		StringBuilder json = new StringBuilder();
+		json.append("{\"line\":").append(line).append(",\"op\":");
+		ResultWriter.appendJsonString(json, op);
+		json.append(",\"ok\":false,\"error\":");
+		ResultWriter.appendJsonString(json, String.valueOf(e.getMessage()));
+		if (e instanceof SQLException && ((SQLException) e).getSQLState() != null){
+			json.append(",\"sqlstate\":");
+			ResultWriter.appendJsonString(json, ((SQLException) e).getSQLState());
+		}//end if
+		return new Result(json.append('}').toString(), false);
+	}
+
+	/**
+	 * Runs one operation, inside whatever transaction is open.
+	 *
+	 * @return its result; rejected operations give "ok":false
+	 * @throws java.sql.SQLException when the operation fails
+	 * @throws IllegalArgumentException when an argument is missing or malformed
+	 */
+	private Result executeOrThrow(Command c) throws SQLException {
+		if (this._shards != null){
+			return executeSharded(c);
+		}//end if
+		Ticketmaster esql = this._esql;
+		StringBuilder json = new StringBuilder();
+		String error = null;
+		JsonRows rows = null;
+		long count = -1;
+		esql.getMetrics().beginOperation(c.op);
+		long started = System.nanoTime();
+		boolean failed = true;
+		try{
+			switch (c.op){
+				case "AddUser":
+					Ticketmaster.AddUser(esql, c.get("email"), c.get("lname"), c.get("fname"), c.get("phone", null), c.get("pwd"));
+					break;
+				case "AddBooking":{
+					// count= instead of seats= books the best block of adjacent seats
+					long bid = c.args.containsKey("count")
+						? Ticketmaster.AddBestAvailableBooking(esql, c.get("email"), c.getLong("sid"), c.getInt("count", 1),
+							c.get("stype", null), c.get("status", "Pending"))
+						: Ticketmaster.AddBooking(esql, c.get("email"), c.getLong("sid"), c.getInts("seats"),
+							c.get("status", "Pending"));
+					if (bid < 0){
+						error = "Seats not available";
+					}else{
+						json.append(",\"bid\":").append(bid);
+					}//end if
+					break;
+				}
+				case "AddMovieShowingToTheater":{
+					long[] ids = Ticketmaster.AddMovieShowingToTheater(esql, c.get("title"), c.get("rdate"),
+						c.get("country"), c.get("description", ""), Integer.parseInt(c.get("duration")),
+						c.get("lang"), c.get("genre"), c.get("sdate"), c.get("sttime"), c.get("edtime"), c.getLong("tid"));
+					json.append(",\"mvid\":").append(ids[0]).append(",\"sid\":").append(ids[1]);
+					break;
+				}
+				case "CancelPendingBookings":
+					count = new MaintenanceJob(esql, c.op, Ticketmaster.CANCEL_PENDING_SQL).runBatches();
+					break;
+				case "ChangeSeatsForBooking":
+					error = Ticketmaster.ChangeSeatsForBooking(esql, c.getLong("bid"), c.getInts("from"), c.getInts("to"));
+					break;
+				case "RemovePayment":
+					count = Ticketmaster.RemovePayment(esql, c.getLong("bid"));
+					break;
+				case "ClearCancelledBookings":
+					count = new MaintenanceJob(esql, c.op, Ticketmaster.CLEAR_CANCELLED_SQL).runBatches();
+					break;
+				case "RemoveShowsOnDate":
+					count = Ticketmaster.RemoveShowsOnDate(esql, c.get("date"), c.get("theater"));
+					break;
+				case "ListTheatersPlayingShow":
+					rows = new JsonRows();
+					count = Ticketmaster.ListTheatersPlayingShow(esql, c.get("title"), rows);
+					break;
+				case "ListShowsStartingOnTimeAndDate":
+					rows = new JsonRows();
+					count = Ticketmaster.ListShowsStartingOnTimeAndDate(esql, c.get("date"), c.get("time"), rows);
+					break;
+				case "ListMovieTitlesContainingLoveReleasedAfter2010":
+				case "SearchMovieTitles":
+					rows = new JsonRows();
+					count = Ticketmaster.SearchMovieTitles(esql, c.get("terms", "Love"), c.get("after", "2010-01-01"),
+						c.get("before", null), c.getInt("page", 0), c.getInt("limit", Ticketmaster.PAGE_SIZE), rows);
+					break;
+				case "ListUsersWithPendingBooking":
+					rows = new JsonRows();
+					count = Ticketmaster.ListUsersWithPendingBooking(esql, c.get("afterEmail", ""),
+						c.getInt("limit", Ticketmaster.PAGE_SIZE), rows);
+					break;
+				case "ListMovieAndShowInfoAtCinemaInDateRange":
+					rows = new JsonRows();
+					String cid = c.get("cid", null);
+					count = Ticketmaster.ListMovieAndShowInfoAtCinemaInDateRange(esql, cid == null ? null : Long.valueOf(cid),
+						c.get("title"), c.get("from"), c.get("to"), rows);
+					break;
+				case "ListBookingInfoForUser":
+					rows = new JsonRows();
+					count = Ticketmaster.ListBookingInfoForUser(esql, c.get("email"), c.getLong("afterBid", Long.MIN_VALUE),
+						c.getLong("afterSsid", Long.MIN_VALUE), c.getInt("limit", Ticketmaster.PAGE_SIZE), rows);
+					break;
+				case "RevenueReport":
+				case "OccupancyReport":
+					rows = new JsonRows();
+					String reportCid = c.get("cid", null);
+					Long reportCinema = reportCid == null ? null : Long.valueOf(reportCid);
+					count = c.op.equals("RevenueReport")
+						? Ticketmaster.RevenueReport(esql, reportCinema, c.get("from"), c.get("to"), rows)
+						: Ticketmaster.OccupancyReport(esql, reportCinema, c.get("from"), c.get("to"), rows);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown operation " + c.op);
+			}
+			failed = false;
+		}finally{
+			esql.getMetrics().endOperation(failed);
+		}
+		return result(c, started, error, json, count, rows);
+	}
+
+	/**
+	 * Runs one operation through the shard router.
+	 */
+	private Result executeSharded(Command c) throws SQLException {
+		ShardRouter shards = this._shards;
+		StringBuilder json = new StringBuilder();
+		String error = null;
+		JsonRows rows = null;
+		long count = -1;
+		long started = System.nanoTime();
+		switch (c.op){
+			case "AddUser":
+				shards.AddUser(c.get("email"), c.get("lname"), c.get("fname"), c.get("phone", null), c.get("pwd"));
+				break;
+			case "AddBooking":{
+				long bid = c.args.containsKey("count")
+					? shards.AddBestAvailableBooking(c.get("email"), c.getLong("sid"), c.getInt("count", 1), c.get("stype", null),
+						c.get("status", "Pending"))
+					: shards.AddBooking(c.get("email"), c.getLong("sid"), c.getInts("seats"), c.get("status", "Pending"));
+				if (bid < 0){
+					error = "Seats not available";
+				}else{
+					json.append(",\"bid\":").append(bid);
+				}//end if
+				break;
+			}
+			case "AddMovieShowingToTheater":{
+				long[] ids = shards.AddMovieShowingToTheater(c.get("title"), c.get("rdate"), c.get("country"),
+					c.get("description", ""), Integer.parseInt(c.get("duration")), c.get("lang"), c.get("genre"),
+					c.get("sdate"), c.get("sttime"), c.get("edtime"), c.getLong("tid"));
+				json.append(",\"mvid\":").append(ids[0]).append(",\"sid\":").append(ids[1]);
+				break;
+			}
+			case "CancelPendingBookings":
+				count = shards.CancelPendingBookings();
+				break;
+			case "ChangeSeatsForBooking":
+				error = shards.ChangeSeatsForBooking(c.getLong("bid"), c.getInts("from"), c.getInts("to"));
+				break;
+			case "RemovePayment":
+				count = shards.RemovePayment(c.getLong("bid"));
+				break;
+			case "ClearCancelledBookings":
+				count = shards.ClearCancelledBookings();
+				break;
+			case "RemoveShowsOnDate":
+				count = shards.RemoveShowsOnDate(c.get("date"), c.get("theater"));
+				break;
+			case "ListTheatersPlayingShow":
+				rows = new JsonRows();
+				count = shards.ListTheatersPlayingShow(c.get("title"), rows);
+				break;
+			case "ListShowsStartingOnTimeAndDate":
+				rows = new JsonRows();
+				count = shards.ListShowsStartingOnTimeAndDate(c.get("date"), c.get("time"), rows);
+				break;
+			case "ListMovieTitlesContainingLoveReleasedAfter2010":
+			case "SearchMovieTitles":
+				rows = new JsonRows();
+				count = shards.SearchMovieTitles(c.get("terms", "Love"), c.get("after", "2010-01-01"), c.get("before", null),
+					c.getInt("page", 0), c.getInt("limit", Ticketmaster.PAGE_SIZE), rows);
+				break;
+			case "ListUsersWithPendingBooking":
+				rows = new JsonRows();
+				count = shards.ListUsersWithPendingBooking(c.get("afterEmail", ""), c.getInt("limit", Ticketmaster.PAGE_SIZE), rows);
+				break;
+			case "ListMovieAndShowInfoAtCinemaInDateRange":
+				rows = new JsonRows();
+				String cid = c.get("cid", null);
+				count = shards.ListMovieAndShowInfoAtCinemaInDateRange(cid == null ? null : Long.valueOf(cid),
+					c.get("title"), c.get("from"), c.get("to"), rows);
+				break;
+			case "ListBookingInfoForUser":
+				rows = new JsonRows();
+				count = shards.ListBookingInfoForUser(c.get("email"), c.getLong("afterBid", Long.MIN_VALUE),
+					c.getLong("afterSsid", Long.MIN_VALUE), c.getInt("limit", Ticketmaster.PAGE_SIZE), rows);
+				break;
+			case "RevenueReport":
+			case "OccupancyReport":
+				rows = new JsonRows();
+				String reportCid = c.get("cid", null);
+				Long reportCinema = reportCid == null ? null : Long.valueOf(reportCid);
+				count = c.op.equals("RevenueReport")
+					? shards.RevenueReport(reportCinema, c.get("from"), c.get("to"), rows)
+					: shards.OccupancyReport(reportCinema, c.get("from"), c.get("to"), rows);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown operation " + c.op);
+		}
+		return result(c, started, error, json, count, rows);
+	}
+
+	/**
+	 * @return the result line of an operation that ran
+	 */
+	private static Result result(Command c, long started, String error, StringBuilder json, long count, JsonRows rows){
+		StringBuilder line = new StringBuilder();
+		line.append("{\"line\":").append(c.line).append(",\"op\":");
+		ResultWriter.appendJsonString(line, c.op);
+		line.append(",\"ok\":").append(error == null);
+		line.append(String.format(",\"ms\":%.3f", (System.nanoTime() - started) / 1e6));
+		if (error != null){
+			line.append(",\"error\":");
+			ResultWriter.appendJsonString(line, error);
+		}//end if
+		line.append(json);
+		if (count >= 0){
+			line.append(",\"count\":").append(count);
+		}//end if
+		if (rows != null){
+			line.append(",\"rows\":").append(rows.toJson());
+		}//end if
+		return new Result(line.append('}').toString(), error == null);
+	}
+}
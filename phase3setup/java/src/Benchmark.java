@@ -0,0 +1,479 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Benchmarks the Ticketmaster menu operations against a running, loaded
+ * database (see generate.sh and load.sh for data at a chosen scale).
+ *
+ * Each operation is called through its non-prompting overload, with inputs
+ * sampled from the database with -seed, so two runs against the same data
+ * call the same operations with the same inputs. Every operation is
+ * measured twice:
+ *
+ *  - latency: -warmup untimed calls, then -iterations timed calls on one
+ *    thread, reported as mean and exact percentiles;
+ *  - throughput: -threads threads calling it for -seconds seconds after a
+ *    warm-up of the same length, reported as calls per second.
+ *
+ * Inputs are picked outside the timed section. Operations that change data
+ * create what they change first (ChangeSeatsForBooking books the seat it
+ * moves, RemoveShowsOnDate removes a show it added on 2099-12-31), so the
+ * loaded data set is left as it was apart from the added rows.
+ * CancelPendingBookings and ClearCancelledBookings change every booking and
+ * only run when named with -ops.
+ *
+ * Results are printed as tab-separated lines, one per operation and mode,
+ * so runs before and after a change can be compared with diff or a
+ * spreadsheet.
+ *
+ * Usage: java Benchmark <dbname> <port> <user> [-ops a,b,...] [-warmup n]
+ *        [-iterations n] [-threads n] [-seconds n] [-seed n] [-samples n]
+ *
+ */
+
+public class Benchmark{
+	// date used for the shows RemoveShowsOnDate adds and then removes
+	static final String SCRATCH_DATE = "2099-12-31";
+
+	/**
+	 * One benchmarked operation. prepare() picks the inputs of one call and
+	 * is not timed; run() makes the call.
+	 */
+	static abstract class Operation{
+		final String name;
+		final boolean bulk;		//	changes every row; only run when asked for
+
+		Operation(String name){
+			this(name, false);
+		}
+
+		Operation(String name, boolean bulk){
+			this.name = name;
+			this.bulk = bulk;
+		}
+
+		Object prepare(SplittableRandom r) throws SQLException {
+			return null;
+		}
+
+		/**
+		 * @return false when the operation rejected its input (e.g. the seat
+		 *         was taken in the meantime)
+		 */
+		abstract boolean run(Object input) throws SQLException;
+	}
+
+	/**
+	 * Outcome counts of a measurement.
+	 */
+	static class Counts{
+		final LongAdder calls = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder errors = new LongAdder();
+	}
+
+	private final Ticketmaster _esql;
+	private final long _seed;
+	private final AtomicLong _unique = new AtomicLong();
+
+	// inputs sampled from the database
+	private List<List<String>> _shows;		//	sid, sdate, sttime of shows with seats
+	private List<List<String>> _titles;
+	private List<List<String>> _emails;
+	private List<List<String>> _theaters;	//	tid, tname
+
+	public Benchmark(Ticketmaster esql, long seed){
+		this._esql = esql;
+		this._seed = seed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + Benchmark.class.getName()
+				+ " <dbname> <port> <user> [-ops a,b,...] [-warmup n] [-iterations n] [-threads n]"
+				+ " [-seconds n] [-seed n] [-samples n]");
+			return;
+		}//end if
+		String ops = null;
+		int warmup = 200;
+		int iterations = 1000;
+		int threads = Ticketmaster.POOL_MAX;
+		int seconds = 10;
+		long seed = 42;
+		int samples = 1000;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("-ops")){
+				ops = args[++i];
+			}else if (args[i].equals("-warmup")){
+				warmup = Integer.parseInt(args[++i]);
+			}else if (args[i].equals("-iterations")){
+				iterations = Integer.parseInt(args[++i]);
+			}else if (args[i].equals("-threads")){
+				threads = Integer.parseInt(args[++i]);
+			}else if (args[i].equals("-seconds")){
+				seconds = Integer.parseInt(args[++i]);
+			}else if (args[i].equals("-seed")){
+				seed = Long.parseLong(args[++i]);
+			}else if (args[i].equals("-samples")){
+				samples = Integer.parseInt(args[++i]);
+			}else{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}//end if
+		}//end for
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			Benchmark bench = new Benchmark(esql, seed);
+			bench.printEnvironment(threads);
+			bench.sample(samples);
+			Map<String, Operation> all = bench.operations();
+			List<Operation> selected = new ArrayList<Operation>();
+			if (ops == null){
+				for (Operation op : all.values()){
+					if (!op.bulk){
+						selected.add(op);
+					}//end if
+				}//end for
+			}else{
+				for (String name : ops.split(",")){
+					Operation op = all.get(name.trim());
+					if (op == null){
+						throw new IllegalArgumentException("Unknown operation " + name + "; one of " + all.keySet());
+					}//end if
+					selected.add(op);
+				}//end for
+			}//end if
+
+			System.out.println("operation\tmode\tthreads\tcalls\tops/s\tmean(ms)\tp50(ms)\tp90(ms)\tp99(ms)\tmax(ms)\trejected\terrors");
+			for (Operation op : selected){
+				bench.measureLatency(op, warmup, iterations);
+				bench.measureThroughput(op, threads, seconds);
+			}//end for
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Prints what the numbers depend on: JVM, settings and data size.
+	 */
+	void printEnvironment(int threads) throws SQLException {
+		System.out.println("# java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors()
+			+ " cpus, pool " + Ticketmaster.POOL_MIN + ".." + Ticketmaster.POOL_MAX + ", threads " + threads
+			+ ", seed " + this._seed);
+		List<List<String>> server = this._esql.executeQueryAndReturnResult("SELECT version()");
+		System.out.println("# " + server.get(0).get(0));
+		List<List<String>> sizes = this._esql.executeQueryAndReturnResult(
+			"SELECT relname, reltuples::bigint FROM pg_class WHERE relkind = 'r' AND relname IN "
+			+ "('cities','cinemas','theaters','cinemaseats','movies','users','shows','bookings','payments','showseats','plays') "
+			+ "ORDER BY relname");
+		StringBuilder line = new StringBuilder("# rows:");
+		for (List<String> size : sizes){
+			line.append(' ').append(size.get(0)).append('=').append(size.get(1));
+		}//end for
+		System.out.println(line);
+	}
+
+	/**
+	 * Samples the inputs the operations are called with. Rows are ordered by
+	 * a hash of their key and the seed, so the sample is spread over the
+	 * table and the same on every run.
+	 */
+	void sample(int samples) throws SQLException {
+		String seed = String.valueOf(this._seed);
+		this._shows = this._esql.executeQueryAndReturnResult(
+			"SELECT s.sid, s.sdate, s.sttime FROM shows s "
+			+ "WHERE EXISTS (SELECT 1 FROM showseats ss WHERE ss.sid = s.sid) "
+			+ "ORDER BY md5(s.sid::text || ?::text) LIMIT ?", seed, samples);
+		this._titles = this._esql.executeQueryAndReturnResult(
+			"SELECT m.title FROM movies m WHERE EXISTS (SELECT 1 FROM shows s WHERE s.mvid = m.mvid) "
+			+ "ORDER BY md5(m.mvid::text || ?::text) LIMIT ?", seed, samples);
+		this._emails = this._esql.executeQueryAndReturnResult(
+			"SELECT email FROM users ORDER BY md5(email || ?::text) LIMIT ?", seed, samples);
+		this._theaters = this._esql.executeQueryAndReturnResult(
+			"SELECT tid, tname FROM theaters ORDER BY md5(tid::text || ?::text) LIMIT ?", seed, samples);
+		if (this._shows.isEmpty() || this._titles.isEmpty() || this._emails.isEmpty() || this._theaters.isEmpty()){
+			throw new SQLException("Nothing to sample; load a data set first");
+		}//end if
+	}
+
+	private static List<String> pick(SplittableRandom r, List<List<String>> rows){
+		return rows.get(r.nextInt(rows.size()));
+	}
+
+	private String email(SplittableRandom r){
+		return pick(r, this._emails).get(0);
+	}
+
+	/**
+	 * Books one free seat of a sampled show, outside the timed section.
+	 *
+	 * @return {bid, booked seat, another free seat} or null when the show is full
+	 */
+	private long[] bookOneSeat(SplittableRandom r) throws SQLException {
+		long sid = Long.parseLong(pick(r, this._shows).get(0));
+		int[] free = this._esql.seats.findFree(sid, 2, r.nextInt(1 << 16));
+		if (free.length < 2){
+			return null;
+		}//end if
+		long bid = Ticketmaster.AddBooking(this._esql, email(r), sid, new int[]{free[0]}, "Paid");
+		return bid < 0 ? null : new long[]{bid, free[0], free[1]};
+	}
+
+	/**
+	 * @return every operation, by name, in menu order
+	 */
+	Map<String, Operation> operations(){
+		final Ticketmaster esql = this._esql;
+		Map<String, Operation> ops = new LinkedHashMap<String, Operation>();
+		add(ops, new Operation("AddUser"){
+			Object prepare(SplittableRandom r){
+				return "bench" + System.nanoTime() + "." + _unique.incrementAndGet() + "@example.com";
+			}
+			boolean run(Object email) throws SQLException {
+				Ticketmaster.AddUser(esql, (String) email, "Bench", "Mark", null, "x");
+				return true;
+			}
+		});
+		add(ops, new Operation("AddBooking"){
+			Object prepare(SplittableRandom r) throws SQLException {
+				long sid = Long.parseLong(pick(r, _shows).get(0));
+				int[] free = esql.seats.findFree(sid, 1, r.nextInt(1 << 16));
+				return new Object[]{email(r), sid, free};
+			}
+			boolean run(Object input) throws SQLException {
+				Object[] in = (Object[]) input;
+				int[] free = (int[]) in[2];
+				return free.length > 0 && Ticketmaster.AddBooking(esql, (String) in[0], (Long) in[1], free, "Paid") >= 0;
+			}
+		});
+		add(ops, new Operation("AddMovieShowingToTheater"){
+			Object prepare(SplittableRandom r){
+				return Long.parseLong(pick(r, _theaters).get(0));
+			}
+			boolean run(Object tid) throws SQLException {
+				Ticketmaster.AddMovieShowingToTheater(esql, "Benchmark Movie", "2024-01-01", "United States",
+					"Benchmark", 5400, "en", "Drama", "2024-06-01", "19:00", "20:30", (Long) tid);
+				return true;
+			}
+		});
+		add(ops, new Operation("CancelPendingBookings", true){
+			boolean run(Object input) throws SQLException {
+				new MaintenanceJob(esql, name, Ticketmaster.CANCEL_PENDING_SQL).runBatches();
+				return true;
+			}
+		});
+		add(ops, new Operation("ChangeSeatsForBooking"){
+			Object prepare(SplittableRandom r) throws SQLException {
+				return bookOneSeat(r);
+			}
+			boolean run(Object input) throws SQLException {
+				long[] b = (long[]) input;
+				return b != null && Ticketmaster.ChangeSeatsForBooking(esql, b[0], new int[]{(int) b[1]}, new int[]{(int) b[2]}) == null;
+			}
+		});
+		add(ops, new Operation("RemovePayment"){
+			Object prepare(SplittableRandom r) throws SQLException {
+				return bookOneSeat(r);
+			}
+			boolean run(Object input) throws SQLException {
+				if (input == null){
+					return false;
+				}//end if
+				Ticketmaster.RemovePayment(esql, ((long[]) input)[0]);
+				return true;
+			}
+		});
+		add(ops, new Operation("ClearCancelledBookings", true){
+			boolean run(Object input) throws SQLException {
+				new MaintenanceJob(esql, name, Ticketmaster.CLEAR_CANCELLED_SQL).runBatches();
+				return true;
+			}
+		});
+		add(ops, new Operation("RemoveShowsOnDate"){
+			Object prepare(SplittableRandom r) throws SQLException {
+				List<String> theater = pick(r, _theaters);
+				Ticketmaster.AddMovieShowingToTheater(esql, "Benchmark Movie", "2024-01-01", "United States",
+					"Benchmark", 5400, "en", "Drama", SCRATCH_DATE, "19:00", "20:30", Long.parseLong(theater.get(0)));
+				return theater.get(1);
+			}
+			boolean run(Object tname) throws SQLException {
+				return Ticketmaster.RemoveShowsOnDate(esql, SCRATCH_DATE, (String) tname) > 0;
+			}
+		});
+		add(ops, new Operation("ListTheatersPlayingShow"){
+			Object prepare(SplittableRandom r){
+				return pick(r, _titles).get(0);
+			}
+			boolean run(Object title) throws SQLException {
+				Ticketmaster.ListTheatersPlayingShow(esql, (String) title, Ticketmaster.DISCARD_ROWS);
+				return true;
+			}
+		});
+		add(ops, new Operation("ListShowsStartingOnTimeAndDate"){
+			Object prepare(SplittableRandom r){
+				List<String> show = pick(r, _shows);
+				return new String[]{show.get(1), show.get(2)};
+			}
+			boolean run(Object input) throws SQLException {
+				String[] in = (String[]) input;
+				Ticketmaster.ListShowsStartingOnTimeAndDate(esql, in[0], in[1], Ticketmaster.DISCARD_ROWS);
+				return true;
+			}
+		});
+		add(ops, new Operation("ListMovieTitlesContainingLoveReleasedAfter2010"){
+			Object prepare(SplittableRandom r){
+				// one word of a sampled title
+				String[] words = pick(r, _titles).get(0).split("\\s+");
+				return words[r.nextInt(words.length)];
+			}
+			boolean run(Object word) throws SQLException {
+				Ticketmaster.SearchMovieTitles(esql, (String) word, null, null, 0, Ticketmaster.PAGE_SIZE,
+					Ticketmaster.DISCARD_ROWS);
+				return true;
+			}
+		});
+		add(ops, new Operation("ListUsersWithPendingBooking"){
+			boolean run(Object input) throws SQLException {
+				Ticketmaster.ListUsersWithPendingBooking(esql, "", Ticketmaster.PAGE_SIZE, Ticketmaster.DISCARD_ROWS);
+				return true;
+			}
+		});
+		add(ops, new Operation("ListMovieAndShowInfoAtCinemaInDateRange"){
+			Object prepare(SplittableRandom r){
+				return new String[]{pick(r, _titles).get(0), pick(r, _shows).get(1)};
+			}
+			boolean run(Object input) throws SQLException {
+				String[] in = (String[]) input;
+				// a month starting at a sampled show date
+				String end = java.sql.Date.valueOf(in[1]).toLocalDate().plusDays(30).toString();
+				Ticketmaster.ListMovieAndShowInfoAtCinemaInDateRange(esql, in[0], in[1], end, Ticketmaster.DISCARD_ROWS);
+				return true;
+			}
+		});
+		add(ops, new Operation("ListBookingInfoForUser"){
+			Object prepare(SplittableRandom r){
+				return email(r);
+			}
+			boolean run(Object email) throws SQLException {
+				Ticketmaster.ListBookingInfoForUser(esql, (String) email, Long.MIN_VALUE, Long.MIN_VALUE,
+					Ticketmaster.PAGE_SIZE, Ticketmaster.DISCARD_ROWS);
+				return true;
+			}
+		});
+		return ops;
+	}
+
+	private static void add(Map<String, Operation> ops, Operation op){
+		ops.put(op.name, op);
+	}
+
+	/**
+	 * Calls the operation once, counting its outcome.
+	 *
+	 * @return the time run() took, in ns
+	 */
+	private long call(Operation op, SplittableRandom r, Counts counts){
+		long started = 0;
+		try{
+			Object input = op.prepare(r);
+			this._esql.getMetrics().beginOperation(op.name);
+			started = System.nanoTime();
+			boolean accepted = op.run(input);
+			long nanos = System.nanoTime() - started;
+			this._esql.getMetrics().endOperation(false);
+			if (!accepted){
+				counts.rejected.increment();
+			}//end if
+			counts.calls.increment();
+			return nanos;
+		}catch (SQLException e){
+			this._esql.getMetrics().endOperation(true);
+			counts.errors.increment();
+			counts.calls.increment();
+			return started == 0 ? 0 : System.nanoTime() - started;
+		}//end try
+	}
+
+	/**
+	 * Single-thread latency: warm up, then time each call.
+	 */
+	void measureLatency(Operation op, int warmup, int iterations){
+		SplittableRandom r = new SplittableRandom(this._seed ^ op.name.hashCode());
+		for (int i = 0; i < warmup; ++i){
+			call(op, r, new Counts());
+		}//end for
+		Counts counts = new Counts();
+		long[] nanos = new long[iterations];
+		long total = 0;
+		for (int i = 0; i < iterations; ++i){
+			nanos[i] = call(op, r, counts);
+			total += nanos[i];
+		}//end for
+		Arrays.sort(nanos);
+		report(op, "latency", 1, counts, iterations == 0 ? 0 : iterations / (total / 1e9),
+			iterations == 0 ? 0 : total / (double) iterations, percentile(nanos, 0.50), percentile(nanos, 0.90),
+			percentile(nanos, 0.99), iterations == 0 ? 0 : nanos[iterations - 1]);
+	}
+
+	/**
+	 * Multi-thread throughput: every thread calls the operation as fast as
+	 * it can; calls made during the warm-up period are not counted.
+	 */
+	void measureThroughput(final Operation op, int threads, int seconds) throws InterruptedException {
+		final Counts warm = new Counts();
+		final Counts counts = new Counts();
+		final Metrics.Histogram latency = new Metrics.Histogram();
+		final long start = System.nanoTime();
+		final long measureFrom = start + seconds * 1000000000L;
+		final long measureTo = measureFrom + seconds * 1000000000L;
+		final SplittableRandom root = new SplittableRandom(this._seed ^ op.name.hashCode() ^ 0x5DEECE66DL);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t){
+			final SplittableRandom r = root.split();
+			workers[t] = new Thread(() -> {
+				long now;
+				while ((now = System.nanoTime()) < measureTo){
+					if (now < measureFrom){
+						call(op, r, warm);
+					}else{
+						latency.record(call(op, r, counts));
+					}//end if
+				}//end while
+			}, "bench-" + t);
+			workers[t].start();
+		}//end for
+		for (Thread worker : workers){
+			worker.join();
+		}//end for
+		long calls = counts.calls.sum();
+		report(op, "throughput", threads, counts, calls / (double) seconds,
+			calls == 0 ? 0 : latency.getSumSeconds() * 1e9 / calls, latency.percentileMicros(0.50) * 1000,
+			latency.percentileMicros(0.90) * 1000, latency.percentileMicros(0.99) * 1000,
+			latency.percentileMicros(1.0) * 1000);
+	}
+
+	private static long percentile(long[] sorted, double p){
+		if (sorted.length == 0){
+			return 0;
+		}//end if
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	private static void report(Operation op, String mode, int threads, Counts counts, double opsPerSecond,
+			double meanNanos, long p50, long p90, long p99, long max){
+		System.out.println(String.format("%s\t%s\t%d\t%d\t%.1f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%d\t%d",
+			op.name, mode, threads, counts.calls.sum(), opsPerSecond, meanNanos / 1e6, p50 / 1e6, p90 / 1e6,
+			p99 / 1e6, max / 1e6, counts.rejected.sum(), counts.errors.sum()));
+	}
+}
@@ -0,0 +1,189 @@
+import java.sql.SQLException;
+import java.util.List;
+
+
+/**
+ * This class cancels Pending bookings that were not paid within a hold
+ * period of their bdatetime, and frees their ShowSeats, so abandoned seats
+ * go back on sale within seconds instead of waiting for someone to run
+ * CancelPendingBookings over the whole table.
+ *
+ * Enabled with -Dticketmaster.expiry.enabled=true. Every Pending booking
+ * this process makes is put on a TimerWheel at its deadline; a daemon
+ * thread advances the wheel every tick and cancels the bookings that came
+ * due, BATCH_SIZE per transaction. The database is the source of truth:
+ * on startup the thread cancels the overdue bookings and puts the pending
+ * ones that are not due yet on the wheel, and every SWEEP_MS after that
+ * it cancels any overdue booking the wheel does not know about, e.g. one
+ * made by another process.
+ *
+ * A booking that was paid, cancelled or removed in the meantime no longer
+ * matches the cancel statement and is left alone.
+ *
+ */
+
+public class BookingExpiry{
+	static final boolean ENABLED = Boolean.getBoolean("ticketmaster.expiry.enabled");
+	// ms a Pending booking holds its seats after bdatetime
+	static final long HOLD_MS = Long.getLong("ticketmaster.expiry.holdMs", 15 * 60 * 1000L);
+	// ms per wheel slot: how late after its deadline a booking may be cancelled
+	static final long TICK_MS = Long.getLong("ticketmaster.expiry.tickMs", 1000L);
+	// slots of the wheel; one turn is TICK_MS * WHEEL_SLOTS
+	static final int WHEEL_SLOTS = Integer.getInteger("ticketmaster.expiry.wheelSlots", 512);
+	// ms between scans of the database for overdue bookings
+	static final long SWEEP_MS = Long.getLong("ticketmaster.expiry.sweepMs", 60000L);
+	// bookings cancelled per transaction
+	static final int BATCH_SIZE = Integer.getInteger("ticketmaster.expiry.batchSize", 100);
+
+	// MaintenanceJob batches (see Ticketmaster.CANCEL_PENDING_SQL): the given bookings, if still
+	// pending and overdue, or any overdue ones, through the partial index on pending bdatetime
+	static final String EXPIRE_BOOKINGS_SQL = "WITH batch AS (" +
+			"SELECT bid FROM bookings WHERE bid = ANY(?::bigint[]) AND status = 'Pending' " +
+			"AND bdatetime <= now() - ? * interval '1 millisecond' " +
+			"ORDER BY bid LIMIT ? FOR UPDATE SKIP LOCKED), " +
+			"freed AS (UPDATE showseats SET bid = NULL WHERE bid IN (SELECT bid FROM batch) RETURNING sid), " +
+			"done AS (UPDATE bookings SET status = 'Cancelled' WHERE bid IN (SELECT bid FROM batch) RETURNING bid) " +
+			"SELECT (SELECT count(*) FROM done), (SELECT string_agg(DISTINCT sid::text, ',') FROM freed)";
+	static final String EXPIRE_OVERDUE_SQL = "WITH batch AS (" +
+			"SELECT bid FROM bookings WHERE status = 'Pending' " +
+			"AND bdatetime <= now() - ? * interval '1 millisecond' " +
+			"ORDER BY bdatetime LIMIT ? FOR UPDATE SKIP LOCKED), " +
+			"freed AS (UPDATE showseats SET bid = NULL WHERE bid IN (SELECT bid FROM batch) RETURNING sid), " +
+			"done AS (UPDATE bookings SET status = 'Cancelled' WHERE bid IN (SELECT bid FROM batch) RETURNING bid) " +
+			"SELECT (SELECT count(*) FROM done), (SELECT string_agg(DISTINCT sid::text, ',') FROM freed)";
+	// pending bookings not due yet, with their deadline as epoch ms
+	static final String PENDING_SQL = "SELECT bid, (extract(epoch FROM bdatetime) * 1000)::bigint + ? AS deadline " +
+			"FROM bookings WHERE status = 'Pending' AND bdatetime > now() - ? * interval '1 millisecond'";
+
+	private final Ticketmaster _esql;
+	private final TimerWheel<Long> _wheel = new TimerWheel<Long>(TICK_MS, WHEEL_SLOTS, System.currentTimeMillis());
+	private volatile Thread _scheduler = null;
+	private volatile long _expired = 0;
+
+	public BookingExpiry(Ticketmaster esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Puts a booking this process just made Pending on the wheel.
+	 */
+	public void schedule(long bid){
+		if (this._scheduler != null){
+			this._wheel.schedule(bid, System.currentTimeMillis() + HOLD_MS);
+		}//end if
+	}
+
+	/**
+	 * Cancels the given bookings that are still pending and overdue.
+	 *
+	 * @return the number of bookings cancelled
+	 */
+	long expire(List<Long> bids) throws SQLException {
+		long cancelled = 0;
+		for (int from = 0; from < bids.size(); from += BATCH_SIZE){
+			List<Long> batch = bids.subList(from, Math.min(bids.size(), from + BATCH_SIZE));
+			long[] ids = new long[batch.size()];
+			for (int i = 0; i < ids.length; ++i){
+				ids[i] = batch.get(i);
+			}//end for
+			MaintenanceJob job = new MaintenanceJob(this._esql, "BookingExpiry", EXPIRE_BOOKINGS_SQL,
+					Ticketmaster.toArrayLiteral(ids), HOLD_MS).batchSize(BATCH_SIZE);
+			cancelled += job.runBatch();
+		}//end for
+		this._expired += cancelled;
+		return cancelled;
+	}
+
+	/**
+	 * Cancels every overdue pending booking, a batch at a time.
+	 *
+	 * @return the number of bookings cancelled
+	 */
+	long sweep() throws SQLException {
+		MaintenanceJob job = new MaintenanceJob(this._esql, "BookingExpiry", EXPIRE_OVERDUE_SQL, HOLD_MS)
+				.batchSize(BATCH_SIZE).quiet();
+		long cancelled = job.runBatches();
+		this._expired += cancelled;
+		return cancelled;
+	}
+
+	/**
+	 * Sweeps, then puts the pending bookings that are not due yet on the
+	 * wheel, e.g. those made before a restart.
+	 */
+	void recover() throws SQLException {
+		sweep();
+		this._esql.executeQueryAndStream(PENDING_SQL, new RowHandler(){
+			public void handleRow(Row row) throws SQLException {
+				BookingExpiry.this._wheel.schedule(row.getLong(1), row.getLong(2));
+			}
+		}, HOLD_MS, HOLD_MS);
+	}
+
+	/**
+	 * Starts the expiry thread when -Dticketmaster.expiry.enabled=true.
+	 * It sweeps the database first, so the caller is not held up.
+	 */
+	public synchronized void start(){
+		if (!ENABLED || this._scheduler != null){
+			return;
+		}//end if
+		Thread scheduler = new Thread(new Runnable(){
+			public void run(){
+				expireLoop();
+			}
+		}, "booking-expiry");
+		scheduler.setDaemon(true);
+		this._scheduler = scheduler;
+		scheduler.start();
+	}
+
+	public synchronized void stop(){
+		Thread scheduler = this._scheduler;
+		this._scheduler = null;
+		if (scheduler != null){
+			scheduler.interrupt();
+		}//end if
+	}
+
+	private void expireLoop(){
+		Thread self = Thread.currentThread();
+		boolean recovered = false;
+		long nextSweep = 0;
+		while (this._scheduler == self){
+			try{
+				long now = System.currentTimeMillis();
+				if (!recovered){
+					recover();
+					recovered = true;
+					nextSweep = now + SWEEP_MS;
+				}else if (now >= nextSweep){
+					nextSweep = now + SWEEP_MS;
+					sweep();
+				}//end if
+				List<Long> due = this._wheel.advance(now);
+				if (!due.isEmpty()){
+					expire(due);
+				}//end if
+				Thread.sleep(TICK_MS);
+			}catch (InterruptedException e){
+				return;
+			}catch (SQLException e){
+				// whatever was not cancelled is picked up by the next sweep
+				System.err.println("Unable to expire pending bookings: " + e.getMessage());
+				try{
+					Thread.sleep(TICK_MS);
+				}catch (InterruptedException ie){
+					return;
+				}//end try
+			}//end try
+		}//end while
+	}
+
+	/**
+	 * @return a summary line, e.g. for the metrics report
+	 */
+	public String stats(){
+		return "booking expiry: " + this._expired + " cancelled, " + this._wheel.size() + " scheduled";
+	}
+}
@@ -0,0 +1,415 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+
+
+/**
+ * Loads the database from sql/create.sql and the data/*.csv files without
+ * needing the CSVs on the database host or superuser file access.
+ *
+ * create.sql is split into three parts: the statements before the first
+ * COPY (drop and create the tables), the COPY statements, and the
+ * statements after them (indexes, sequences, ANALYZE). The first and last
+ * parts are run as they are. Each COPY ... FROM 'file' is rewritten to
+ * COPY ... FROM STDIN and the file is streamed from the data directory
+ * through the driver's CopyManager, one connection per table.
+ *
+ * Tables are loaded in parallel. A table waits for the tables its foreign
+ * keys reference, read from pg_constraint once the schema exists, so
+ * Cities, Movies and Users start together and Payments and ShowSeats go
+ * last. With -deferConstraints every primary key, unique and foreign key
+ * constraint is dropped before the load and added back afterwards, so all
+ * tables load at once and each index is built in one pass.
+ *
+ * Usage: java BulkLoader <dbname> <port> <user> [-sql file] [-data dir]
+ *        [-threads n] [-deferConstraints]
+ *
+ */
+
+public class BulkLoader{
+	private static final Pattern COPY = Pattern.compile(
+		"COPY\\s+(\\w+)\\s*(\\([^)]*\\))?\\s*FROM\\s+'([^']+)'\\s*(.*)",
+		Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	/**
+	 * One COPY statement of create.sql.
+	 */
+	static class TableLoad{
+		final String table;		//	lower case, as in pg_class
+		final String sql;		//	the statement rewritten to read FROM STDIN
+		final File file;
+
+		TableLoad(String table, String sql, File file){
+			this.table = table;
+			this.sql = sql;
+			this.file = file;
+		}
+	}
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+
+	public BulkLoader(String dbname, String dbport, String user, String passwd){
+		this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		this._user = user;
+		this._passwd = passwd;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + BulkLoader.class.getName()
+				+ " <dbname> <port> <user> [-sql file] [-data dir] [-threads n] [-deferConstraints]");
+			return;
+		}//end if
+		String sqlFile = "../sql/create.sql";
+		String dataDir = "../data";
+		int threads = 4;
+		boolean deferConstraints = false;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("-sql")){
+				sqlFile = args[++i];
+			}else if (args[i].equals("-data")){
+				dataDir = args[++i];
+			}else if (args[i].equals("-threads")){
+				threads = Integer.parseInt(args[++i]);
+			}else if (args[i].equals("-deferConstraints")){
+				deferConstraints = true;
+			}else{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}//end if
+		}//end for
+
+		Class.forName("org.postgresql.Driver");
+		BulkLoader loader = new BulkLoader(args[0], args[1], args[2], "");
+		long started = System.nanoTime();
+		loader.load(new File(sqlFile), new File(dataDir), threads, deferConstraints);
+		System.out.printf("Loaded in %.1f s%n", (System.nanoTime() - started) / 1e9);
+	}
+
+	/**
+	 * Runs create.sql with its COPY statements streamed from the client.
+	 *
+	 * @param sqlFile the create script
+	 * @param dataDir the directory holding the CSV files it names
+	 * @param threads the number of tables loaded at once
+	 * @param deferConstraints true to add keys and foreign keys after the load
+	 * @throws java.sql.SQLException when a statement or a COPY fails
+	 * @throws java.io.IOException when a file cannot be read
+	 */
+	public void load(File sqlFile, File dataDir, int threads, boolean deferConstraints)
+			throws SQLException, IOException {
+		List<String> before = new ArrayList<String>();
+		List<TableLoad> loads = new ArrayList<TableLoad>();
+		List<String> after = new ArrayList<String>();
+		for (String statement : splitStatements(sqlFile)){
+			Matcher m = COPY.matcher(statement);
+			if (m.matches()){
+				String columns = m.group(2) == null ? "" : " " + m.group(2);
+				loads.add(new TableLoad(m.group(1).toLowerCase(),
+					"COPY " + m.group(1) + columns + " FROM STDIN " + m.group(4),
+					new File(dataDir, m.group(3))));
+			}else if (loads.isEmpty()){
+				before.add(statement);
+			}else{
+				after.add(statement);
+			}//end if
+		}//end for
+
+		Connection conn = connect();
+		try{
+			execute(conn, before);
+
+			Set<String> tables = new HashSet<String>();
+			for (TableLoad load : loads){
+				tables.add(load.table);
+			}//end for
+			Map<String, List<String>> parents = new HashMap<String, List<String>>();
+			List<String[]> keys = new ArrayList<String[]>();
+			List<String[]> foreignKeys = new ArrayList<String[]>();
+			readConstraints(conn, tables, parents, keys, foreignKeys);
+
+			if (deferConstraints){
+				// foreign keys first, they depend on the keys they reference
+				dropConstraints(conn, foreignKeys);
+				dropConstraints(conn, keys);
+				parents.clear();
+			}//end if
+
+			loadTables(loads, parents, threads);
+
+			if (deferConstraints){
+				addConstraints(keys, threads);
+				addConstraints(foreignKeys, threads);
+			}//end if
+			execute(conn, after);
+		}finally{
+			conn.close();
+		}
+	}
+
+	private Connection connect() throws SQLException {
+		Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+		conn.setAutoCommit(true);
+		return conn;
+	}
+
+	/**
+	 * Splits a script into statements, dropping -- comments. Semicolons and
+	 * dashes inside quotes or $$-quoted function bodies are kept.
+	 */
+	static List<String> splitStatements(File sqlFile) throws IOException {
+		List<String> statements = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean inQuote = false;		//	inside '...'
+		boolean inDollarQuote = false;	//	inside $$...$$
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sqlFile), "UTF-8"));
+		try{
+			String line;
+			while ((line = reader.readLine()) != null){
+				for (int i = 0; i < line.length(); ++i){
+					char c = line.charAt(i);
+					if (inDollarQuote){
+						if (line.startsWith("$$", i)){
+							inDollarQuote = false;
+							current.append('$');
+							++i;
+						}//end if
+					}else if (inQuote){
+						inQuote = c != '\'';
+					}else if (c == '\''){
+						inQuote = true;
+					}else if (line.startsWith("$$", i)){
+						inDollarQuote = true;
+						current.append('$');
+						++i;
+					}else if (line.startsWith("--", i)){
+						break;
+					}else if (c == ';'){
+						if (current.toString().trim().length() > 0){
+							statements.add(current.toString().trim());
+						}//end if
+						current.setLength(0);
+						continue;
+					}//end if
+					current.append(c);
+				}//end for
+				current.append('\n');
+			}//end while
+		}finally{
+			reader.close();
+		}
+		if (current.toString().trim().length() > 0){
+			statements.add(current.toString().trim());
+		}//end if
+		return statements;
+	}
+
+	private static void execute(Connection conn, List<String> statements) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			for (String sql : statements){
+				stmt.execute(sql);
+			}//end for
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Reads the key and foreign key constraints of the loaded tables.
+	 *
+	 * @param parents filled with the tables each table references
+	 * @param keys filled with {table, name, definition} of primary and unique keys
+	 * @param foreignKeys filled with {table, name, definition} of foreign keys
+	 */
+	private static void readConstraints(Connection conn, Set<String> tables, Map<String, List<String>> parents,
+			List<String[]> keys, List<String[]> foreignKeys) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(
+				"SELECT c.conrelid::regclass::text, c.confrelid::regclass::text, c.conname, " +
+				"c.contype, pg_get_constraintdef(c.oid) " +
+				"FROM pg_constraint c, pg_namespace n " +
+				"WHERE c.connamespace = n.oid AND n.nspname = current_schema() " +
+				"AND c.contype IN ('p', 'u', 'f') " +
+				"ORDER BY c.conname");
+			while (rs.next()){
+				String table = rs.getString(1);
+				if (!tables.contains(table)){
+					continue;
+				}//end if
+				String[] constraint = new String[]{table, rs.getString(3), rs.getString(5)};
+				if ("f".equals(rs.getString(4))){
+					foreignKeys.add(constraint);
+					if (tables.contains(rs.getString(2)) && !table.equals(rs.getString(2))){
+						if (!parents.containsKey(table)){
+							parents.put(table, new ArrayList<String>());
+						}//end if
+						parents.get(table).add(rs.getString(2));
+					}//end if
+				}else{
+					keys.add(constraint);
+				}//end if
+			}//end while
+			rs.close();
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static void dropConstraints(Connection conn, List<String[]> constraints) throws SQLException {
+		List<String> statements = new ArrayList<String>();
+		for (String[] c : constraints){
+			statements.add("ALTER TABLE " + c[0] + " DROP CONSTRAINT " + c[1]);
+		}//end for
+		execute(conn, statements);
+	}
+
+	/**
+	 * Adds constraints back, one table per connection at a time.
+	 */
+	private void addConstraints(List<String[]> constraints, int threads) throws SQLException {
+		Map<String, List<String>> byTable = new LinkedHashMap<String, List<String>>();
+		for (String[] c : constraints){
+			if (!byTable.containsKey(c[0])){
+				byTable.put(c[0], new ArrayList<String>());
+			}//end if
+			byTable.get(c[0]).add("ALTER TABLE " + c[0] + " ADD CONSTRAINT " + c[1] + " " + c[2]);
+		}//end for
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try{
+			List<Future<Object>> pending = new ArrayList<Future<Object>>();
+			for (final Map.Entry<String, List<String>> e : byTable.entrySet()){
+				pending.add(pool.submit(() -> {
+					long started = System.nanoTime();
+					Connection conn = connect();
+					try{
+						execute(conn, e.getValue());
+					}finally{
+						conn.close();
+					}
+					System.out.printf("%-12s %d constraint(s) added in %.1f s%n", e.getKey(),
+						e.getValue().size(), (System.nanoTime() - started) / 1e9);
+					return null;
+				}));
+			}//end for
+			waitFor(pending);
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Loads every table, each one once the tables it references are loaded.
+	 */
+	private void loadTables(List<TableLoad> loads, Map<String, List<String>> parents, int threads)
+			throws SQLException {
+		// submit in dependency order so a waiting task never holds a thread its parent needs
+		List<TableLoad> ordered = new ArrayList<TableLoad>();
+		Set<String> placed = new HashSet<String>();
+		while (ordered.size() < loads.size()){
+			boolean progress = false;
+			for (TableLoad load : loads){
+				if (placed.contains(load.table)){
+					continue;
+				}//end if
+				boolean ready = true;
+				for (String parent : parents.getOrDefault(load.table, new ArrayList<String>())){
+					ready &= placed.contains(parent);
+				}//end for
+				if (ready){
+					ordered.add(load);
+					placed.add(load.table);
+					progress = true;
+				}//end if
+			}//end for
+			if (!progress){
+				throw new SQLException("Foreign keys between the loaded tables form a cycle");
+			}//end if
+		}//end while
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try{
+			final Map<String, Future<Object>> loaded = new HashMap<String, Future<Object>>();
+			for (final TableLoad load : ordered){
+				final List<Future<Object>> waitOn = new ArrayList<Future<Object>>();
+				for (String parent : parents.getOrDefault(load.table, new ArrayList<String>())){
+					waitOn.add(loaded.get(parent));
+				}//end for
+				loaded.put(load.table, pool.submit(() -> {
+					waitFor(waitOn);
+					copy(load);
+					return null;
+				}));
+			}//end for
+			waitFor(new ArrayList<Future<Object>>(loaded.values()));
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Streams one CSV file into its table.
+	 */
+	private void copy(TableLoad load) throws SQLException, IOException {
+		long started = System.nanoTime();
+		Connection conn = connect();
+		try{
+			Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(load.file), "UTF-8"), 1 << 16);
+			try{
+				long rows = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(load.sql, in);
+				double seconds = (System.nanoTime() - started) / 1e9;
+				System.out.printf("%-12s %10d rows in %.1f s (%.0f rows/s)%n", load.table, rows, seconds,
+					rows / Math.max(seconds, 1e-9));
+			}finally{
+				in.close();
+			}
+		}finally{
+			conn.close();
+		}
+	}
+
+	/**
+	 * Waits for tasks, rethrowing the first failure as an SQLException.
+	 */
+	private static void waitFor(List<Future<Object>> tasks) throws SQLException {
+		for (Future<Object> task : tasks){
+			try{
+				task.get();
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while loading", e);
+			}catch (ExecutionException e){
+				if (e.getCause() instanceof SQLException){
+					throw (SQLException) e.getCause();
+				}//end if
+				throw new SQLException(e.getCause().getMessage(), e.getCause());
+			}//end try
+		}//end for
+	}
+}
@@ -0,0 +1,185 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class defines a bounded pool of PostgreSQL connections. At most
+ * maxSize connections are open at once; callers that find the pool
+ * exhausted wait up to acquireTimeout milliseconds before giving up.
+ * Connections that have been idle longer than the validation interval are
+ * checked with Connection.isValid() before being handed out again.
+ *
+ */
+
+public class ConnectionPool{
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _acquireTimeout;		//	ms to wait for a free connection
+	private final long _validationInterval;	//	ms a connection may idle before it is re-validated
+	private final int _statementCacheSize;		//	prepared statements kept per connection
+
+	//idle connections, most recently used first
+	private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+	//one permit per connection that may still be handed out
+	private final Semaphore _permits;
+	private volatile boolean _closed = false;
+
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long acquireTimeout, long validationInterval, int statementCacheSize){
+		if (maxSize < 1 || minSize < 0 || minSize > maxSize){
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+		}//end if
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._acquireTimeout = acquireTimeout;
+		this._validationInterval = validationInterval;
+		this._statementCacheSize = statementCacheSize;
+		this._permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Opens the minimum number of connections up front so a bad URL or a
+	 * stopped server is reported at startup rather than on the first query.
+	 *
+	 * @throws java.sql.SQLException when a connection cannot be opened
+	 */
+	public void start() throws SQLException {
+		for (int i = 0; i < this._minSize; ++i){
+			this._idle.offerLast(open());
+		}//end for
+	}
+
+	/**
+	 * Borrows a connection from the pool, opening a new one if none is idle
+	 * and the pool has not reached its maximum size.
+	 *
+	 * @return a validated connection that must be handed back with release()
+	 * @throws java.sql.SQLException when no connection became available in time
+	 */
+	public PooledConnection acquire() throws SQLException {
+		if (this._closed){
+			throw new SQLException("Connection pool is closed", "08003");
+		}//end if
+		try{
+			if (!this._permits.tryAcquire(this._acquireTimeout, TimeUnit.MILLISECONDS)){
+				throw new SQLException("Timed out after " + this._acquireTimeout
+					+ " ms waiting for one of " + this._maxSize + " database connections", "08001");
+			}//end if
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", "08001");
+		}//end try
+
+		try{
+			PooledConnection conn;
+			while ((conn = this._idle.pollFirst()) != null){
+				if (validate(conn)){
+					return conn;
+				}//end if
+				conn.close();
+			}//end while
+			return open();
+		}catch (SQLException e){
+			this._permits.release();
+			throw e;
+		}catch (RuntimeException e){
+			this._permits.release();
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Hands a connection back to the pool. Broken connections are closed,
+	 * and a connection left inside a transaction is rolled back first.
+	 *
+	 * @param conn the connection returned by acquire()
+	 */
+	public void release(PooledConnection conn){
+		if (conn == null){
+			return;
+		}//end if
+		try{
+			Connection c = conn.getConnection();
+			if (this._closed || conn.isBroken() || c.isClosed()){
+				conn.close();
+			}else{
+				if (!c.getAutoCommit()){
+					c.rollback();
+					c.setAutoCommit(true);
+				}//end if
+				conn.touch();
+				this._idle.offerFirst(conn);
+			}//end if
+		}catch (SQLException e){
+			conn.close();
+		}finally{
+			this._permits.release();
+		}//end try
+	}
+
+	/**
+	 * Opens a connection to the same database outside the pool, for a
+	 * long-lived session such as a LISTEN. The caller closes it.
+	 *
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * @return the number of connections currently checked out
+	 */
+	public int getActiveCount(){
+		return this._maxSize - this._permits.availablePermits();
+	}
+
+	public int getIdleCount(){
+		return this._idle.size();
+	}
+
+	public int getMaxSize(){
+		return this._maxSize;
+	}
+
+	/**
+	 * Closes every idle connection and refuses further acquires. Connections
+	 * still checked out are closed as they are released.
+	 */
+	public void close(){
+		this._closed = true;
+		PooledConnection conn;
+		while ((conn = this._idle.pollFirst()) != null){
+			conn.close();
+		}//end while
+	}
+
+	private PooledConnection open() throws SQLException {
+		return new PooledConnection(DriverManager.getConnection(this._url, this._user, this._passwd),
+				this._statementCacheSize);
+	}
+
+	private boolean validate(PooledConnection conn){
+		try{
+			if (conn.getConnection().isClosed()){
+				return false;
+			}//end if
+			if (System.currentTimeMillis() - conn.getLastUsed() < this._validationInterval){
+				return true;
+			}//end if
+			return conn.getConnection().isValid(5);
+		}catch (SQLException e){
+			return false;
+		}//end try
+	}
+}
@@ -0,0 +1,573 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Writes a synthetic data set for the 11 tables of sql/create.sql, in the
+ * column order of its COPY statements, at any scale.
+ *
+ * At scale 1 there are about 10,000 shows, 1M ShowSeats and 100,000
+ * bookings. Every count grows linearly with the scale, so -scale 10 gives
+ * about 10M ShowSeats and 1M bookings.
+ *
+ * Every row is derived from the seed and its own id through a
+ * SplittableRandom seeded with both, so the output does not depend on the
+ * number of threads. Files are written in parallel. Shows and Plays are
+ * written by one thread. ShowSeats, Bookings and Payments are written show
+ * by show, since each show's seats and bookings are decided together: each
+ * thread takes a contiguous range of shows and writes it to part files,
+ * which are then joined in show order. Memory holds only the per-cinema and
+ * per-theater layout, never rows of the large tables.
+ *
+ * The data is skewed the way real sales are: movies and customers are
+ * drawn from a power law (-skew is its exponent), and each show gets a
+ * heavy-tailed share of its seats sold, so a few shows sell out while most
+ * stay nearly empty. Keys are kept valid:
+ *
+ *  - a ShowSeats row exists for every seat of the show's theater, once
+ *    (UNIQUE(sid, csid)), and only Paid and Pending bookings hold seats;
+ *  - only Paid bookings have a payment, with pid = bid (UNIQUE(bid)).
+ *
+ * Ids of show-owned rows are sid * 256 + n, so they are unique without
+ * coordination between threads; the sequences in create.sql start after
+ * the largest id loaded.
+ *
+ * Dates and times are written in ISO format, and no text contains a comma.
+ *
+ * Usage: java DataGenerator [-scale s] [-seed n] [-skew exponent]
+ *        [-out dir] [-threads n]
+ *
+ */
+
+public class DataGenerator{
+	// ids of a show's seats and bookings are sid * ID_STRIDE + n
+	static final int ID_STRIDE = 256;
+	static final int MIN_SEATS = 20;
+	static final int MAX_SEATS = 180;
+	static final LocalDate FIRST_SHOW_DATE = LocalDate.of(2024, 1, 1);
+	static final int SHOW_DAYS = 365;
+
+	private static final String[] CHAINS = {"AMC", "General Cinemas", "Harkins", "IMAX Corporation",
+		"Regal Cinemas", "Studio Movie Grill", "Cinemark", "Marcus Theatres"};
+	private static final String[] CITIES = {"Springfield", "Riverside", "Franklin", "Greenville", "Fairview",
+		"Madison", "Georgetown", "Salem", "Clinton", "Arlington", "Ashland", "Dover", "Oxford", "Jackson",
+		"Burlington", "Manchester", "Milton", "Newport", "Auburn", "Dayton"};
+	private static final String[] STATES = {"AL", "AZ", "CA", "CO", "FL", "GA", "IL", "IN", "MA", "MI",
+		"MN", "NC", "NJ", "NY", "OH", "OR", "PA", "TX", "VA", "WA"};
+	private static final String[] WORDS = {"Love", "Night", "Return", "Shadow", "Dream", "City", "Last",
+		"Secret", "Star", "River", "Winter", "Kingdom", "Storm", "Heart", "Road", "Empire", "Dark",
+		"Summer", "Lost", "Fire", "Silent", "Golden", "Wild", "Edge"};
+	private static final String[] GENRES = {"Action", "Drama", "Comedy", "Horror", "Romance", "Animation",
+		"Thriller", "Documentary"};
+	private static final String[] COUNTRIES = {"United States", "United Kingdom", "France", "India",
+		"Japan", "Germany", "South Korea", "Canada"};
+	private static final String[] LANGS = {"en", "en", "fr", "hi", "ja", "de", "ko", "en"};
+	private static final String[] FIRST_NAMES = {"Armand", "Alberto", "Wyatt", "Maria", "Chen", "Priya",
+		"Olga", "James", "Fatima", "Lucas", "Aiko", "Noah", "Sofia", "Omar", "Emma", "Diego"};
+	private static final String[] LAST_NAMES = {"Enderle", "Scarlett", "Ruoff", "Garcia", "Nguyen", "Smith",
+		"Patel", "Kim", "Muller", "Rossi", "Silva", "Cohen", "Tanaka", "Brown", "Lopez", "Ivanov"};
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// salts so that entities sharing an id draw independent values
+	private static final long CITY = 1, CINEMA = 2, THEATER = 3, MOVIE = 4, USER = 5, SHOW = 6, SALES = 7;
+
+	private final long _seed;
+	private final double _skew;
+	private final File _out;
+
+	private final int _cities;
+	private final int _cinemas;
+	private final int _movies;
+	private final int _users;
+	private final int _shows;
+
+	// layout of the theaters, small enough to keep: theaters of cinema c are
+	// _firstTid[c - 1] .. _firstTid[c] - 1, seats of theater t are
+	// _firstCsid[t - 1] .. _firstCsid[t - 1] + _seats[t - 1] - 1
+	private final int[] _firstTid;
+	private final int[] _seats;
+	private final long[] _firstCsid;
+
+	public DataGenerator(double scale, long seed, double skew, File out){
+		this._seed = seed;
+		this._skew = skew;
+		this._out = out;
+		this._cities = scaled(300, scale);
+		this._cinemas = scaled(200, scale);
+		this._movies = scaled(1000, scale);
+		this._users = scaled(50000, scale);
+		this._shows = scaled(10000, scale);
+
+		this._firstTid = new int[this._cinemas + 1];
+		this._firstTid[0] = 1;
+		for (int cid = 1; cid <= this._cinemas; ++cid){
+			this._firstTid[cid] = this._firstTid[cid - 1] + theaterCount(cid);
+		}//end for
+		int theaters = this._firstTid[this._cinemas] - 1;
+		this._seats = new int[theaters];
+		this._firstCsid = new long[theaters];
+		long csid = 1;
+		for (int tid = 1; tid <= theaters; ++tid){
+			this._seats[tid - 1] = random(THEATER, tid).nextInt(MIN_SEATS, MAX_SEATS + 1);
+			this._firstCsid[tid - 1] = csid;
+			csid += this._seats[tid - 1];
+		}//end for
+	}
+
+	public static void main(String[] args) throws Exception {
+		double scale = 1.0;
+		long seed = 42;
+		double skew = 1.0;
+		String out = "../data/generated";
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i < args.length; ++i){
+			if (args[i].equals("-scale")){
+				scale = Double.parseDouble(args[++i]);
+			}else if (args[i].equals("-seed")){
+				seed = Long.parseLong(args[++i]);
+			}else if (args[i].equals("-skew")){
+				skew = Double.parseDouble(args[++i]);
+			}else if (args[i].equals("-out")){
+				out = args[++i];
+			}else if (args[i].equals("-threads")){
+				threads = Integer.parseInt(args[++i]);
+			}else{
+				System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName()
+					+ " [-scale s] [-seed n] [-skew exponent] [-out dir] [-threads n]");
+				return;
+			}//end if
+		}//end for
+
+		File dir = new File(out);
+		if (!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Cannot create " + dir);
+		}//end if
+		long started = System.nanoTime();
+		new DataGenerator(scale, seed, skew, dir).generate(threads);
+		System.out.printf("Generated scale %s into %s in %.1f s%n", scale, dir, (System.nanoTime() - started) / 1e9);
+	}
+
+	private static int scaled(int base, double scale){
+		return (int) Math.max(1, Math.round(base * scale));
+	}
+
+	/**
+	 * @return a generator that depends only on the seed, the kind of row and its id
+	 */
+	private SplittableRandom random(long kind, long id){
+		return new SplittableRandom(mix(this._seed * 31 + kind) ^ mix(id));
+	}
+
+	private static long mix(long z){
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
+	/**
+	 * Draws a rank in 1..n from a power law with exponent -skew, so rank 1
+	 * is the most likely.
+	 */
+	long powerLaw(SplittableRandom r, long n){
+		double u = r.nextDouble();
+		double x;
+		if (Math.abs(this._skew - 1.0) < 1e-9){
+			x = Math.pow(n + 1, u);
+		}else{
+			double a = 1 - this._skew;
+			x = Math.pow((Math.pow(n + 1, a) - 1) * u + 1, 1 / a);
+		}//end if
+		return Math.max(1, Math.min(n, (long) x));
+	}
+
+	private int theaterCount(int cid){
+		return random(CINEMA, cid).nextInt(1, 13);
+	}
+
+	private static String pick(SplittableRandom r, String[] values){
+		return values[r.nextInt(values.length)];
+	}
+
+	static String email(long user){
+		return "user" + user + "@example.com";
+	}
+
+	/**
+	 * The attributes of a show, recomputed wherever they are needed.
+	 */
+	final class Show{
+		final long sid;
+		final long mvid;
+		final int tid;
+		final LocalDate date;
+		final LocalTime start;
+
+		Show(long sid){
+			SplittableRandom r = random(SHOW, sid);
+			this.sid = sid;
+			this.mvid = powerLaw(r, _movies);
+			this.tid = 1 + r.nextInt(_seats.length);
+			this.date = FIRST_SHOW_DATE.plusDays(r.nextInt(SHOW_DAYS));
+			this.start = LocalTime.of(10 + r.nextInt(13), 5 * r.nextInt(12));
+		}
+	}
+
+	private int movieDuration(long mvid){
+		return random(MOVIE, mvid).nextInt(4800, 10800);
+	}
+
+	/**
+	 * Writes every file, one task per group of related files and one per
+	 * range of shows for the sales.
+	 *
+	 * @param threads the number of files written at once, and of show ranges
+	 */
+	public void generate(int threads) throws IOException, InterruptedException {
+		final int parts = Math.max(1, threads);
+		final long[][] sales = new long[parts][];
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		tasks.add(() -> writeCities());
+		tasks.add(() -> writeCinemasAndTheaters());
+		tasks.add(() -> writeCinemaSeats());
+		tasks.add(() -> writeMovies());
+		tasks.add(() -> writeUsers());
+		tasks.add(() -> writeShowsAndPlays());
+		for (int k = 0; k < parts; ++k){
+			final int part = k;
+			final long first = 1 + (long) this._shows * k / parts;
+			final long last = (long) this._shows * (k + 1) / parts;
+			tasks.add(() -> {
+				sales[part] = writeSales(part, first, last);
+				return null;
+			});
+		}//end for
+
+		ExecutorService pool = Executors.newFixedThreadPool(parts);
+		try{
+			for (Future<String> done : pool.invokeAll(tasks)){
+				try{
+					if (done.get() != null){
+						System.out.println(done.get());
+					}//end if
+				}catch (ExecutionException e){
+					if (e.getCause() instanceof IOException){
+						throw (IOException) e.getCause();
+					}//end if
+					throw new IOException(e.getCause());
+				}//end try
+			}//end for
+		}finally{
+			pool.shutdownNow();
+		}
+
+		long seatRows = 0, bookingRows = 0, paymentRows = 0;
+		for (long[] part : sales){
+			seatRows += part[0];
+			bookingRows += part[1];
+			paymentRows += part[2];
+		}//end for
+		join("ShowSeats", parts);
+		join("Bookings", parts);
+		join("Payments", parts);
+		System.out.println("ShowSeats    " + seatRows + "\nBookings     " + bookingRows + "\nPayments     " + paymentRows);
+	}
+
+	private Writer open(String table) throws IOException {
+		return open(new File(this._out, table + ".csv"));
+	}
+
+	private static Writer open(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 20);
+	}
+
+	/**
+	 * @return the file one range of shows writes its rows of a table to
+	 */
+	private File part(String table, int part){
+		return new File(this._out, table + ".csv." + part);
+	}
+
+	/**
+	 * Joins the part files of a table into its CSV, in part order, and
+	 * deletes them.
+	 */
+	private void join(String table, int parts) throws IOException {
+		FileChannel out = new FileOutputStream(new File(this._out, table + ".csv")).getChannel();
+		try{
+			for (int k = 0; k < parts; ++k){
+				File file = part(table, k);
+				FileChannel in = new FileInputStream(file).getChannel();
+				try{
+					long size = in.size();
+					for (long done = 0; done < size; ){
+						done += in.transferTo(done, size - done, out);
+					}//end for
+				}finally{
+					in.close();
+				}
+				if (!file.delete()){
+					throw new IOException("Cannot delete " + file);
+				}//end if
+			}//end for
+		}finally{
+			out.close();
+		}
+	}
+
+	private String writeCities() throws IOException {
+		Writer w = open("Cities");
+		try{
+			StringBuilder row = new StringBuilder();
+			for (int id = 1; id <= this._cities; ++id){
+				SplittableRandom r = random(CITY, id);
+				row.setLength(0);
+				row.append(id).append(',').append(pick(r, CITIES));
+				if (id > CITIES.length){
+					row.append(' ').append(id);
+				}//end if
+				row.append(',').append(pick(r, STATES)).append(',').append(r.nextInt(10000, 100000)).append('\n');
+				w.append(row);
+			}//end for
+		}finally{
+			w.close();
+		}
+		return "Cities       " + this._cities;
+	}
+
+	private String writeCinemasAndTheaters() throws IOException {
+		Writer cinemas = open("Cinemas");
+		Writer theaters = open("Theaters");
+		try{
+			StringBuilder row = new StringBuilder();
+			for (int cid = 1; cid <= this._cinemas; ++cid){
+				SplittableRandom r = random(CINEMA, cid);
+				int tnum = r.nextInt(1, 13);	//	same draw as theaterCount()
+				String chain = pick(r, CHAINS);
+				row.setLength(0);
+				row.append(cid).append(',').append(powerLaw(r, this._cities)).append(',')
+					.append(chain).append(',').append(tnum).append('\n');
+				cinemas.append(row);
+				for (int k = 0; k < tnum; ++k){
+					int tid = this._firstTid[cid - 1] + k;
+					row.setLength(0);
+					row.append(tid).append(',').append(cid).append(',').append(chain).append(" Theaters ")
+						.append(k + 1).append(',').append(this._seats[tid - 1]).append('\n');
+					theaters.append(row);
+				}//end for
+			}//end for
+		}finally{
+			cinemas.close();
+			theaters.close();
+		}
+		return "Cinemas      " + this._cinemas + "\nTheaters     " + this._seats.length;
+	}
+
+	/**
+	 * @return the type of seat sno of a theater with the given number of seats
+	 */
+	private static String seatType(int sno, int seats){
+		return sno <= Math.max(1, seats / 40) ? "Handicap" : "Regular";
+	}
+
+	private static double seatPrice(int sno, int seats, double basePrice){
+		return seatType(sno, seats).equals("Handicap") ? basePrice - 2 : basePrice;
+	}
+
+	private String writeCinemaSeats() throws IOException {
+		Writer w = open("CinemaSeats");
+		long rows = 0;
+		try{
+			StringBuilder row = new StringBuilder();
+			for (int tid = 1; tid <= this._seats.length; ++tid){
+				int seats = this._seats[tid - 1];
+				for (int sno = 1; sno <= seats; ++sno){
+					row.setLength(0);
+					row.append(this._firstCsid[tid - 1] + sno - 1).append(',').append(tid).append(',')
+						.append(sno).append(',').append(seatType(sno, seats)).append('\n');
+					w.append(row);
+				}//end for
+				rows += seats;
+			}//end for
+		}finally{
+			w.close();
+		}
+		return "CinemaSeats  " + rows;
+	}
+
+	private String writeMovies() throws IOException {
+		Writer w = open("Movies");
+		try{
+			StringBuilder row = new StringBuilder();
+			for (int mvid = 1; mvid <= this._movies; ++mvid){
+				SplittableRandom r = random(MOVIE, mvid);
+				int duration = r.nextInt(4800, 10800);	//	same draw as movieDuration()
+				int country = r.nextInt(COUNTRIES.length);
+				row.setLength(0);
+				row.append(mvid).append(',');
+				int words = r.nextInt(1, 4);
+				for (int k = 0; k < words; ++k){
+					row.append(k == 0 ? "" : " ").append(pick(r, WORDS));
+				}//end for
+				row.append(' ').append(mvid);	//	keeps titles distinct
+				// releases cluster in recent years
+				int year = 2023 - (int) Math.min(70, powerLaw(r, 71) - 1);
+				row.append(',').append(LocalDate.of(year, 1, 1).plusDays(r.nextInt(365))).append(',')
+					.append(COUNTRIES[country]).append(',').append("Synthetic movie ").append(mvid).append(',')
+					.append(duration).append(',').append(LANGS[country]).append(',').append(pick(r, GENRES)).append('\n');
+				w.append(row);
+			}//end for
+		}finally{
+			w.close();
+		}
+		return "Movies       " + this._movies;
+	}
+
+	private String writeUsers() throws IOException {
+		Writer w = open("Users");
+		try{
+			StringBuilder row = new StringBuilder();
+			for (int id = 1; id <= this._users; ++id){
+				SplittableRandom r = random(USER, id);
+				row.setLength(0);
+				row.append(email(id)).append(',').append(pick(r, LAST_NAMES)).append(',')
+					.append(pick(r, FIRST_NAMES)).append(',').append(r.nextLong(2000000000L, 10000000000L)).append(',');
+				for (int k = 0; k < 64; ++k){
+					row.append(HEX[r.nextInt(16)]);
+				}//end for
+				row.append('\n');
+				w.append(row);
+			}//end for
+		}finally{
+			w.close();
+		}
+		return "Users        " + this._users;
+	}
+
+	private String writeShowsAndPlays() throws IOException {
+		Writer shows = open("Shows");
+		Writer plays = open("Plays");
+		try{
+			StringBuilder row = new StringBuilder();
+			for (long sid = 1; sid <= this._shows; ++sid){
+				Show show = new Show(sid);
+				LocalTime end = show.start.plusSeconds(movieDuration(show.mvid));
+				row.setLength(0);
+				row.append(sid).append(',').append(show.mvid).append(',').append(show.date).append(',')
+					.append(show.start).append(',').append(end).append('\n');
+				shows.append(row);
+				row.setLength(0);
+				row.append(sid).append(',').append(show.tid).append('\n');
+				plays.append(row);
+			}//end for
+		}finally{
+			shows.close();
+			plays.close();
+		}
+		return "Shows        " + this._shows + "\nPlays        " + this._shows;
+	}
+
+	/**
+	 * Writes the ShowSeats, Bookings and Payments of a range of shows to
+	 * part files, show by show. Each show gets a heavy-tailed occupancy;
+	 * seats are sold front to back in groups of one to eight sitting
+	 * together.
+	 *
+	 * @param part the number of the part files
+	 * @param first the first show of the range
+	 * @param last the last show of the range
+	 * @return the number of {ShowSeats, Bookings, Payments} rows written
+	 */
+	private long[] writeSales(int part, long first, long last) throws IOException {
+		Writer showSeats = open(part("ShowSeats", part));
+		Writer bookings = open(part("Bookings", part));
+		Writer payments = open(part("Payments", part));
+		long seatRows = 0, bookingRows = 0, paymentRows = 0;
+		try{
+			StringBuilder row = new StringBuilder();
+			long[] seatBid = new long[MAX_SEATS];
+			for (long sid = first; sid <= last; ++sid){
+				Show show = new Show(sid);
+				SplittableRandom r = random(SALES, sid);
+				int seats = this._seats[show.tid - 1];
+				long firstCsid = this._firstCsid[show.tid - 1];
+				// bounded Pareto: most shows sell a few seats, some sell out
+				double occupancy = Math.min(0.98, 0.08 / Math.pow(1 - r.nextDouble(), 1 / 1.5));
+				double basePrice = 6 + r.nextInt(7);
+
+				int booking = 0;
+				int sno = 0;
+				while (sno < seats){
+					seatBid[sno] = 0;
+					if (r.nextDouble() >= occupancy){
+						++sno;
+						continue;
+					}//end if
+					int group = 1;
+					while (group < 8 && r.nextDouble() < 0.5){
+						++group;
+					}//end while
+					group = Math.min(group, seats - sno);
+					long bid = sid * ID_STRIDE + (booking++);
+					double u = r.nextDouble();
+					String status = u < 0.80 ? "Paid" : (u < 0.92 ? "Pending" : "Cancelled");
+					String bdatetime = show.date.minusDays(r.nextInt(31)) + " "
+						+ LocalTime.of(r.nextInt(24), r.nextInt(60));
+					row.setLength(0);
+					row.append(bid).append(',').append(status).append(',').append(bdatetime).append(',')
+						.append(group).append(',').append(sid).append(',')
+						.append(email(powerLaw(r, this._users))).append('\n');
+					bookings.append(row);
+					++bookingRows;
+
+					double amount = 0;
+					for (int k = 0; k < group; ++k){
+						// a cancelled booking gave its seats back
+						seatBid[sno + k] = status.equals("Cancelled") ? 0 : bid;
+						amount += seatPrice(sno + k + 1, seats, basePrice);
+					}//end for
+					if (status.equals("Paid")){
+						row.setLength(0);
+						row.append(bid).append(',').append(bid).append(',')
+							.append(r.nextInt(4) == 0 ? "Cash" : "Credit Card").append(',').append(bdatetime)
+							.append(',').append(amount).append(',').append(r.nextLong(10000000L, 100000000L)).append('\n');
+						payments.append(row);
+						++paymentRows;
+					}//end if
+					sno += group;
+				}//end while
+
+				for (int k = 0; k < seats; ++k){
+					row.setLength(0);
+					row.append(sid * ID_STRIDE + k).append(',').append(sid).append(',').append(firstCsid + k).append(',');
+					if (seatBid[k] != 0){
+						row.append(seatBid[k]);
+					}//end if
+					row.append(',').append(seatPrice(k + 1, seats, basePrice)).append('\n');
+					showSeats.append(row);
+				}//end for
+				seatRows += seats;
+			}//end for
+		}finally{
+			showSeats.close();
+			bookings.close();
+			payments.close();
+		}
+		return new long[]{seatRows, bookingRows, paymentRows};
+	}
+}
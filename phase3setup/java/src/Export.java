@@ -0,0 +1,84 @@
+import java.sql.SQLException;
+
+
+/**
+ * Exports a report or any query to a file, pipe or standard out as CSV,
+ * JSON Lines, TSV or an aligned table (see ResultWriter). Rows are read
+ * through a cursor -fetchSize rows at a time and written through a large
+ * buffer as they arrive, so an export of any size runs in constant memory.
+ *
+ * Usage: java Export <dbname> <port> <user> [-format csv|jsonl|tsv|table]
+ *        [-out file|-|"|command"] [-fetchSize n]
+ *        (-bookings <from> <to> | -query "<select ...>")
+ *
+ * -bookings lists every booking of the shows between two dates, inclusive,
+ * with its payment, if any.
+ *
+ */
+
+public class Export{
+	static final String BOOKINGS_REPORT_SQL = "SELECT b.bid, b.status, b.bdatetime, b.seats, b.email, " +
+			"s.sid, s.sdate, s.sttime, m.title, p.pmethod, p.amount, p.pdatetime " +
+			"FROM shows s " +
+			"JOIN bookings b ON b.sid = s.sid " +
+			"JOIN movies m ON m.mvid = s.mvid " +
+			"LEFT JOIN payments p ON p.bid = b.bid " +
+			"WHERE s.sdate BETWEEN ? AND ? " +
+			"ORDER BY s.sdate, s.sttime, b.bid";
+
+	public static void main(String[] args) throws Exception {
+		String usage = "Usage: java [-classpath <classpath>] " + Export.class.getName()
+			+ " <dbname> <port> <user> [-format csv|jsonl|tsv|table] [-out file|-|\"|command\"] [-fetchSize n]"
+			+ " (-bookings <from> <to> | -query \"<select ...>\")";
+		if (args.length < 4){
+			System.err.println(usage);
+			return;
+		}//end if
+		String format = "csv";
+		String target = "-";
+		int fetchSize = 10000;
+		String sql = null;
+		Object[] params = new Object[0];
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("-format")){
+				format = args[++i];
+			}else if (args[i].equals("-out")){
+				target = args[++i];
+			}else if (args[i].equals("-fetchSize")){
+				fetchSize = Integer.parseInt(args[++i]);
+			}else if (args[i].equals("-bookings")){
+				sql = BOOKINGS_REPORT_SQL;
+				params = new Object[]{args[++i], args[++i]};
+			}else if (args[i].equals("-query")){
+				sql = args[++i];
+			}else{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}//end if
+		}//end for
+		if (sql == null){
+			System.err.println(usage);
+			return;
+		}//end if
+
+		// the connection messages go to stderr, so they stay out of an export to stdout
+		System.setOut(System.err);
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			ResultWriter out = ResultWriter.open(format, target, false);
+			long started = System.nanoTime();
+			long rows;
+			try{
+				rows = esql.executeQueryAndStream(sql, fetchSize, out, params);
+			}finally{
+				out.close();
+			}
+			System.err.printf("%d rows exported in %.1f s%n", rows, (System.nanoTime() - started) / 1e9);
+		}catch (SQLException e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+import java.sql.SQLException;
+
+
+/**
+ * This class hands out primary keys from a database sequence without a
+ * round trip per key. The sequence is created with INCREMENT BY n, so each
+ * nextval() call reserves the block (value - n, value] for this process;
+ * ids are then handed out from the block in memory until it runs out.
+ *
+ * Blocks are never shared between processes, so ids stay unique across
+ * every client, and a restart simply abandons the rest of its block.
+ *
+ */
+
+public class IdAllocator{
+	private final Ticketmaster _esql;
+	private final String _sequence;
+	private int _blockSize = -1;		//	the sequence's INCREMENT BY, read on first use
+	private long _next = 1;			//	next id to hand out
+	private long _last = 0;			//	last id of the current block
+
+	public IdAllocator(Ticketmaster esql, String sequence){
+		this._esql = esql;
+		this._sequence = sequence;
+	}
+
+	/**
+	 * @return a new id, unique across all processes using the sequence
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public synchronized long next() throws SQLException {
+		if (this._next > this._last){
+			if (this._blockSize < 0){
+				this._blockSize = this._esql.getSeqIncrement(this._sequence);
+			}//end if
+			long last = this._esql.getNextSeqVal(this._sequence);
+			this._next = last - this._blockSize + 1;
+			this._last = last;
+		}//end if
+		return this._next++;
+	}
+
+	public String getSequence(){
+		return this._sequence;
+	}
+}
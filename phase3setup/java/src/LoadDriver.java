@@ -0,0 +1,467 @@
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Closed-loop load generator that simulates an on-sale rush: thousands of
+ * customers, each on its own (virtual, where the JVM has them) thread,
+ * browsing, booking, changing seats and removing payments through the same
+ * Ticketmaster methods the menu uses.
+ *
+ * Each customer loops until -seconds have passed: think for an
+ * exponentially distributed time with mean -thinkMs, then do one action
+ * drawn from -mix. Bookings go to a few -hotShows most of the time, so
+ * customers compete for the same seats. Seat changes and payment removals
+ * act on the customer's own bookings.
+ *
+ * The report gives throughput and p50/p99/p999 latency per action, and
+ * counts outcomes by kind: rejected (the seat was taken first), deadlock
+ * (40P01), serialization failure (40001) and other errors. At the end the
+ * database is audited for double-booked seats:
+ *
+ *  - ShowSeats rows sharing a (sid, csid), which UNIQUE(sid, csid) forbids;
+ *  - seats two customers were both told they had;
+ *  - bookings of the run holding a different number of seats than booked.
+ *
+ * The exit status is 1 when the audit finds anything.
+ *
+ * Usage: java LoadDriver <dbname> <port> <user> [-customers n] [-seconds n]
+ *        [-thinkMs n] [-mix browse=60,book=25,change=10,remove=5]
+ *        [-hotShows n] [-hotShare fraction] [-seed n]
+ *
+ */
+
+public class LoadDriver{
+	static final String[] ACTIONS = {"browse", "book", "change", "remove"};
+
+	/**
+	 * A booking one customer made during the run, as that customer was told.
+	 */
+	static class Booking{
+		final long bid;
+		final long sid;
+		int[] seats;
+		boolean cancelled = false;
+
+		Booking(long bid, long sid, int[] seats){
+			this.bid = bid;
+			this.sid = sid;
+			this.seats = seats;
+		}
+	}
+
+	/**
+	 * Latency and outcome counters of one action.
+	 */
+	static class ActionStats{
+		final Metrics.Histogram latency = new Metrics.Histogram();
+		final LongAdder ok = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder deadlocks = new LongAdder();
+		final LongAdder serialization = new LongAdder();
+		final LongAdder errors = new LongAdder();
+	}
+
+	private final Ticketmaster _esql;
+	private final int[] _mix = new int[ACTIONS.length];
+	private final Map<String, ActionStats> _stats = new HashMap<String, ActionStats>();
+	private final ConcurrentLinkedQueue<Booking> _bookings = new ConcurrentLinkedQueue<Booking>();
+	private final ConcurrentLinkedQueue<String> _firstErrors = new ConcurrentLinkedQueue<String>();
+
+	private int _hotShows = 5;
+	private double _hotShare = 0.8;
+	private long _thinkMs = 100;
+
+	// inputs sampled from the database
+	private List<List<String>> _shows;		//	sid, sdate, sttime of shows with seats
+	private List<List<String>> _titles;
+	private List<List<String>> _emails;
+
+	public LoadDriver(Ticketmaster esql){
+		this._esql = esql;
+		for (String action : ACTIONS){
+			this._stats.put(action, new ActionStats());
+		}//end for
+		setMix("browse=60,book=25,change=10,remove=5");
+	}
+
+	/**
+	 * @param mix comma-separated action=weight pairs, e.g. "browse=60,book=40"
+	 */
+	void setMix(String mix){
+		for (int i = 0; i < ACTIONS.length; ++i){
+			this._mix[i] = 0;
+		}//end for
+		for (String part : mix.split(",")){
+			String[] kv = part.split("=");
+			int i = indexOf(kv[0].trim());
+			if (i < 0){
+				throw new IllegalArgumentException("Unknown action " + kv[0] + " in -mix");
+			}//end if
+			this._mix[i] = Integer.parseInt(kv[1].trim());
+		}//end for
+	}
+
+	private static int indexOf(String action){
+		for (int i = 0; i < ACTIONS.length; ++i){
+			if (ACTIONS[i].equals(action)){
+				return i;
+			}//end if
+		}//end for
+		return -1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + LoadDriver.class.getName()
+				+ " <dbname> <port> <user> [-customers n] [-seconds n] [-thinkMs n]"
+				+ " [-mix browse=60,book=25,change=10,remove=5] [-hotShows n] [-hotShare fraction] [-seed n]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		boolean clean;
+		try{
+			LoadDriver driver = new LoadDriver(esql);
+			int customers = 1000;
+			int seconds = 60;
+			long seed = 42;
+			for (int i = 3; i < args.length; ++i){
+				if (args[i].equals("-customers")){
+					customers = Integer.parseInt(args[++i]);
+				}else if (args[i].equals("-seconds")){
+					seconds = Integer.parseInt(args[++i]);
+				}else if (args[i].equals("-thinkMs")){
+					driver._thinkMs = Long.parseLong(args[++i]);
+				}else if (args[i].equals("-mix")){
+					driver.setMix(args[++i]);
+				}else if (args[i].equals("-hotShows")){
+					driver._hotShows = Integer.parseInt(args[++i]);
+				}else if (args[i].equals("-hotShare")){
+					driver._hotShare = Double.parseDouble(args[++i]);
+				}else if (args[i].equals("-seed")){
+					seed = Long.parseLong(args[++i]);
+				}else{
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}//end if
+			}//end for
+			driver.sample(seed);
+			driver.run(customers, seconds, seed);
+			driver.report(seconds);
+			clean = driver.audit();
+		}finally{
+			esql.cleanup();
+		}
+		System.exit(clean ? 0 : 1);
+	}
+
+	void sample(long seed) throws SQLException {
+		String s = String.valueOf(seed);
+		this._shows = this._esql.executeQueryAndReturnResult(
+			"SELECT s.sid, s.sdate, s.sttime FROM shows s "
+			+ "WHERE EXISTS (SELECT 1 FROM showseats ss WHERE ss.sid = s.sid AND ss.bid IS NULL) "
+			+ "ORDER BY md5(s.sid::text || ?::text) LIMIT 1000", s);
+		this._titles = this._esql.executeQueryAndReturnResult(
+			"SELECT m.title FROM movies m WHERE EXISTS (SELECT 1 FROM shows s WHERE s.mvid = m.mvid) "
+			+ "ORDER BY md5(m.mvid::text || ?::text) LIMIT 1000", s);
+		this._emails = this._esql.executeQueryAndReturnResult(
+			"SELECT email FROM users ORDER BY md5(email || ?::text) LIMIT 10000", s);
+		if (this._shows.isEmpty() || this._titles.isEmpty() || this._emails.isEmpty()){
+			throw new SQLException("Nothing to sample; load a data set first");
+		}//end if
+		this._hotShows = Math.max(1, Math.min(this._hotShows, this._shows.size()));
+	}
+
+	/**
+	 * Creates one thread per customer: a virtual thread on JVMs that have
+	 * them (21 and later), otherwise a platform thread.
+	 */
+	static ExecutorService newCustomerExecutor(int customers){
+		try{
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			System.out.println("# " + customers + " customers on virtual threads");
+			return (ExecutorService) virtual.invoke(null);
+		}catch (ReflectiveOperationException e){
+			System.out.println("# " + customers + " customers on platform threads (no virtual threads in this JVM)");
+			return Executors.newFixedThreadPool(customers);
+		}//end try
+	}
+
+	void run(int customers, int seconds, long seed) throws InterruptedException {
+		System.out.println("# pool " + Ticketmaster.POOL_MAX + " connections, mix " + mixString()
+			+ ", " + this._hotShows + " hot shows get " + Math.round(this._hotShare * 100) + "% of bookings"
+			+ ", think " + this._thinkMs + " ms");
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		SplittableRandom root = new SplittableRandom(seed);
+		ExecutorService executor = newCustomerExecutor(customers);
+		for (int c = 0; c < customers; ++c){
+			final SplittableRandom r = root.split();
+			executor.execute(() -> customer(r, end));
+		}//end for
+		executor.shutdown();
+		long started = System.nanoTime();
+		long lastOps = 0;
+		while (!executor.awaitTermination(5, TimeUnit.SECONDS)){
+			long ops = totalCalls();
+			System.out.printf("# %3d s  %8.1f ops/s%n", (System.nanoTime() - started) / 1000000000L, (ops - lastOps) / 5.0);
+			lastOps = ops;
+		}//end while
+	}
+
+	private String mixString(){
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < ACTIONS.length; ++i){
+			s.append(i == 0 ? "" : ",").append(ACTIONS[i]).append('=').append(this._mix[i]);
+		}//end for
+		return s.toString();
+	}
+
+	private long totalCalls(){
+		long total = 0;
+		for (ActionStats s : this._stats.values()){
+			total += s.latency.getCount();
+		}//end for
+		return total;
+	}
+
+	/**
+	 * One customer's loop.
+	 */
+	private void customer(SplittableRandom r, long end){
+		List<Booking> mine = new ArrayList<Booking>();
+		String email = this._emails.get(r.nextInt(this._emails.size())).get(0);
+		int totalWeight = 0;
+		for (int w : this._mix){
+			totalWeight += w;
+		}//end for
+		while (System.nanoTime() < end){
+			if (this._thinkMs > 0){
+				try{
+					Thread.sleep((long) (-Math.log(1 - r.nextDouble()) * this._thinkMs));
+				}catch (InterruptedException e){
+					return;
+				}//end try
+			}//end if
+			int pick = r.nextInt(Math.max(1, totalWeight));
+			int action = 0;
+			while (action < ACTIONS.length - 1 && pick >= this._mix[action]){
+				pick -= this._mix[action++];
+			}//end while
+			act(ACTIONS[action], r, email, mine);
+		}//end while
+	}
+
+	private void act(String action, SplittableRandom r, String email, List<Booking> mine){
+		ActionStats stats = this._stats.get(action);
+		this._esql.getMetrics().beginOperation(action);
+		long started = System.nanoTime();
+		boolean failed = false;
+		try{
+			boolean accepted;
+			if (action.equals("book")){
+				accepted = book(r, email, mine);
+			}else if (action.equals("change")){
+				accepted = change(r, email, mine);
+			}else if (action.equals("remove")){
+				accepted = remove(r, email, mine);
+			}else{
+				accepted = browse(r, email);
+			}//end if
+			(accepted ? stats.ok : stats.rejected).increment();
+		}catch (SQLException e){
+			failed = true;
+			if ("40P01".equals(e.getSQLState())){
+				stats.deadlocks.increment();
+			}else if ("40001".equals(e.getSQLState())){
+				stats.serialization.increment();
+			}else{
+				stats.errors.increment();
+				if (this._firstErrors.size() < 10){
+					this._firstErrors.add(action + ": [" + e.getSQLState() + "] " + e.getMessage());
+				}//end if
+			}//end if
+		}finally{
+			stats.latency.record(System.nanoTime() - started);
+			this._esql.getMetrics().endOperation(failed);
+		}
+	}
+
+	private long pickShow(SplittableRandom r){
+		int i = r.nextDouble() < this._hotShare ? r.nextInt(this._hotShows) : r.nextInt(this._shows.size());
+		return Long.parseLong(this._shows.get(i).get(0));
+	}
+
+	private boolean book(SplittableRandom r, String email, List<Booking> mine) throws SQLException {
+		long sid = pickShow(r);
+		// parties of one to four, looking from a random place in the theater
+		int[] seats = this._esql.seats.findFree(sid, 1 + r.nextInt(4), r.nextInt(1 << 16));
+		if (seats.length == 0){
+			return false;
+		}//end if
+		long bid = Ticketmaster.AddBooking(this._esql, email, sid, seats, r.nextInt(4) == 0 ? "Pending" : "Paid");
+		if (bid < 0){
+			return false;
+		}//end if
+		Booking booking = new Booking(bid, sid, seats);
+		mine.add(booking);
+		this._bookings.add(booking);
+		return true;
+	}
+
+	private boolean change(SplittableRandom r, String email, List<Booking> mine) throws SQLException {
+		Booking booking = pickOwn(r, mine);
+		if (booking == null){
+			return book(r, email, mine);
+		}//end if
+		int k = r.nextInt(booking.seats.length);
+		int[] free = this._esql.seats.findFree(booking.sid, 1, r.nextInt(1 << 16));
+		if (free.length == 0){
+			return false;
+		}//end if
+		String error = Ticketmaster.ChangeSeatsForBooking(this._esql, booking.bid,
+			new int[]{booking.seats[k]}, new int[]{free[0]});
+		if (error != null){
+			return false;
+		}//end if
+		int[] seats = booking.seats.clone();
+		seats[k] = free[0];
+		booking.seats = seats;
+		return true;
+	}
+
+	private boolean remove(SplittableRandom r, String email, List<Booking> mine) throws SQLException {
+		Booking booking = pickOwn(r, mine);
+		if (booking == null){
+			return book(r, email, mine);
+		}//end if
+		Ticketmaster.RemovePayment(this._esql, booking.bid);
+		booking.cancelled = true;
+		return true;
+	}
+
+	private static Booking pickOwn(SplittableRandom r, List<Booking> mine){
+		List<Booking> active = new ArrayList<Booking>();
+		for (Booking b : mine){
+			if (!b.cancelled){
+				active.add(b);
+			}//end if
+		}//end for
+		return active.isEmpty() ? null : active.get(r.nextInt(active.size()));
+	}
+
+	/**
+	 * One of the browse options 9, 10, 11, 12 and 13 of the menu.
+	 */
+	private boolean browse(SplittableRandom r, String email) throws SQLException {
+		List<String> show = this._shows.get(r.nextInt(this._shows.size()));
+		String title = this._titles.get(r.nextInt(this._titles.size())).get(0);
+		switch (r.nextInt(5)){
+			case 0:
+				Ticketmaster.ListTheatersPlayingShow(this._esql, title, Ticketmaster.DISCARD_ROWS);
+				break;
+			case 1:
+				Ticketmaster.ListShowsStartingOnTimeAndDate(this._esql, show.get(1), show.get(2), Ticketmaster.DISCARD_ROWS);
+				break;
+			case 2:
+				Ticketmaster.ListUsersWithPendingBooking(this._esql, "", Ticketmaster.PAGE_SIZE, Ticketmaster.DISCARD_ROWS);
+				break;
+			case 3:
+				String[] words = title.split("\\s+");
+				Ticketmaster.SearchMovieTitles(this._esql, words[r.nextInt(words.length)], null, null, 0,
+					Ticketmaster.PAGE_SIZE, Ticketmaster.DISCARD_ROWS);
+				break;
+			default:
+				String to = java.sql.Date.valueOf(show.get(1)).toLocalDate().plusDays(30).toString();
+				Ticketmaster.ListMovieAndShowInfoAtCinemaInDateRange(this._esql, title, show.get(1), to, Ticketmaster.DISCARD_ROWS);
+				break;
+		}
+		return true;
+	}
+
+	void report(int seconds){
+		System.out.println("action\tcalls\tops/s\tp50(ms)\tp99(ms)\tp999(ms)\tok\trejected\tdeadlocks\tserialization\terrors");
+		long calls = 0;
+		for (String action : ACTIONS){
+			ActionStats s = this._stats.get(action);
+			calls += s.latency.getCount();
+			System.out.println(String.format("%s\t%d\t%.1f\t%.3f\t%.3f\t%.3f\t%d\t%d\t%d\t%d\t%d", action,
+				s.latency.getCount(), s.latency.getCount() / (double) seconds,
+				s.latency.percentileMicros(0.50) / 1000.0, s.latency.percentileMicros(0.99) / 1000.0,
+				s.latency.percentileMicros(0.999) / 1000.0, s.ok.sum(), s.rejected.sum(), s.deadlocks.sum(),
+				s.serialization.sum(), s.errors.sum()));
+		}//end for
+		System.out.println(String.format("total\t%d\t%.1f", calls, calls / (double) seconds));
+		for (String error : this._firstErrors){
+			System.out.println("# " + error);
+		}//end for
+	}
+
+	/**
+	 * Checks that no seat was sold twice.
+	 *
+	 * @return true when nothing was found
+	 */
+	boolean audit() throws SQLException {
+		boolean clean = true;
+
+		List<List<String>> duplicates = this._esql.executeQueryAndReturnResult(
+			"SELECT sid, csid, count(*) FROM showseats GROUP BY sid, csid HAVING count(*) > 1 LIMIT 10");
+		if (!duplicates.isEmpty()){
+			clean = false;
+			System.out.println("AUDIT FAIL: ShowSeats rows share a (sid, csid): " + duplicates);
+		}//end if
+
+		// seats two customers were told they have
+		Map<String, Long> claims = new HashMap<String, Long>();
+		List<Long> active = new ArrayList<Long>();
+		int doubleBooked = 0;
+		for (Booking b : this._bookings){
+			if (b.cancelled){
+				continue;
+			}//end if
+			active.add(b.bid);
+			for (int sno : b.seats){
+				Long other = claims.put(b.sid + "/" + sno, b.bid);
+				if (other != null){
+					++doubleBooked;
+					if (doubleBooked <= 10){
+						System.out.println("AUDIT FAIL: seat " + sno + " of show " + b.sid + " sold to bookings "
+							+ other + " and " + b.bid);
+					}//end if
+				}//end if
+			}//end for
+		}//end for
+		if (doubleBooked > 0){
+			clean = false;
+		}//end if
+
+		// what the database assigned to the run's bookings
+		long[] bids = new long[active.size()];
+		for (int i = 0; i < bids.length; ++i){
+			bids[i] = active.get(i);
+		}//end for
+		List<List<String>> mismatched = this._esql.executeQueryAndReturnResult(
+			"SELECT b.bid, b.seats, count(ss.ssid) FROM bookings b LEFT JOIN showseats ss ON ss.bid = b.bid "
+			+ "WHERE b.bid = ANY(?::bigint[]) GROUP BY b.bid, b.seats HAVING count(ss.ssid) <> b.seats LIMIT 10",
+			Ticketmaster.toArrayLiteral(bids));
+		if (!mismatched.isEmpty()){
+			clean = false;
+			System.out.println("AUDIT FAIL: bookings holding the wrong number of seats (bid, booked, held): " + mismatched);
+		}//end if
+
+		System.out.println(clean
+			? "AUDIT OK: " + bids.length + " bookings of this run, no seat sold twice"
+			: "AUDIT FAILED");
+		return clean;
+	}
+}
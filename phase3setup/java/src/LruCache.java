@@ -0,0 +1,106 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A size-bounded map that evicts its least recently used entry when full
+ * and drops entries older than a time-to-live. All methods are
+ * synchronized, so one cache can be shared by every terminal thread.
+ *
+ * Read-through callers take generation() before loading a missing value
+ * and store it with put(key, value, generation): if the key was
+ * invalidated while the load ran, the possibly stale value is discarded.
+ *
+ */
+
+public class LruCache<K, V>{
+	private final long _ttl;		//	ms an entry stays valid; 0 or less never expires
+	private final LinkedHashMap<K, Entry<V>> _entries;
+	private long _generation = 0;	//	bumped by every invalidation
+	private long _hits = 0;
+	private long _misses = 0;
+
+	private static final class Entry<V>{
+		final V value;
+		final long loadedAt;
+
+		Entry(V value, long loadedAt){
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	public LruCache(final int capacity, long ttl){
+		if (capacity < 1){
+			throw new IllegalArgumentException("Invalid cache capacity: " + capacity);
+		}//end if
+		this._ttl = ttl;
+		// access-ordered map: iteration starts at the least recently used entry
+		this._entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest){
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value, or null when it is missing or has expired
+	 */
+	public synchronized V get(K key){
+		Entry<V> entry = this._entries.get(key);
+		if (entry != null && this._ttl > 0 && System.currentTimeMillis() - entry.loadedAt > this._ttl){
+			this._entries.remove(key);
+			entry = null;
+		}//end if
+		if (entry == null){
+			++this._misses;
+			return null;
+		}//end if
+		++this._hits;
+		return entry.value;
+	}
+
+	public synchronized void put(K key, V value){
+		this._entries.put(key, new Entry<V>(value, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Stores a value loaded after generation() returned the given value,
+	 * unless something was invalidated in the meantime.
+	 *
+	 * @return false when the value was discarded
+	 */
+	public synchronized boolean put(K key, V value, long generation){
+		if (generation != this._generation){
+			return false;
+		}//end if
+		put(key, value);
+		return true;
+	}
+
+	public synchronized long generation(){
+		return this._generation;
+	}
+
+	public synchronized void invalidate(K key){
+		++this._generation;
+		this._entries.remove(key);
+	}
+
+	public synchronized void clear(){
+		++this._generation;
+		this._entries.clear();
+	}
+
+	public synchronized int size(){
+		return this._entries.size();
+	}
+
+	public synchronized long getHits(){
+		return this._hits;
+	}
+
+	public synchronized long getMisses(){
+		return this._misses;
+	}
+}
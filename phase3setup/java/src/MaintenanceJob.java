@@ -0,0 +1,224 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * This class runs a bulk change to Bookings (cancel, purge, ...) as a
+ * series of small transactions instead of one statement over the whole
+ * table, so live bookings are never blocked for long.
+ *
+ * Each batch is a single statement that picks up to BATCH_SIZE bookings
+ * with FOR UPDATE SKIP LOCKED, releases their ShowSeats, changes them, and
+ * returns one row: the number of bookings changed and a comma-separated
+ * list of the shows whose seats were released. The batch size is bound to
+ * the statement's last ? placeholder. Batches repeat until one changes
+ * nothing.
+ *
+ * Progress lives in the data itself (a changed booking no longer matches
+ * the batch predicate), so a job that is stopped or fails part way can
+ * simply be run again to finish the rest.
+ *
+ */
+
+public class MaintenanceJob implements Runnable{
+	// bookings changed per transaction
+	static final int BATCH_SIZE = Integer.getInteger("ticketmaster.maintenance.batchSize", 1000);
+	// pause between batches (ms), to leave room for live traffic
+	static final long PAUSE_MS = Long.getLong("ticketmaster.maintenance.pauseMs", 0L);
+	// run menu-triggered jobs on a background thread instead of waiting for them
+	static final boolean BACKGROUND = Boolean.getBoolean("ticketmaster.maintenance.background");
+	// times a batch is retried after a deadlock or serialization failure
+	static final int RETRIES = 3;
+
+	private static ExecutorService _executor = null;
+
+	private final Ticketmaster _esql;
+	private final String _name;
+	private final String _batchSql;
+	private final Object[] _params;
+
+	private boolean _quiet = false;
+	private volatile boolean _stopped = false;
+	private volatile long _rows = 0;
+	private volatile long _batches = 0;
+	private volatile long _started = 0;
+	private volatile long _finished = 0;
+	private volatile SQLException _error = null;
+
+	/**
+	 * @param esql the database to run against
+	 * @param name the job name used in progress reports
+	 * @param batchSql the batch statement; its last ? is the batch size
+	 * @param params values for the other ? placeholders, in order
+	 */
+	public MaintenanceJob(Ticketmaster esql, String name, String batchSql, Object... params){
+		this._esql = esql;
+		this._name = name;
+		this._batchSql = batchSql;
+		this._params = Arrays.copyOf(params, params.length + 1);
+		this._params[params.length] = BATCH_SIZE;
+	}
+
+	/**
+	 * Runs every batch, printing progress after each one. Errors are kept
+	 * for getError() instead of thrown, so the job can run on any thread.
+	 */
+	public void run(){
+		try{
+			runBatches();
+		}catch (SQLException e){
+			this._error = e;
+			System.err.println(this._name + " stopped: " + e.getMessage() + " (run it again to resume)");
+		}//end try
+	}
+
+	/**
+	 * Runs batches until one changes nothing or stop() is called.
+	 *
+	 * @return the total number of bookings changed
+	 * @throws java.sql.SQLException when a batch fails for good; earlier
+	 *         batches stay committed
+	 */
+	public long runBatches() throws SQLException {
+		this._started = System.nanoTime();
+		try{
+			while (!this._stopped){
+				long changed = runBatch();
+				if (changed == 0){
+					break;
+				}//end if
+				this._rows += changed;
+				++this._batches;
+				// stderr, so progress never mixes with results written to stdout
+				if (!this._quiet){
+					System.err.println(progress());
+				}//end if
+				if (PAUSE_MS > 0){
+					try{
+						Thread.sleep(PAUSE_MS);
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						break;
+					}//end try
+				}//end if
+			}//end while
+		}finally{
+			this._finished = System.nanoTime();
+		}
+		return this._rows;
+	}
+
+	/**
+	 * Runs one batch, retrying it after a deadlock or serialization failure.
+	 *
+	 * @return the number of bookings changed
+	 */
+	long runBatch() throws SQLException {
+		for (int attempt = 1; ; ++attempt){
+			try{
+				List<List<String>> result = this._esql.executeQueryAndReturnResult(this._batchSql, this._params);
+				this._esql.wrote();
+				long changed = Long.parseLong(result.get(0).get(0));
+				String shows = result.get(0).get(1);
+				if (shows != null && !shows.isEmpty()){
+					for (String sid : shows.split(",")){
+						this._esql.seats.invalidate(Long.parseLong(sid));
+					}//end for
+				}//end if
+				return changed;
+			}catch (SQLException e){
+				// 40P01 deadlock, 40001 serialization failure: the batch rolled back, try it again
+				boolean retryable = "40P01".equals(e.getSQLState()) || "40001".equals(e.getSQLState());
+				if (!retryable || attempt >= RETRIES){
+					throw e;
+				}//end if
+			}//end try
+		}//end for
+	}
+
+	/**
+	 * Stops runBatches() from printing progress, for jobs the application
+	 * runs on its own schedule.
+	 *
+	 * @return this job
+	 */
+	public MaintenanceJob quiet(){
+		this._quiet = true;
+		return this;
+	}
+
+	/**
+	 * Sets the rows per batch, for jobs that keep their transactions
+	 * shorter than ticketmaster.maintenance.batchSize.
+	 *
+	 * @param rows the value for the batch statement's last ?
+	 * @return this job
+	 */
+	public MaintenanceJob batchSize(int rows){
+		this._params[this._params.length - 1] = rows;
+		return this;
+	}
+
+	/**
+	 * Asks the job to stop after the batch in progress.
+	 */
+	public void stop(){
+		this._stopped = true;
+	}
+
+	/**
+	 * @return the rows changed so far and the rate, e.g. for a progress line
+	 */
+	public String progress(){
+		long end = this._finished > this._started ? this._finished : System.nanoTime();
+		double seconds = Math.max(1e-9, (end - this._started) / 1e9);
+		return String.format("%s: %d rows in %d batches (%.0f rows/s)",
+			this._name, this._rows, this._batches, this._rows / seconds);
+	}
+
+	public long getRows(){
+		return this._rows;
+	}
+
+	public SQLException getError(){
+		return this._error;
+	}
+
+	/**
+	 * Runs the job in the foreground, or hands it to the background
+	 * maintenance thread when ticketmaster.maintenance.background is set.
+	 *
+	 * @return true when the job ran to completion before returning
+	 * @throws java.sql.SQLException when a foreground job fails
+	 */
+	public boolean execute() throws SQLException {
+		if (BACKGROUND){
+			submit(this);
+			System.err.println(this._name + " started in the background");
+			return false;
+		}//end if
+		runBatches();
+		System.err.println(progress());
+		return true;
+	}
+
+	/**
+	 * Queues a job on the single background maintenance thread.
+	 */
+	public static synchronized void submit(MaintenanceJob job){
+		if (_executor == null){
+			_executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "maintenance");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}//end if
+		_executor.execute(job);
+	}
+}
@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * This class collects per-operation statistics for the Ticketmaster menu
+ * operations: a latency histogram for each operation and for the
+ * statements it issues, the number of statements and database round trips,
+ * and the number of rows returned.
+ *
+ * The operation a thread is working on is tracked with beginOperation() /
+ * endOperation(), so statements issued from several threads are attributed
+ * to the right menu action. Statements issued outside an operation are
+ * counted under "other".
+ *
+ * The counters can be written in the Prometheus text format with dump(),
+ * or served over HTTP with startServer().
+ *
+ */
+
+public class Metrics{
+	static final String NO_OPERATION = "other";
+
+	//operation each thread is currently running
+	private static final ThreadLocal<String> _current = new ThreadLocal<String>();
+	//start time (ns) of the current operation of each thread
+	private static final ThreadLocal<Long> _started = new ThreadLocal<Long>();
+
+	private final ConcurrentHashMap<String, OperationStats> _operations = new ConcurrentHashMap<String, OperationStats>();
+	private HttpServer _server = null;
+
+	/**
+	 * Latency histogram with power-of-two microsecond buckets. Bucket i
+	 * counts samples in [2^(i-1), 2^i) us; the last bucket is open ended.
+	 */
+	static class Histogram{
+		static final int BUCKETS = 32;
+		private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _sumMicros = new LongAdder();
+
+		void record(long nanos){
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			this._counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			this._count.increment();
+			this._sumMicros.add(micros);
+		}
+
+		long getCount(){
+			return this._count.sum();
+		}
+
+		double getSumSeconds(){
+			return this._sumMicros.sum() / 1e6;
+		}
+
+		/**
+		 * @param bucket bucket index
+		 * @return the exclusive upper bound of the bucket, in microseconds
+		 */
+		static long upperBoundMicros(int bucket){
+			return 1L << bucket;
+		}
+
+		/**
+		 * Estimates a percentile as the upper bound of the bucket that
+		 * contains it.
+		 *
+		 * @param p percentile between 0 and 1
+		 * @return the estimate in microseconds, or 0 with no samples
+		 */
+		long percentileMicros(double p){
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; ++i){
+				counts[i] = this._counts.get(i);
+				total += counts[i];
+			}//end for
+			if (total == 0){
+				return 0;
+			}//end if
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i){
+				seen += counts[i];
+				if (seen >= rank){
+					return upperBoundMicros(i);
+				}//end if
+			}//end for
+			return upperBoundMicros(BUCKETS - 1);
+		}
+	}
+
+	/**
+	 * Counters for one menu operation.
+	 */
+	static class OperationStats{
+		final Histogram latency = new Histogram();			//	whole operation
+		final Histogram statementLatency = new Histogram();	//	each statement it issued
+		final LongAdder statements = new LongAdder();
+		final LongAdder roundTrips = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder slowStatements = new LongAdder();
+	}
+
+	/**
+	 * Marks the start of a menu operation on the calling thread.
+	 *
+	 * @param operation the operation name, e.g. "AddBooking"
+	 */
+	public void beginOperation(String operation){
+		_current.set(operation);
+		_started.set(System.nanoTime());
+	}
+
+	/**
+	 * Marks the end of the calling thread's current operation and records
+	 * its latency.
+	 *
+	 * @param failed true when the operation ended with an error
+	 */
+	public void endOperation(boolean failed){
+		String operation = _current.get();
+		Long started = _started.get();
+		_current.remove();
+		_started.remove();
+		if (operation == null || started == null){
+			return;
+		}//end if
+		OperationStats stats = stats(operation);
+		stats.latency.record(System.nanoTime() - started);
+		if (failed){
+			stats.errors.increment();
+		}//end if
+	}
+
+	/**
+	 * @return the operation the calling thread is running, or "other"
+	 */
+	public static String currentOperation(){
+		String operation = _current.get();
+		return operation == null ? NO_OPERATION : operation;
+	}
+
+	/**
+	 * Records one executed statement against the calling thread's operation.
+	 *
+	 * @param nanos time spent executing and reading the statement
+	 * @param rows rows returned or affected
+	 * @param roundTrips database round trips the statement needed
+	 * @param slow true when the statement exceeded the slow-query threshold
+	 */
+	public void recordStatement(long nanos, long rows, long roundTrips, boolean slow){
+		OperationStats stats = stats(currentOperation());
+		stats.statementLatency.record(nanos);
+		stats.statements.increment();
+		stats.roundTrips.add(roundTrips);
+		stats.rows.add(rows);
+		if (slow){
+			stats.slowStatements.increment();
+		}//end if
+	}
+
+	private OperationStats stats(String operation){
+		OperationStats stats = this._operations.get(operation);
+		if (stats == null){
+			this._operations.putIfAbsent(operation, new OperationStats());
+			stats = this._operations.get(operation);
+		}//end if
+		return stats;
+	}
+
+	/**
+	 * Writes every counter in the Prometheus text exposition format.
+	 *
+	 * @param out where to write the metrics
+	 */
+	public void dump(Writer out){
+		PrintWriter pw = new PrintWriter(out);
+		Map<String, OperationStats> sorted = new TreeMap<String, OperationStats>(this._operations);
+
+		pw.println("# TYPE ticketmaster_operation_seconds histogram");
+		for (Map.Entry<String, OperationStats> e : sorted.entrySet()){
+			writeHistogram(pw, "ticketmaster_operation_seconds", e.getKey(), e.getValue().latency);
+		}//end for
+		pw.println("# TYPE ticketmaster_statement_seconds histogram");
+		for (Map.Entry<String, OperationStats> e : sorted.entrySet()){
+			writeHistogram(pw, "ticketmaster_statement_seconds", e.getKey(), e.getValue().statementLatency);
+		}//end for
+		writeCounter(pw, sorted, "ticketmaster_statements_total", s -> s.statements);
+		writeCounter(pw, sorted, "ticketmaster_round_trips_total", s -> s.roundTrips);
+		writeCounter(pw, sorted, "ticketmaster_rows_total", s -> s.rows);
+		writeCounter(pw, sorted, "ticketmaster_operation_errors_total", s -> s.errors);
+		writeCounter(pw, sorted, "ticketmaster_slow_statements_total", s -> s.slowStatements);
+		pw.flush();
+	}
+
+	/**
+	 * @return the metrics in the Prometheus text format
+	 */
+	public String dump(){
+		StringWriter out = new StringWriter();
+		dump(out);
+		return out.toString();
+	}
+
+	/**
+	 * Prints a human-readable latency summary for each operation.
+	 */
+	public void printSummary(){
+		System.out.println("operation\tcount\tp50(ms)\tp99(ms)\tstatements\troundtrips\trows");
+		for (Map.Entry<String, OperationStats> e : new TreeMap<String, OperationStats>(this._operations).entrySet()){
+			OperationStats s = e.getValue();
+			System.out.println(e.getKey() + "\t" + s.latency.getCount()
+				+ "\t" + s.latency.percentileMicros(0.50) / 1000.0
+				+ "\t" + s.latency.percentileMicros(0.99) / 1000.0
+				+ "\t" + s.statements.sum() + "\t" + s.roundTrips.sum() + "\t" + s.rows.sum());
+		}//end for
+	}
+
+	private static void writeHistogram(PrintWriter pw, String name, String operation, Histogram h){
+		long cumulative = 0;
+		for (int i = 0; i < Histogram.BUCKETS - 1; ++i){
+			cumulative += h._counts.get(i);
+			pw.println(name + "_bucket{operation=\"" + operation + "\",le=\""
+				+ (Histogram.upperBoundMicros(i) / 1e6) + "\"} " + cumulative);
+		}//end for
+		pw.println(name + "_bucket{operation=\"" + operation + "\",le=\"+Inf\"} " + h.getCount());
+		pw.println(name + "_sum{operation=\"" + operation + "\"} " + h.getSumSeconds());
+		pw.println(name + "_count{operation=\"" + operation + "\"} " + h.getCount());
+	}
+
+	private static void writeCounter(PrintWriter pw, Map<String, OperationStats> sorted, String name,
+			Function<OperationStats, LongAdder> counter){
+		pw.println("# TYPE " + name + " counter");
+		for (Map.Entry<String, OperationStats> e : sorted.entrySet()){
+			pw.println(name + "{operation=\"" + e.getKey() + "\"} " + counter.apply(e.getValue()).sum());
+		}//end for
+	}
+
+	/**
+	 * Serves dump() at http://localhost:port/metrics from a daemon thread.
+	 *
+	 * @param port the TCP port to listen on
+	 * @throws java.io.IOException when the port cannot be bound
+	 */
+	public void startServer(int port) throws IOException {
+		this._server = HttpServer.create(new InetSocketAddress(port), 0);
+		this._server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = dump().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		this._server.start();
+	}
+
+	public void stopServer(){
+		if (this._server != null){
+			this._server.stop(0);
+			this._server = null;
+		}//end if
+	}
+}
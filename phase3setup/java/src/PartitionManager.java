@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * This class keeps the monthly partitions of a database converted with
+ * sql/partition.sql: it creates the partitions of the coming months ahead
+ * of time, and takes old months out of the live tables. Against a database
+ * that is not partitioned every method does nothing.
+ *
+ * start() creates the current month and -Dticketmaster.partitions.monthsAhead
+ * months after it, then checks again every day from a daemon thread.
+ * Operations that insert a show call ensureMonth() first, so a show can be
+ * added for any date.
+ *
+ * Usage: java PartitionManager <dbname> <port> <user> (-list | -ensure [months]
+ *        | -detach yyyy-mm | -archive yyyy-mm [-format csv|jsonl|tsv] [-dir path])
+ *
+ * -detach moves a month's shows, bookings, payments and show seats to
+ * tables in the archive schema; -archive then exports each of them to
+ * <dir>/<table>.<format> and drops it.
+ *
+ */
+
+public class PartitionManager{
+	// months created past the current one
+	static final int MONTHS_AHEAD = Integer.getInteger("ticketmaster.partitions.monthsAhead", 3);
+	// ms between checks for missing months
+	static final long CHECK_INTERVAL_MS = Long.getLong("ticketmaster.partitions.checkIntervalMs", 24 * 3600 * 1000L);
+	// the tables a detached month leaves in the archive schema
+	static final String[] ARCHIVED_TABLES = {"payments", "showseats", "bookings", "shows"};
+
+	static final String IS_PARTITIONED_SQL = "SELECT count(*) FROM pg_class WHERE oid = to_regclass('shows') AND relkind = 'p'";
+	static final String CREATE_SQL = "SELECT create_show_partitions(?::date, ?)";
+	static final String DETACH_SQL = "SELECT detach_show_partitions(?::date)";
+	static final String LIST_SQL = "SELECT n.nspname AS schema, c.relname AS partition, " +
+			"COALESCE(pg_get_expr(c.relpartbound, c.oid), 'DETACHED') AS bounds, c.reltuples::bigint AS estimated_rows " +
+			"FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace " +
+			"WHERE c.relkind = 'r' AND c.relname ~ '^(shows|bookings|payments|showseats|showschedule)_y[0-9]{4}m[0-9]{2}$' " +
+			"ORDER BY substring(c.relname from '_y.*$'), c.relname";
+
+	private final Ticketmaster _esql;
+	private volatile Boolean _partitioned = null;
+	// months known to have their partitions
+	private final Set<YearMonth> _ensured = ConcurrentHashMap.newKeySet();
+	private volatile Thread _scheduler = null;
+
+	public PartitionManager(Ticketmaster esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * @return true when Shows is a partitioned table; checked once
+	 */
+	public boolean isPartitioned() throws SQLException {
+		Boolean partitioned = this._partitioned;
+		if (partitioned == null){
+			List<List<String>> result = this._esql.executeQueryAndReturnResult(IS_PARTITIONED_SQL);
+			partitioned = Integer.parseInt(result.get(0).get(0)) > 0;
+			this._partitioned = partitioned;
+		}//end if
+		return partitioned;
+	}
+
+	/**
+	 * Creates the missing partitions of the given number of months,
+	 * starting with the month of from.
+	 *
+	 * @return the number of partitions created
+	 */
+	public int ensure(YearMonth from, int months) throws SQLException {
+		if (!isPartitioned()){
+			return 0;
+		}//end if
+		List<List<String>> result = this._esql.executeQueryAndReturnResult(CREATE_SQL, from.atDay(1).toString(), months);
+		this._esql.wrote();
+		for (int i = 0; i < months; ++i){
+			this._ensured.add(from.plusMonths(i));
+		}//end for
+		return Integer.parseInt(result.get(0).get(0));
+	}
+
+	/**
+	 * Creates the current month and MONTHS_AHEAD months after it.
+	 *
+	 * @return the number of partitions created
+	 */
+	public int ensureAhead() throws SQLException {
+		return ensure(YearMonth.now(), MONTHS_AHEAD + 1);
+	}
+
+	/**
+	 * Makes sure a show can be inserted for the given date. Dates that do
+	 * not parse are left for the insert itself to reject.
+	 *
+	 * @param sdate the show date, yyyy-mm-dd
+	 */
+	public void ensureMonth(String sdate) throws SQLException {
+		if (sdate == null){
+			return;
+		}//end if
+		YearMonth month;
+		try{
+			month = YearMonth.from(LocalDate.parse(sdate.trim()));
+		}catch (DateTimeParseException e){
+			return;
+		}//end try
+		if (!this._ensured.contains(month)){
+			ensure(month, 1);
+		}//end if
+	}
+
+	/**
+	 * Takes a month out of the live tables into the archive schema (see
+	 * detach_show_partitions() in partition.sql).
+	 *
+	 * @return the number of partitions detached, 0 when the month had none
+	 */
+	public int detach(YearMonth month) throws SQLException {
+		if (!isPartitioned()){
+			return 0;
+		}//end if
+		List<List<String>> result = this._esql.executeQueryAndReturnResult(DETACH_SQL, month.atDay(1).toString());
+		this._esql.wrote();
+		this._ensured.remove(month);
+		this._esql.reference.showingsChanged();
+		return Integer.parseInt(result.get(0).get(0));
+	}
+
+	/**
+	 * Exports the tables of a detached month from the archive schema to
+	 * <dir>/<table>_yYYYYmMM.<format>, dropping each table once it is
+	 * written.
+	 *
+	 * @return the number of rows exported
+	 */
+	public long archive(YearMonth month, String format, String dir) throws IOException, SQLException {
+		String suffix = String.format("_y%04dm%02d", month.getYear(), month.getMonthValue());
+		long rows = 0;
+		for (String table : ARCHIVED_TABLES){
+			String name = table + suffix;
+			List<List<String>> exists = this._esql.executeQueryAndReturnResult(
+					"SELECT count(*) FROM pg_tables WHERE schemaname = 'archive' AND tablename = ?", name);
+			if (Integer.parseInt(exists.get(0).get(0)) == 0){
+				continue;
+			}//end if
+			ResultWriter out = ResultWriter.open(format, new File(dir, name + "." + format).getPath(), false);
+			try{
+				rows += this._esql.executeQueryAndStream("SELECT * FROM archive." + name, out);
+			}finally{
+				out.close();
+			}//end try
+			this._esql.executeUpdate("DROP TABLE archive." + name);
+		}//end for
+		return rows;
+	}
+
+	/**
+	 * Creates the months ahead now, then every CHECK_INTERVAL_MS from a
+	 * daemon thread, when the database is partitioned.
+	 */
+	public synchronized void start() throws SQLException {
+		if (!isPartitioned() || this._scheduler != null){
+			return;
+		}//end if
+		ensureAhead();
+		Thread scheduler = new Thread(new Runnable(){
+			public void run(){
+				schedule();
+			}
+		}, "partition-scheduler");
+		scheduler.setDaemon(true);
+		this._scheduler = scheduler;
+		scheduler.start();
+	}
+
+	public synchronized void stop(){
+		Thread scheduler = this._scheduler;
+		this._scheduler = null;
+		if (scheduler != null){
+			scheduler.interrupt();
+		}//end if
+	}
+
+	private void schedule(){
+		Thread self = Thread.currentThread();
+		while (this._scheduler == self){
+			try{
+				Thread.sleep(CHECK_INTERVAL_MS);
+				// a month may have been dropped by another process, so check them all again
+				this._ensured.clear();
+				ensureAhead();
+			}catch (InterruptedException e){
+				return;
+			}catch (SQLException e){
+				System.err.println("Unable to create partitions: " + e.getMessage());
+			}//end try
+		}//end while
+	}
+
+	public static void main(String[] args) throws Exception {
+		String usage = "Usage: java [-classpath <classpath>] " + PartitionManager.class.getName()
+			+ " <dbname> <port> <user> (-list | -ensure [months] | -detach yyyy-mm"
+			+ " | -archive yyyy-mm [-format csv|jsonl|tsv] [-dir path])";
+		if (args.length < 4){
+			System.err.println(usage);
+			return;
+		}//end if
+		String command = args[3];
+		String argument = args.length > 4 && !args[4].startsWith("-") ? args[4] : null;
+		String format = "csv";
+		String dir = ".";
+		for (int i = argument == null ? 4 : 5; i < args.length; ++i){
+			if (args[i].equals("-format")){
+				format = args[++i];
+			}else if (args[i].equals("-dir")){
+				dir = args[++i];
+			}else{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}//end if
+		}//end for
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			PartitionManager partitions = esql.partitions;
+			if (!partitions.isPartitioned() && !command.equals("-list")){
+				System.err.println("Shows is not partitioned; run sql/partition.sql first");
+				System.exit(1);
+			}//end if
+			if (command.equals("-list")){
+				esql.executeQueryAndPrintResult(LIST_SQL);
+			}else if (command.equals("-ensure")){
+				int months = argument == null ? MONTHS_AHEAD + 1 : Integer.parseInt(argument);
+				System.out.println(partitions.ensure(YearMonth.now(), months) + " partition(s) created");
+			}else if (command.equals("-detach") && argument != null){
+				System.out.println(partitions.detach(YearMonth.parse(argument)) + " partition(s) detached");
+			}else if (command.equals("-archive") && argument != null){
+				System.out.println(partitions.archive(YearMonth.parse(argument), format, dir) + " row(s) archived");
+			}else{
+				System.err.println(usage);
+			}//end if
+		}catch (SQLException | IOException e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			esql.cleanup();
+		}//end try
+	}
+}
@@ -0,0 +1,222 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Plan regression check for the SQL issued by the Ticketmaster menu
+ * operations. Every statement is run through EXPLAIN with sample parameters
+ * taken from the database; a check fails when its plan
+ *
+ *  - sequentially scans a table with at least -minRows rows, or
+ *  - costs more than the recorded baseline plus -tolerance.
+ *
+ * Load a dataset of realistic size before running it: on the tiny bundled
+ * CSVs the planner rightly prefers sequential scans everywhere.
+ *
+ * Usage: java PlanCheck <dbname> <port> <user> [-record] [-baseline file]
+ *        [-minRows n] [-tolerance fraction]
+ *
+ * With -record the current costs are written as the new baseline.
+ *
+ */
+
+public class PlanCheck{
+	private static final Pattern COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+
+	/**
+	 * One statement of one operation, with the parameters to explain it with.
+	 */
+	static class Check{
+		final String name;
+		final String sql;
+		final Object[] params;
+
+		Check(String name, String sql, Object... params){
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + PlanCheck.class.getName()
+				+ " <dbname> <port> <user> [-record] [-baseline file] [-minRows n] [-tolerance fraction]");
+			return;
+		}//end if
+		boolean record = false;
+		String baselineFile = "../sql/plan_baseline.properties";
+		long minRows = 10000;
+		double tolerance = 0.25;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("-record")){
+				record = true;
+			}else if (args[i].equals("-baseline")){
+				baselineFile = args[++i];
+			}else if (args[i].equals("-minRows")){
+				minRows = Long.parseLong(args[++i]);
+			}else if (args[i].equals("-tolerance")){
+				tolerance = Double.parseDouble(args[++i]);
+			}else{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}//end if
+		}//end for
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		int failures = 0;
+		try{
+			Properties baseline = new Properties();
+			if (!record){
+				try{
+					InputStream in = new FileInputStream(baselineFile);
+					baseline.load(in);
+					in.close();
+				}catch (IOException e){
+					System.out.println("No baseline at " + baselineFile + "; only checking for sequential scans");
+				}//end try
+			}//end if
+
+			Properties costs = new Properties();
+			for (Check check : checks(esql)){
+				List<List<String>> plan = esql.executeQueryAndReturnResult("EXPLAIN " + check.sql, check.params);
+				List<String> problems = new ArrayList<String>();
+
+				Matcher m = COST.matcher(plan.get(0).get(0));
+				double cost = m.find() ? Double.parseDouble(m.group(1)) : 0;
+				costs.setProperty(check.name, String.valueOf(cost));
+
+				for (List<String> line : plan){
+					Matcher seq = SEQ_SCAN.matcher(line.get(0));
+					while (seq.find()){
+						long rows = tableRows(esql, seq.group(1));
+						if (rows >= minRows){
+							problems.add("seq scan on " + seq.group(1) + " (" + rows + " rows)");
+						}//end if
+					}//end while
+				}//end for
+
+				String expected = baseline.getProperty(check.name);
+				if (expected != null && cost > Double.parseDouble(expected) * (1 + tolerance)){
+					problems.add("cost " + cost + " exceeds baseline " + expected);
+				}//end if
+
+				if (problems.isEmpty()){
+					System.out.println("PASS\t" + check.name + "\tcost=" + cost);
+				}else{
+					++failures;
+					System.out.println("FAIL\t" + check.name + "\tcost=" + cost + "\t" + problems);
+					for (List<String> line : plan){
+						System.out.println("\t\t" + line.get(0));
+					}//end for
+				}//end if
+			}//end for
+
+			if (record){
+				OutputStream out = new FileOutputStream(baselineFile);
+				costs.store(out, "EXPLAIN total cost of each Ticketmaster statement (PlanCheck -record)");
+				out.close();
+				System.out.println("Baseline written to " + baselineFile);
+			}//end if
+		}finally{
+			esql.cleanup();
+		}
+		System.out.println(failures == 0 ? "All plans OK" : failures + " plan(s) failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Builds the statements of the 14 operations, with parameters sampled
+	 * from the loaded data so the planner sees realistic selectivity.
+	 */
+	static List<Check> checks(Ticketmaster esql) throws SQLException {
+		String title = sample(esql, "SELECT m.title FROM movies m, shows s WHERE s.mvid = m.mvid "
+			+ "GROUP BY m.title ORDER BY count(*) DESC LIMIT 1");
+		List<String> show = sampleRow(esql, "SELECT sid, sdate, sttime FROM shows LIMIT 1");
+		List<String> booking = sampleRow(esql, "SELECT bid, sid FROM bookings LIMIT 1");
+		String email = sample(esql, "SELECT email FROM bookings GROUP BY email ORDER BY count(*) DESC LIMIT 1");
+		String tname = sample(esql, "SELECT tname FROM theaters LIMIT 1");
+		long cid = Long.parseLong(sample(esql, "SELECT cid FROM theaters LIMIT 1"));
+		long sid = Long.parseLong(show.get(0));
+		String sdate = show.get(1);
+		long bid = Long.parseLong(booking.get(0));
+
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("AddUser", Ticketmaster.ADD_USER_SQL, "plancheck@example.com", "Check", "Plan", null, "x"));
+		checks.add(new Check("AddBooking.seats", SeatInventory.LOAD_SQL, sid));
+		checks.add(new Check("AddBooking.insert", Ticketmaster.ADD_BOOKING_SQL, 0L, "Pending", 1, sid, email));
+		checks.add(new Check("AddBooking.assign", SeatInventory.WRITE_THROUGH_SQL, bid, "{1}"));
+		checks.add(new Check("AddMovieShowingToTheater.movie", Ticketmaster.ADD_MOVIE_SQL,
+			0L, title, sdate, "United States", "", 0, "en", "Drama"));
+		checks.add(new Check("AddMovieShowingToTheater.show", Ticketmaster.ADD_SHOW_SQL, 0L, 0L, sdate, "10:00", "12:00"));
+		checks.add(new Check("AddMovieShowingToTheater.play", Ticketmaster.ADD_PLAY_SQL, 0L, 0L));
+		checks.add(new Check("CancelPendingBookings", Ticketmaster.CANCEL_PENDING_SQL, MaintenanceJob.BATCH_SIZE));
+		checks.add(new Check("RevenueReport", Ticketmaster.REVENUE_REPORT_SQL, sdate, sdate));
+		checks.add(new Check("RevenueReport.cinema", Ticketmaster.REVENUE_AT_CINEMA_REPORT_SQL, 1L, sdate, sdate));
+		checks.add(new Check("OccupancyReport", Ticketmaster.OCCUPANCY_REPORT_SQL, sdate, sdate));
+		checks.add(new Check("OccupancyReport.cinema", Ticketmaster.OCCUPANCY_AT_CINEMA_REPORT_SQL, 1L, sdate, sdate));
+		checks.add(new Check("Rollups.fold", Rollups.FOLD_SQL));
+		checks.add(new Check("Rollups.backfill", Rollups.BACKFILL_SQL, 0L, Rollups.CHUNK, 0L, Rollups.CHUNK,
+			0L, Rollups.CHUNK, 0L, Rollups.CHUNK, 0L, Rollups.CHUNK));
+		checks.add(new Check("BookingExpiry.expire", BookingExpiry.EXPIRE_BOOKINGS_SQL,
+			"{" + bid + "}", BookingExpiry.HOLD_MS, BookingExpiry.BATCH_SIZE));
+		checks.add(new Check("BookingExpiry.sweep", BookingExpiry.EXPIRE_OVERDUE_SQL,
+			BookingExpiry.HOLD_MS, BookingExpiry.BATCH_SIZE));
+		checks.add(new Check("BookingExpiry.recover", BookingExpiry.PENDING_SQL, BookingExpiry.HOLD_MS, BookingExpiry.HOLD_MS));
+		checks.add(new Check("ChangeSeatsForBooking.booking", Ticketmaster.BOOKING_SHOW_SQL, bid));
+		checks.add(new Check("ChangeSeatsForBooking.lockBooked", Ticketmaster.LOCK_BOOKED_SEATS_SQL, bid, "{1,2}"));
+		checks.add(new Check("ChangeSeatsForBooking.lockFree", Ticketmaster.LOCK_FREE_SEATS_SQL, sid, "{1,2}"));
+		checks.add(new Check("ChangeSeatsForBooking.swap", Ticketmaster.SWAP_SEATS_SQL, bid, "{1,2}"));
+		checks.add(new Check("RemovePayment.cancel", Ticketmaster.CANCEL_BOOKING_SQL, bid));
+		checks.add(new Check("RemovePayment.delete", Ticketmaster.DELETE_PAYMENT_SQL, bid));
+		checks.add(new Check("ClearCancelledBookings", Ticketmaster.CLEAR_CANCELLED_SQL, MaintenanceJob.BATCH_SIZE));
+		checks.add(new Check("RemoveShowsOnDate.bookings", Ticketmaster.CANCEL_BOOKINGS_ON_DATE_SQL,
+			sdate, tname, MaintenanceJob.BATCH_SIZE));
+		checks.add(new Check("RemoveShowsOnDate.plays", Ticketmaster.REMOVE_PLAYS_ON_DATE_SQL, sdate, tname));
+		checks.add(new Check("ListTheatersPlayingShow", Ticketmaster.THEATERS_PLAYING_SHOW_SQL, title));
+		checks.add(new Check("ListShowsStartingOnTimeAndDate", Ticketmaster.SHOWS_AT_TIME_AND_DATE_SQL, sdate, show.get(2)));
+		checks.add(new Check("ListMovieTitlesContainingLoveReleasedAfter2010", Ticketmaster.titleSearchSql(1, true, false),
+			"Love", "%love%", "2010-01-01", Ticketmaster.PAGE_SIZE, 0L));
+		checks.add(new Check("ListUsersWithPendingBooking", Ticketmaster.PENDING_USERS_SQL, "", Ticketmaster.PAGE_SIZE));
+		checks.add(new Check("ListMovieAndShowInfoAtCinemaInDateRange", Ticketmaster.MOVIE_SHOWS_IN_RANGE_SQL,
+			title, sdate, sdate));
+		checks.add(new Check("ListMovieAndShowInfoAtCinemaInDateRange.cinema", Ticketmaster.MOVIE_SHOWS_AT_CINEMA_IN_RANGE_SQL,
+			cid, sdate, sdate, title));
+		checks.add(new Check("ListBookingInfoForUser", Ticketmaster.USER_BOOKINGS_SQL, email,
+			Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE, Ticketmaster.PAGE_SIZE));
+		checks.add(new Check("Export.bookings", Export.BOOKINGS_REPORT_SQL, sdate, sdate));
+		checks.add(new Check("ReferenceCache.schedule", ReferenceCache.SCHEDULE_SQL, title));
+		return checks;
+	}
+
+	private static String sample(Ticketmaster esql, String query) throws SQLException {
+		return sampleRow(esql, query).get(0);
+	}
+
+	private static List<String> sampleRow(Ticketmaster esql, String query) throws SQLException {
+		List<List<String>> result = esql.executeQueryAndReturnResult(query);
+		if (result.isEmpty()){
+			throw new SQLException("No sample data for: " + query + " (load a dataset first)");
+		}//end if
+		return result.get(0);
+	}
+
+	/**
+	 * @return the planner's row estimate for a table
+	 */
+	private static long tableRows(Ticketmaster esql, String table) throws SQLException {
+		List<List<String>> result = esql.executeQueryAndReturnResult(
+			"SELECT reltuples::bigint FROM pg_class WHERE relname = ?", table.toLowerCase());
+		return result.isEmpty() ? 0 : Long.parseLong(result.get(0).get(0));
+	}
+}
@@ -0,0 +1,89 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+
+/**
+ * A physical database connection owned by a ConnectionPool. Keeps track of
+ * when it was last handed back so the pool only validates connections that
+ * have been sitting idle for a while, and owns the connection's cache of
+ * prepared statements.
+ *
+ */
+
+public class PooledConnection{
+	//reference to physical database connection
+	private final Connection _connection;
+	//time (ms) the connection was last returned to the pool
+	private long _lastUsed;
+	//set when a statement failed with a connection-level error
+	private boolean _broken = false;
+	//prepared statements of this connection, keyed by SQL text
+	private final StatementCache _statements;
+
+	public PooledConnection(Connection connection, int statementCacheSize){
+		this._connection = connection;
+		this._lastUsed = System.currentTimeMillis();
+		this._statements = new StatementCache(connection, statementCacheSize);
+	}
+
+	/**
+	 * @return the physical connection
+	 */
+	public Connection getConnection(){
+		return this._connection;
+	}
+
+	/**
+	 * Returns a cached prepared statement for the given SQL. The statement
+	 * stays owned by this connection and must not be closed by the caller.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @return the prepared statement
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return this._statements.prepare(sql);
+	}
+
+	public StatementCache getStatementCache(){
+		return this._statements;
+	}
+
+	public long getLastUsed(){
+		return this._lastUsed;
+	}
+
+	public void touch(){
+		this._lastUsed = System.currentTimeMillis();
+	}
+
+	public boolean isBroken(){
+		return this._broken;
+	}
+
+	/**
+	 * Marks the connection as unusable if the given error is a connection
+	 * exception (SQLSTATE class 08), so the pool discards it on release.
+	 *
+	 * @param e the error raised while using this connection
+	 */
+	public void checkError(SQLException e){
+		String state = e.getSQLState();
+		if (state != null && state.startsWith("08")){
+			this._broken = true;
+		}//end if
+	}
+
+	/**
+	 * Closes the physical connection, ignoring errors.
+	 */
+	public void close(){
+		this._statements.clear();
+		try{
+			this._connection.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+}
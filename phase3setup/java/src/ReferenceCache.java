@@ -0,0 +1,334 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+/**
+ * This class keeps the reference data the browse operations read over and
+ * over -- the schedule of each movie title: its shows, with the theater and
+ * cinema playing each -- in a bounded, expiring LRU cache, so a repeated
+ * search is answered without a database round trip. An entry is the
+ * title's rows of the trigger-maintained ShowSchedule (see create.sql),
+ * read with one range scan of showschedule_title_sdate_idx the first time
+ * the title is searched (read-through). The listing for one cinema is the
+ * same entry filtered by cid. Loads use the browse queries' read routing,
+ * so with read replicas (see ReplicaRouter) an entry may be loaded a
+ * moment old.
+ *
+ * Operations that change reference data report it with movieChanged() or
+ * showingsChanged(). The entries are evicted at once, and again when the
+ * enclosing transaction ends, so nothing another thread loaded before the
+ * commit survives it. A transaction that changed reference data reads
+ * around the cache until it ends, so it sees its own writes.
+ *
+ * Other Ticketmaster processes sharing the database are only seen once the
+ * entries expire, unless -Dticketmaster.cache.notify=true: each change is
+ * then also sent with NOTIFY, and a listener thread evicts what the other
+ * processes changed.
+ *
+ */
+
+public class ReferenceCache{
+	// set to false to send every browse query to the database
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("ticketmaster.cache.enabled", "true"));
+	// titles kept
+	static final int SIZE = Integer.getInteger("ticketmaster.cache.size", 10000);
+	// ms an entry is trusted; bounds how stale data changed elsewhere can get
+	static final long TTL_MS = Long.getLong("ticketmaster.cache.ttlMs", 300000L);
+	// LISTEN/NOTIFY invalidation between processes
+	static final boolean NOTIFY = Boolean.getBoolean("ticketmaster.cache.notify");
+	static final String CHANNEL = "ticketmaster_reference";
+	// ms the listener waits for notifications before checking whether it was stopped
+	static final int LISTEN_POLL_MS = 1000;
+
+	// every show of a title with the theater playing it, in date and time order
+	static final String SCHEDULE_SQL = "SELECT tname, title, duration, sdate, sttime, cid " +
+			"FROM showschedule " +
+			"WHERE title = ? " +
+			"ORDER BY sdate, sttime, sid, tid";
+	static final String NOTIFY_SQL = "SELECT pg_notify(?, ?)";
+
+	/**
+	 * One ShowSchedule row: a show and a theater playing it. Dates and
+	 * times are kept as the server's ISO text, which sorts chronologically.
+	 */
+	static final class Scheduled{
+		final String tname;
+		final String title;
+		final Integer duration;
+		final String sdate;
+		final String sttime;
+		final long cid;
+
+		Scheduled(String tname, String title, Integer duration, String sdate, String sttime, long cid){
+			this.tname = tname;
+			this.title = title;
+			this.duration = duration;
+			this.sdate = sdate;
+			this.sttime = sttime;
+			this.cid = cid;
+		}
+	}
+
+	private interface Loader<K, V>{
+		V load(K key) throws SQLException;
+	}
+
+	private final Ticketmaster _esql;
+	//title -> its schedule, in date and time order
+	private final LruCache<String, List<Scheduled>> _titles = new LruCache<String, List<Scheduled>>(SIZE, TTL_MS);
+	//changes made by the transaction each thread has open, evicted again when it ends
+	private final ThreadLocal<List<String>> _changes = new ThreadLocal<List<String>>();
+	private volatile Thread _listener = null;
+
+	public ReferenceCache(Ticketmaster esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * @return false when the caller must query the database instead
+	 */
+	private boolean usable(){
+		return ENABLED && this._changes.get() == null;
+	}
+
+	/**
+	 * Lists the theaters playing a movie and the start time of each show,
+	 * as Ticketmaster.THEATERS_PLAYING_SHOW_SQL does.
+	 *
+	 * @param out receives each (tname, sttime) row
+	 * @return the number of rows, or -1 when the cache cannot answer
+	 * @throws java.sql.SQLException when loading a missing entry failed
+	 */
+	public long theatersPlaying(String title, RowHandler out) throws SQLException {
+		if (!usable()){
+			return -1;
+		}//end if
+		ValuesRow row = new ValuesRow("tname", "sttime");
+		for (Scheduled show : getSchedule(title)){
+			row.set(show.tname, show.sttime);
+			out.handleRow(row);
+		}//end for
+		return row.getRowNumber();
+	}
+
+	/**
+	 * Lists the shows of a movie between two dates, inclusive, with the
+	 * theater playing each, as Ticketmaster.MOVIE_SHOWS_IN_RANGE_SQL and
+	 * MOVIE_SHOWS_AT_CINEMA_IN_RANGE_SQL do.
+	 *
+	 * @param cid only list the theaters of this cinema, or null for all
+	 * @param out receives each (tname, title, duration, sdate, sttime) row
+	 * @return the number of rows, or -1 when the cache cannot answer, e.g.
+	 *         because a date is not in yyyy-mm-dd form
+	 * @throws java.sql.SQLException when loading a missing entry failed
+	 */
+	public long showsInRange(Long cid, String title, String bgnRange, String endRange, RowHandler out) throws SQLException {
+		if (!usable()){
+			return -1;
+		}//end if
+		String from, to;
+		try{
+			from = LocalDate.parse(bgnRange.trim()).toString();
+			to = LocalDate.parse(endRange.trim()).toString();
+		}catch (DateTimeParseException e){
+			// let the server interpret (or reject) any other date format
+			return -1;
+		}//end try
+		ValuesRow row = new ValuesRow("tname", "title", "duration", "sdate", "sttime");
+		for (Scheduled show : getSchedule(title)){
+			if (show.sdate.compareTo(from) >= 0 && show.sdate.compareTo(to) <= 0
+					&& (cid == null || show.cid == cid.longValue())){
+				row.set(show.tname, show.title, show.duration, show.sdate, show.sttime);
+				out.handleRow(row);
+			}//end if
+		}//end for
+		return row.getRowNumber();
+	}
+
+	/**
+	 * @return the shows of the movies whose title is exactly the given one
+	 */
+	List<Scheduled> getSchedule(String title) throws SQLException {
+		return readThrough(this._titles, title, new Loader<String, List<Scheduled>>(){
+			public List<Scheduled> load(String key) throws SQLException {
+				final List<Scheduled> loaded = new ArrayList<Scheduled>();
+				_esql.executeReadQueryAndStream(SCHEDULE_SQL, new RowHandler(){
+					public void handleRow(Row row) throws SQLException {
+						loaded.add(new Scheduled(row.getString(1), row.getString(2), row.isNull(3) ? null : row.getInt(3),
+								row.getString(4), row.getString(5), row.getLong(6)));
+					}
+				}, key);
+				return Collections.unmodifiableList(loaded);
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached value, loading and caching it on a miss. Values
+	 * that do not exist are not cached.
+	 */
+	private <K, V> V readThrough(LruCache<K, V> cache, K key, Loader<K, V> loader) throws SQLException {
+		V value = cache.get(key);
+		if (value == null){
+			long generation = cache.generation();
+			value = loader.load(key);
+			if (value != null){
+				cache.put(key, value, generation);
+			}//end if
+		}//end if
+		return value;
+	}
+
+	/**
+	 * Reports that a movie was added or changed, which also changes the
+	 * shows listed for its title. Call it inside the transaction that made
+	 * the change.
+	 *
+	 * @throws java.sql.SQLException when the notification cannot be sent
+	 */
+	public void movieChanged(long mvid, String title) throws SQLException {
+		changed("movie " + mvid + " " + title);
+	}
+
+	/**
+	 * Reports that shows or plays were added or removed for movies that are
+	 * not known individually.
+	 *
+	 * @throws java.sql.SQLException when the notification cannot be sent
+	 */
+	public void showingsChanged() throws SQLException {
+		changed("showings");
+	}
+
+	private void changed(String change) throws SQLException {
+		evict(change);
+		if (this._esql.inTransaction()){
+			List<String> changes = this._changes.get();
+			if (changes == null){
+				changes = new ArrayList<String>();
+				this._changes.set(changes);
+			}//end if
+			changes.add(change);
+		}//end if
+		if (NOTIFY){
+			// inside a transaction the server delivers it on commit
+			this._esql.executeQueryAndStream(NOTIFY_SQL, Ticketmaster.DISCARD_ROWS, CHANNEL, change);
+		}//end if
+	}
+
+	/**
+	 * Called by Ticketmaster when the calling thread's transaction has
+	 * committed or rolled back. Evicts its changes once more, in case
+	 * another thread reloaded them before they were committed.
+	 */
+	void endTransaction(){
+		List<String> changes = this._changes.get();
+		if (changes != null){
+			this._changes.remove();
+			for (String change : changes){
+				evict(change);
+			}//end for
+		}//end if
+	}
+
+	/**
+	 * Applies a change description, "movie <mvid> <title>", "showings" or
+	 * anything else for everything.
+	 */
+	private void evict(String change){
+		String[] parts = change.split(" ", 3);
+		if (parts[0].equals("movie") && parts.length == 3 && parts[1].matches("[0-9]+")){
+			this._titles.invalidate(parts[2]);
+		}else if (parts[0].equals("showings")){
+			this._titles.clear();
+		}else{
+			invalidateAll();
+		}//end if
+	}
+
+	public void invalidateAll(){
+		this._titles.clear();
+	}
+
+	/**
+	 * @return hit and miss counts, e.g. for the metrics report
+	 */
+	public String stats(){
+		return "reference cache: " + this._titles.getHits() + " hits, " + this._titles.getMisses() + " misses";
+	}
+
+	/**
+	 * Starts the LISTEN thread when -Dticketmaster.cache.notify=true.
+	 */
+	public synchronized void start(){
+		if (!ENABLED || !NOTIFY || this._listener != null){
+			return;
+		}//end if
+		Thread listener = new Thread(new Runnable(){
+			public void run(){
+				listen();
+			}
+		}, "reference-cache-listener");
+		listener.setDaemon(true);
+		this._listener = listener;
+		listener.start();
+	}
+
+	public synchronized void stop(){
+		Thread listener = this._listener;
+		this._listener = null;
+		if (listener != null){
+			listener.interrupt();
+		}//end if
+	}
+
+	/**
+	 * Listens on a dedicated connection, reconnecting after errors. The
+	 * whole cache is dropped whenever listening (re)starts, since changes
+	 * made while nobody listened are lost.
+	 */
+	private void listen(){
+		Thread self = Thread.currentThread();
+		while (this._listener == self){
+			try{
+				Connection conn = this._esql.openConnection();
+				try{
+					Statement stmt = conn.createStatement();
+					stmt.execute("LISTEN " + CHANNEL);
+					stmt.close();
+					invalidateAll();
+					PGConnection pg = conn.unwrap(PGConnection.class);
+					while (this._listener == self){
+						PGNotification[] notifications = pg.getNotifications(LISTEN_POLL_MS);
+						if (notifications != null){
+							for (PGNotification notification : notifications){
+								evict(notification.getParameter());
+							}//end for
+						}//end if
+					}//end while
+				}finally{
+					conn.close();
+				}//end try
+			}catch (SQLException e){
+				if (this._listener != self){
+					return;
+				}//end if
+				System.err.println("Reference cache listener failed, retrying: " + e.getMessage());
+				try{
+					Thread.sleep(5000);
+				}catch (InterruptedException ie){
+					return;
+				}//end try
+			}//end try
+		}//end while
+	}
+}
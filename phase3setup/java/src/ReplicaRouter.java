@@ -0,0 +1,311 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class sends the read-only browse queries (see
+ * Ticketmaster.executeReadQueryAndStream) to streaming replicas of the
+ * database, listed as host:port pairs in -Dticketmaster.replicas, and
+ * everything else to the primary. Each replica gets its own ConnectionPool,
+ * and replicas are used round robin.
+ *
+ * A daemon thread checks every replica every HEALTH_INTERVAL_MS: it must
+ * answer, be in recovery, and have replayed the primary's WAL to within
+ * MAX_LAG_BYTES. A replica that fails the check, or loses its connection,
+ * gets no reads until it passes again; with no healthy replica the reads go
+ * to the primary.
+ *
+ * With -Dticketmaster.replicas.readYourWrites=true a thread (a terminal
+ * session) that has written reads only from replicas that have replayed the
+ * primary's WAL position at its first read after the write, so it always
+ * sees its own changes.
+ *
+ */
+
+public class ReplicaRouter{
+	// replica endpoints, host:port[,host:port...]; none routes everything to the primary
+	static final String REPLICAS = System.getProperty("ticketmaster.replicas", "");
+	static final long HEALTH_INTERVAL_MS = Long.getLong("ticketmaster.replicas.healthIntervalMs", 5000L);
+	// replay lag past which a replica is left out
+	static final long MAX_LAG_BYTES = Long.getLong("ticketmaster.replicas.maxLagBytes", 16L * 1024 * 1024);
+	static final boolean READ_YOUR_WRITES = Boolean.getBoolean("ticketmaster.replicas.readYourWrites");
+	// ms to wait for a replica connection before reading from the primary instead
+	static final long ACQUIRE_TIMEOUT = Long.getLong("ticketmaster.replicas.acquireTimeout", 1000L);
+	// seconds to wait for a replica to accept a connection
+	static final int CONNECT_TIMEOUT = Integer.getInteger("ticketmaster.replicas.connectTimeout", 2);
+
+	static final String PRIMARY_LSN_SQL = "SELECT pg_current_wal_lsn()::text";
+	static final String REPLICA_STATE_SQL = "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()::text";
+
+	private static final class Replica{
+		final String endpoint;
+		final ConnectionPool pool;
+		volatile boolean healthy = false;
+		volatile long replayed = -1;	//	replay LSN at the last check
+
+		Replica(String endpoint, ConnectionPool pool){
+			this.endpoint = endpoint;
+			this.pool = pool;
+		}
+	}
+
+	private final ConnectionPool _primary;
+	private final List<Replica> _replicas = new ArrayList<Replica>();
+	// replica connections checked out, and where they go back to
+	private final ConcurrentHashMap<PooledConnection, Replica> _borrowed = new ConcurrentHashMap<PooledConnection, Replica>();
+	private final AtomicInteger _next = new AtomicInteger();
+	// read-your-writes: the LSN this thread must see, and whether it has written since taking it
+	private final ThreadLocal<long[]> _session = new ThreadLocal<long[]>(){
+		protected long[] initialValue(){
+			return new long[]{-1, 0};
+		}
+	};
+	private final AtomicLong _replicaReads = new AtomicLong();
+	private final AtomicLong _primaryReads = new AtomicLong();
+	private volatile Thread _checker = null;
+
+	/**
+	 * @param primary the pool of the primary, read for its WAL position
+	 * @param url the primary's connection URL; each replica's replaces its host and port
+	 */
+	public ReplicaRouter(ConnectionPool primary, String url, String user, String passwd,
+			int maxSize, long validationInterval, int statementCacheSize){
+		this._primary = primary;
+		for (String endpoint : REPLICAS.split(",")){
+			endpoint = endpoint.trim();
+			if (endpoint.isEmpty()){
+				continue;
+			}//end if
+			String replicaUrl = url.replaceFirst("//[^/]*/", "//" + endpoint + "/") + "&connectTimeout=" + CONNECT_TIMEOUT;
+			this._replicas.add(new Replica(endpoint, new ConnectionPool(replicaUrl, user, passwd, 0, maxSize,
+					ACQUIRE_TIMEOUT, validationInterval, statementCacheSize)));
+		}//end for
+	}
+
+	/**
+	 * @return true when replicas are configured
+	 */
+	public boolean isEnabled(){
+		return !this._replicas.isEmpty();
+	}
+
+	/**
+	 * Borrows a connection to a healthy replica that is recent enough for
+	 * the calling thread.
+	 *
+	 * @return the connection, to be handed back with release(), or null to read from the primary
+	 */
+	public PooledConnection acquireRead(){
+		if (this._replicas.isEmpty()){
+			return null;
+		}//end if
+		long required = READ_YOUR_WRITES ? requiredLsn() : -1;
+		int start = this._next.getAndIncrement();
+		for (int i = 0; i < this._replicas.size(); ++i){
+			Replica replica = this._replicas.get(Math.floorMod(start + i, this._replicas.size()));
+			if (!replica.healthy){
+				continue;
+			}//end if
+			PooledConnection conn;
+			try{
+				conn = replica.pool.acquire();
+			}catch (SQLException e){
+				continue;
+			}//end try
+			// the last check may be older than the write; ask the replica itself
+			if (required >= 0 && replica.replayed < required && replayed(replica, conn) < required){
+				replica.pool.release(conn);
+				continue;
+			}//end if
+			this._borrowed.put(conn, replica);
+			this._replicaReads.incrementAndGet();
+			return conn;
+		}//end for
+		this._primaryReads.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Hands back a connection from acquireRead().
+	 */
+	public void release(PooledConnection conn){
+		Replica replica = this._borrowed.remove(conn);
+		if (replica != null){
+			replica.pool.release(conn);
+		}//end if
+	}
+
+	/**
+	 * Takes a replica out of rotation until its next check when a read on
+	 * it failed because of the server or the connection rather than the
+	 * query.
+	 */
+	public void failed(PooledConnection conn, SQLException e){
+		Replica replica = this._borrowed.get(conn);
+		String state = e.getSQLState();
+		if (replica != null && (state == null || state.startsWith("08") || state.startsWith("57P"))){
+			replica.healthy = false;
+			System.err.println("Replica " + replica.endpoint + " failed, reading from the primary: " + e.getMessage());
+		}//end if
+	}
+
+	/**
+	 * Records that the calling thread committed a change to the primary.
+	 */
+	public void wrote(){
+		if (READ_YOUR_WRITES && !this._replicas.isEmpty()){
+			this._session.get()[1] = 1;
+		}//end if
+	}
+
+	/**
+	 * @return the primary's WAL position as of the thread's last write, or -1
+	 *         when the thread has not written, or the position is unknown
+	 */
+	private long requiredLsn(){
+		long[] session = this._session.get();
+		if (session[1] != 0){
+			session[0] = primaryLsn();
+			session[1] = 0;
+		}//end if
+		return session[0];
+	}
+
+	private long primaryLsn(){
+		try{
+			PooledConnection conn = this._primary.acquire();
+			try{
+				Statement stmt = conn.getConnection().createStatement();
+				ResultSet rs = stmt.executeQuery(PRIMARY_LSN_SQL);
+				rs.next();
+				long lsn = parseLsn(rs.getString(1));
+				stmt.close();
+				return lsn;
+			}catch (SQLException e){
+				conn.checkError(e);
+				throw e;
+			}finally{
+				this._primary.release(conn);
+			}//end try
+		}catch (SQLException e){
+			// unknown; reads fall back to the primary until a write position can be read
+			return Long.MAX_VALUE;
+		}//end try
+	}
+
+	/**
+	 * Reads a replica's replay position on one of its connections and
+	 * records it.
+	 *
+	 * @return the position, or -1 when the replica is not in recovery
+	 */
+	private long replayed(Replica replica, PooledConnection conn){
+		try{
+			Statement stmt = conn.getConnection().createStatement();
+			ResultSet rs = stmt.executeQuery(REPLICA_STATE_SQL);
+			rs.next();
+			boolean inRecovery = rs.getBoolean(1);
+			String lsn = rs.getString(2);
+			stmt.close();
+			replica.replayed = inRecovery && lsn != null ? parseLsn(lsn) : -1;
+		}catch (SQLException e){
+			conn.checkError(e);
+			replica.replayed = -1;
+		}//end try
+		return replica.replayed;
+	}
+
+	/**
+	 * Checks every replica once.
+	 */
+	void check(){
+		long primary = primaryLsn();
+		for (Replica replica : this._replicas){
+			boolean healthy = false;
+			try{
+				PooledConnection conn = replica.pool.acquire();
+				try{
+					long replayed = replayed(replica, conn);
+					healthy = replayed >= 0 && (primary == Long.MAX_VALUE || primary - replayed <= MAX_LAG_BYTES);
+				}finally{
+					replica.pool.release(conn);
+				}//end try
+			}catch (SQLException e){
+				healthy = false;
+			}//end try
+			if (healthy != replica.healthy){
+				System.err.println("Replica " + replica.endpoint + (healthy ? " is healthy" : " is unavailable or behind"));
+			}//end if
+			replica.healthy = healthy;
+		}//end for
+	}
+
+	/**
+	 * Parses an LSN, printed by the server as two hexadecimal halves: 16/B374D848.
+	 */
+	static long parseLsn(String lsn){
+		int slash = lsn.indexOf('/');
+		return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+	}
+
+	/**
+	 * Checks the replicas once, so reads are routed from the start, then
+	 * starts the health check thread.
+	 */
+	public synchronized void start(){
+		if (this._replicas.isEmpty() || this._checker != null){
+			return;
+		}//end if
+		check();
+		Thread checker = new Thread(new Runnable(){
+			public void run(){
+				checkLoop();
+			}
+		}, "replica-health");
+		checker.setDaemon(true);
+		this._checker = checker;
+		checker.start();
+	}
+
+	public synchronized void stop(){
+		Thread checker = this._checker;
+		this._checker = null;
+		if (checker != null){
+			checker.interrupt();
+		}//end if
+		for (Replica replica : this._replicas){
+			replica.pool.close();
+		}//end for
+	}
+
+	private void checkLoop(){
+		Thread self = Thread.currentThread();
+		while (this._checker == self){
+			try{
+				Thread.sleep(HEALTH_INTERVAL_MS);
+			}catch (InterruptedException e){
+				return;
+			}//end try
+			check();
+		}//end while
+	}
+
+	/**
+	 * @return a summary line, e.g. for the metrics report
+	 */
+	public String stats(){
+		StringBuilder line = new StringBuilder("replicas: ");
+		line.append(this._replicaReads.get()).append(" reads routed, ");
+		line.append(this._primaryReads.get()).append(" sent to the primary");
+		for (Replica replica : this._replicas){
+			line.append(", ").append(replica.endpoint).append(replica.healthy ? " up" : " down");
+		}//end for
+		return line.toString();
+	}
+}
@@ -0,0 +1,451 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Streams query results as text, one row at a time as they come off the
+ * cursor, through a large buffer. Formats:
+ *
+ *   tsv    tab separated, escaped like COPY's text format (the default)
+ *   csv    RFC 4180, with a header line
+ *   jsonl  one JSON object per row
+ *   table  aligned columns for reading on a terminal
+ *
+ * Memory use does not grow with the result, except that the table format
+ * holds up to TABLE_SAMPLE rows to size its columns; later rows keep those
+ * widths. One writer may receive several results, e.g. the pages of a
+ * listing: the header is written before its first row only. close() must
+ * be called to flush the output.
+ *
+ * The output goes to standard out, to a file, or to a shell command when
+ * the target starts with '|', e.g. -Dticketmaster.output.file="|gzip > out.gz".
+ *
+ */
+
+public abstract class ResultWriter implements RowHandler{
+	// format and target of the menu operations' results; unset or "-" is standard out
+	static final String FORMAT = System.getProperty("ticketmaster.output.format", "tsv");
+	static final String TARGET = System.getProperty("ticketmaster.output.file");
+	static final int BUFFER_SIZE = Integer.getInteger("ticketmaster.output.bufferSize", 1 << 16);
+	// rows the table format reads ahead to size its columns
+	static final int TABLE_SAMPLE = Integer.getInteger("ticketmaster.output.tableSample", 1000);
+
+	protected final Writer _out;
+	private final boolean _closeOut;
+	private final Process _pipe;
+	private String[] _columns = null;
+	private boolean[] _numeric = null;
+	private long _rowCount = 0;
+
+	protected ResultWriter(Writer out, boolean closeOut, Process pipe){
+		this._out = out;
+		this._closeOut = closeOut;
+		this._pipe = pipe;
+	}
+
+	/**
+	 * Opens a writer for the results of the menu operations, as configured
+	 * by ticketmaster.output.format and ticketmaster.output.file. A file is
+	 * appended to, so it collects every result of the session.
+	 *
+	 * @throws java.io.IOException when the file or command cannot be opened
+	 */
+	public static ResultWriter open() throws IOException {
+		return open(FORMAT, TARGET, true);
+	}
+
+	/**
+	 * @param format tsv, csv, jsonl or table
+	 * @param target a file name, "|command", or null or "-" for standard out
+	 * @param append whether to append to an existing file
+	 * @throws java.io.IOException when the file or command cannot be opened
+	 */
+	public static ResultWriter open(String format, String target, boolean append) throws IOException {
+		if (target == null || target.equals("-")){
+			// FileDescriptor.out, not System.out, which a caller may have redirected
+			return create(format, writer(new FileOutputStream(FileDescriptor.out)), false, null);
+		}else if (target.startsWith("|")){
+			Process pipe = new ProcessBuilder("sh", "-c", target.substring(1))
+				.redirectOutput(ProcessBuilder.Redirect.INHERIT)
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+			return create(format, writer(pipe.getOutputStream()), true, pipe);
+		}//end if
+		return create(format, writer(new FileOutputStream(target, append)), true, null);
+	}
+
+	/**
+	 * Wraps a writer the caller owns; close() flushes but does not close it.
+	 */
+	public static ResultWriter create(String format, Writer out){
+		return create(format, out, false, null);
+	}
+
+	private static ResultWriter create(String format, Writer out, boolean closeOut, Process pipe){
+		switch (format.toLowerCase()){
+			case "tsv": return new Tsv(out, closeOut, pipe);
+			case "csv": return new Csv(out, closeOut, pipe);
+			case "jsonl": case "json": return new JsonLines(out, closeOut, pipe);
+			case "table": return new Table(out, closeOut, pipe);
+			default:
+				throw new IllegalArgumentException("Unknown output format " + format + " (tsv, csv, jsonl or table)");
+		}
+	}
+
+	private static Writer writer(OutputStream out){
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	public final void handleRow(Row row) throws SQLException {
+		try{
+			if (this._columns == null){
+				int numCol = row.getColumnCount();
+				this._columns = new String[numCol];
+				this._numeric = new boolean[numCol];
+				for (int i = 1; i <= numCol; ++i){
+					this._columns[i - 1] = row.getColumnName(i);
+					this._numeric[i - 1] = isNumericType(row.getColumnType(i));
+				}//end for
+				writeHeader(this._columns);
+			}//end if
+			writeRow(row);
+			++this._rowCount;
+		}catch (IOException e){
+			throw ioError(e);
+		}//end try
+	}
+
+	/**
+	 * @return the rows written so far, over all results
+	 */
+	public long getRowCount(){
+		return this._rowCount;
+	}
+
+	/**
+	 * Writes out everything buffered so far, e.g. before prompting the user.
+	 *
+	 * @throws java.sql.SQLException when the output cannot be written
+	 */
+	public void flush() throws SQLException {
+		try{
+			finish();
+			this._out.flush();
+		}catch (IOException e){
+			throw ioError(e);
+		}//end try
+	}
+
+	/**
+	 * Flushes the output and closes it if this writer opened it.
+	 *
+	 * @throws java.sql.SQLException when the output cannot be written
+	 */
+	public void close() throws SQLException {
+		flush();
+		if (!this._closeOut){
+			return;
+		}//end if
+		try{
+			this._out.close();
+			if (this._pipe != null){
+				this._pipe.waitFor();
+			}//end if
+		}catch (IOException e){
+			throw ioError(e);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+
+	/**
+	 * @return true when the 1-based column holds numbers
+	 */
+	protected boolean isNumeric(int column){
+		return this._numeric[column - 1];
+	}
+
+	protected abstract void writeHeader(String[] columns) throws IOException;
+
+	protected abstract void writeRow(Row row) throws IOException, SQLException;
+
+	/**
+	 * Writes anything the format holds back; called by flush().
+	 */
+	protected void finish() throws IOException {
+	}
+
+	private static boolean isNumericType(int sqlType){
+		switch (sqlType){
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static SQLException ioError(IOException e){
+		return new SQLException("Unable to write the result: " + e.getMessage(), "58030", e);
+	}
+
+	/**
+	 * Appends a JSON string literal, or null.
+	 */
+	static void appendJsonString(StringBuilder json, String value){
+		if (value == null){
+			json.append("null");
+			return;
+		}//end if
+		json.append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char ch = value.charAt(i);
+			switch (ch){
+				case '"': json.append("\\\""); break;
+				case '\\': json.append("\\\\"); break;
+				case '\n': json.append("\\n"); break;
+				case '\r': json.append("\\r"); break;
+				case '\t': json.append("\\t"); break;
+				default:
+					if (ch < 0x20){
+						json.append(String.format("\\u%04x", (int) ch));
+					}else{
+						json.append(ch);
+					}//end if
+			}
+		}//end for
+		json.append('"');
+	}
+
+	/**
+	 * Tab separated values; NULL is \N and tabs, newlines and backslashes
+	 * in values are backslash-escaped, as in COPY ... TO STDOUT.
+	 */
+	static class Tsv extends ResultWriter{
+		Tsv(Writer out, boolean closeOut, Process pipe){
+			super(out, closeOut, pipe);
+		}
+
+		protected void writeHeader(String[] columns) throws IOException {
+			for (int i = 0; i < columns.length; ++i){
+				if (i > 0){
+					this._out.write('\t');
+				}//end if
+				writeValue(columns[i]);
+			}//end for
+			this._out.write('\n');
+		}
+
+		protected void writeRow(Row row) throws IOException, SQLException {
+			for (int i = 1; i <= row.getColumnCount(); ++i){
+				if (i > 1){
+					this._out.write('\t');
+				}//end if
+				String value = row.getString(i);
+				if (value == null){
+					this._out.write("\\N");
+				}else{
+					writeValue(value);
+				}//end if
+			}//end for
+			this._out.write('\n');
+		}
+
+		private void writeValue(String value) throws IOException {
+			for (int i = 0; i < value.length(); ++i){
+				char ch = value.charAt(i);
+				switch (ch){
+					case '\\': this._out.write("\\\\"); break;
+					case '\t': this._out.write("\\t"); break;
+					case '\n': this._out.write("\\n"); break;
+					case '\r': this._out.write("\\r"); break;
+					default: this._out.write(ch);
+				}
+			}//end for
+		}
+	}
+
+	/**
+	 * Comma separated values (RFC 4180). Values containing a comma, quote
+	 * or line break are quoted; NULL is an empty field.
+	 */
+	static class Csv extends ResultWriter{
+		Csv(Writer out, boolean closeOut, Process pipe){
+			super(out, closeOut, pipe);
+		}
+
+		protected void writeHeader(String[] columns) throws IOException {
+			for (int i = 0; i < columns.length; ++i){
+				if (i > 0){
+					this._out.write(',');
+				}//end if
+				writeValue(columns[i]);
+			}//end for
+			this._out.write("\r\n");
+		}
+
+		protected void writeRow(Row row) throws IOException, SQLException {
+			for (int i = 1; i <= row.getColumnCount(); ++i){
+				if (i > 1){
+					this._out.write(',');
+				}//end if
+				String value = row.getString(i);
+				if (value != null){
+					writeValue(value);
+				}//end if
+			}//end for
+			this._out.write("\r\n");
+		}
+
+		private void writeValue(String value) throws IOException {
+			boolean quote = value.isEmpty();
+			for (int i = 0; i < value.length() && !quote; ++i){
+				char ch = value.charAt(i);
+				quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+			}//end for
+			if (!quote){
+				this._out.write(value);
+				return;
+			}//end if
+			// an empty string is quoted so it differs from NULL
+			this._out.write('"');
+			this._out.write(value.replace("\"", "\"\""));
+			this._out.write('"');
+		}
+	}
+
+	/**
+	 * One JSON object per line, keyed by column name. Numeric columns are
+	 * written as JSON numbers.
+	 */
+	static class JsonLines extends ResultWriter{
+		private final StringBuilder _line = new StringBuilder();
+		private String[] _keys;
+
+		JsonLines(Writer out, boolean closeOut, Process pipe){
+			super(out, closeOut, pipe);
+		}
+
+		protected void writeHeader(String[] columns){
+			this._keys = new String[columns.length];
+			for (int i = 0; i < columns.length; ++i){
+				StringBuilder key = new StringBuilder();
+				appendJsonString(key, columns[i]);
+				this._keys[i] = key.append(':').toString();
+			}//end for
+		}
+
+		protected void writeRow(Row row) throws IOException, SQLException {
+			StringBuilder line = this._line;
+			line.setLength(0);
+			line.append('{');
+			for (int i = 1; i <= row.getColumnCount(); ++i){
+				if (i > 1){
+					line.append(',');
+				}//end if
+				line.append(this._keys[i - 1]);
+				String value = row.getString(i);
+				if (value != null && isNumeric(i) && !value.equals("NaN") && !value.contains("Infinity")){
+					line.append(value);
+				}else{
+					appendJsonString(line, value);
+				}//end if
+			}//end for
+			line.append("}\n");
+			this._out.append(line);
+		}
+	}
+
+	/**
+	 * Columns padded to the widest value of the first TABLE_SAMPLE rows,
+	 * numbers right-aligned, NULL blank, as psql prints them.
+	 */
+	static class Table extends ResultWriter{
+		private String[] _header;
+		private final List<String[]> _sample = new ArrayList<String[]>();
+		private int[] _widths = null;
+
+		Table(Writer out, boolean closeOut, Process pipe){
+			super(out, closeOut, pipe);
+		}
+
+		protected void writeHeader(String[] columns){
+			this._header = columns;
+		}
+
+		protected void writeRow(Row row) throws IOException, SQLException {
+			String[] values = new String[row.getColumnCount()];
+			for (int i = 1; i <= values.length; ++i){
+				String value = row.getString(i);
+				values[i - 1] = value == null ? "" : value;
+			}//end for
+			if (this._widths != null){
+				writeLine(values, true);
+				return;
+			}//end if
+			this._sample.add(values);
+			if (this._sample.size() >= TABLE_SAMPLE){
+				finish();
+			}//end if
+		}
+
+		protected void finish() throws IOException {
+			if (this._widths != null || this._header == null){
+				return;
+			}//end if
+			this._widths = new int[this._header.length];
+			for (int i = 0; i < this._header.length; ++i){
+				this._widths[i] = this._header[i].length();
+			}//end for
+			for (String[] values : this._sample){
+				for (int i = 0; i < values.length; ++i){
+					this._widths[i] = Math.max(this._widths[i], values[i].length());
+				}//end for
+			}//end for
+			writeLine(this._header, false);
+			for (int i = 0; i < this._widths.length; ++i){
+				this._out.write(i == 0 ? "-" : "-+-");
+				for (int j = 0; j < this._widths[i]; ++j){
+					this._out.write('-');
+				}//end for
+			}//end for
+			this._out.write("-\n");
+			for (String[] values : this._sample){
+				writeLine(values, true);
+			}//end for
+			this._sample.clear();
+		}
+
+		private void writeLine(String[] values, boolean alignNumbers) throws IOException {
+			for (int i = 0; i < values.length; ++i){
+				this._out.write(i == 0 ? " " : " | ");
+				int pad = Math.max(0, this._widths[i] - values[i].length());
+				boolean right = alignNumbers && isNumeric(i + 1);
+				if (right){
+					writeSpaces(pad);
+				}//end if
+				this._out.write(values[i]);
+				if (!right && i < values.length - 1){
+					writeSpaces(pad);
+				}//end if
+			}//end for
+			this._out.write('\n');
+		}
+
+		private void writeSpaces(int count) throws IOException {
+			for (int i = 0; i < count; ++i){
+				this._out.write(' ');
+			}//end for
+		}
+	}
+}
@@ -0,0 +1,232 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class maintains the revenue and occupancy rollups of create.sql
+ * (ShowRollup per show, CinemaDayRollup per cinema and day), which the
+ * triggers on ShowSeats, Payments and Bookings feed through RollupDeltas.
+ *
+ * fold() moves the pending deltas into the rollups in one statement. A
+ * daemon thread folds every -Dticketmaster.rollup.foldMs, and the reports
+ * fold before they read, so they are always current.
+ *
+ * backfill() rebuilds the rollups from the live tables, e.g. after a bulk
+ * change the triggers cannot attribute to a show: -Dticketmaster.rollup.threads
+ * workers each recompute a range of shows per transaction, then the cinema
+ * totals are summed from the shows. Folds and backfills exclude each other
+ * with an advisory lock (backfill workers share it), and every backfill
+ * statement drops the deltas of its shows that it can already see, so a
+ * change made while a backfill runs is counted exactly once.
+ *
+ * Usage: java Rollups <dbname> <port> <user> (-fold | -backfill [threads])
+ *
+ */
+
+public class Rollups{
+	// ms between folds by the background thread; 0 leaves folding to the reports
+	static final long FOLD_MS = Long.getLong("ticketmaster.rollup.foldMs", 5000L);
+	// backfill workers
+	static final int THREADS = Integer.getInteger("ticketmaster.rollup.threads", 4);
+	// show ids recomputed per backfill transaction
+	static final long CHUNK = Long.getLong("ticketmaster.rollup.chunk", 2000L);
+
+	static final String EXISTS_SQL = "SELECT count(*) FROM pg_class WHERE oid = to_regclass('rollupdeltas')";
+	static final String LOCK_SQL = "SELECT pg_advisory_xact_lock(hashtext('rollups'))";
+	static final String LOCK_SHARED_SQL = "SELECT pg_advisory_xact_lock_shared(hashtext('rollups'))";
+	// (deltas folded, shows changed)
+	static final String FOLD_SQL = "WITH d AS (DELETE FROM rollupdeltas RETURNING *), " +
+			"net AS (SELECT sid, sum(seats_total) AS seats_total, sum(seats_sold) AS seats_sold, " +
+			"sum(payments) AS payments, sum(revenue) AS revenue FROM d GROUP BY sid), " +
+			"keyed AS (SELECT n.*, s.sdate, COALESCE(r.cid, (SELECT t.cid FROM plays p JOIN theaters t ON t.tid = p.tid " +
+			"WHERE p.sid = n.sid ORDER BY p.tid LIMIT 1)) AS cid " +
+			"FROM net n JOIN shows s ON s.sid = n.sid LEFT JOIN showrollup r ON r.sid = n.sid), " +
+			"per_show AS (INSERT INTO showrollup AS r (sid, cid, sdate, seats_total, seats_sold, payments, revenue) " +
+			"SELECT sid, cid, sdate, seats_total, seats_sold, payments, revenue FROM keyed " +
+			"ON CONFLICT (sid) DO UPDATE SET cid = EXCLUDED.cid, sdate = EXCLUDED.sdate, " +
+			"seats_total = r.seats_total + EXCLUDED.seats_total, seats_sold = r.seats_sold + EXCLUDED.seats_sold, " +
+			"payments = r.payments + EXCLUDED.payments, revenue = r.revenue + EXCLUDED.revenue RETURNING sid), " +
+			"per_day AS (INSERT INTO cinemadayrollup AS r (cid, sdate, seats_total, seats_sold, payments, revenue) " +
+			"SELECT cid, sdate, sum(seats_total), sum(seats_sold), sum(payments), sum(revenue) FROM keyed " +
+			"WHERE cid IS NOT NULL GROUP BY cid, sdate " +
+			"ON CONFLICT (cid, sdate) DO UPDATE SET " +
+			"seats_total = r.seats_total + EXCLUDED.seats_total, seats_sold = r.seats_sold + EXCLUDED.seats_sold, " +
+			"payments = r.payments + EXCLUDED.payments, revenue = r.revenue + EXCLUDED.revenue RETURNING cid) " +
+			"SELECT (SELECT count(*) FROM d), (SELECT count(*) FROM per_show)";
+	static final String SHOW_RANGE_SQL = "SELECT min(sid), max(sid) FROM " +
+			"(SELECT sid FROM shows UNION ALL SELECT sid FROM showrollup) ids";
+	// recomputes the shows with lo <= sid < hi; the range is bound five times
+	static final String BACKFILL_SQL = "WITH gone AS (DELETE FROM rollupdeltas WHERE sid >= ?::bigint AND sid < ?::bigint), " +
+			"stale AS (DELETE FROM showrollup r WHERE r.sid >= ?::bigint AND r.sid < ?::bigint " +
+			"AND NOT EXISTS (SELECT 1 FROM shows s WHERE s.sid = r.sid)), " +
+			"seats AS (SELECT sid, count(*) AS total, count(bid) AS sold FROM showseats " +
+			"WHERE sid >= ?::bigint AND sid < ?::bigint GROUP BY sid), " +
+			"paid AS (SELECT b.sid, count(*) AS payments, sum(p.amount::numeric) AS revenue " +
+			"FROM payments p JOIN bookings b ON b.bid = p.bid " +
+			"WHERE b.sid >= ?::bigint AND b.sid < ?::bigint AND b.status <> 'Cancelled' GROUP BY b.sid) " +
+			"INSERT INTO showrollup AS r (sid, cid, sdate, seats_total, seats_sold, payments, revenue) " +
+			"SELECT s.sid, (SELECT t.cid FROM plays p JOIN theaters t ON t.tid = p.tid WHERE p.sid = s.sid ORDER BY p.tid LIMIT 1), " +
+			"s.sdate, COALESCE(seats.total, 0), COALESCE(seats.sold, 0), COALESCE(paid.payments, 0), COALESCE(paid.revenue, 0) " +
+			"FROM shows s LEFT JOIN seats ON seats.sid = s.sid LEFT JOIN paid ON paid.sid = s.sid " +
+			"WHERE s.sid >= ?::bigint AND s.sid < ?::bigint " +
+			"ON CONFLICT (sid) DO UPDATE SET cid = EXCLUDED.cid, sdate = EXCLUDED.sdate, " +
+			"seats_total = EXCLUDED.seats_total, seats_sold = EXCLUDED.seats_sold, " +
+			"payments = EXCLUDED.payments, revenue = EXCLUDED.revenue";
+	static final String CLEAR_CINEMA_DAYS_SQL = "DELETE FROM cinemadayrollup";
+	static final String SUM_CINEMA_DAYS_SQL = "INSERT INTO cinemadayrollup (cid, sdate, seats_total, seats_sold, payments, revenue) " +
+			"SELECT cid, sdate, sum(seats_total), sum(seats_sold), sum(payments), sum(revenue) " +
+			"FROM showrollup WHERE cid IS NOT NULL GROUP BY cid, sdate";
+
+	private final Ticketmaster _esql;
+	private volatile Thread _folder = null;
+
+	public Rollups(Ticketmaster esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Folds the pending deltas into the rollups.
+	 *
+	 * @return the number of shows whose rollup changed
+	 */
+	public long fold() throws SQLException {
+		return this._esql.executeInTransaction(() -> {
+			this._esql.executeQueryAndReturnResult(LOCK_SQL);
+			List<List<String>> result = this._esql.executeQueryAndReturnResult(FOLD_SQL);
+			return Long.parseLong(result.get(0).get(1));
+		});
+	}
+
+	/**
+	 * Rebuilds both rollups from the live tables.
+	 *
+	 * @param threads the number of workers recomputing shows in parallel
+	 * @return the number of shows recomputed
+	 */
+	public long backfill(int threads) throws SQLException {
+		List<List<String>> range = this._esql.executeQueryAndReturnResult(SHOW_RANGE_SQL);
+		if (range.get(0).get(0) == null){
+			return 0;
+		}//end if
+		final long last = Long.parseLong(range.get(0).get(1));
+		final AtomicLong next = new AtomicLong(Long.parseLong(range.get(0).get(0)));
+		final AtomicLong shows = new AtomicLong();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+		try{
+			List<Future<Object>> done = new ArrayList<Future<Object>>();
+			for (int i = 0; i < Math.max(1, threads); ++i){
+				done.add(workers.submit(() -> {
+					for (long lo = next.getAndAdd(CHUNK); lo <= last; lo = next.getAndAdd(CHUNK)){
+						final long hi = lo + CHUNK;
+						final long from = lo;
+						shows.addAndGet(this._esql.executeInTransaction(() -> {
+							this._esql.executeQueryAndReturnResult(LOCK_SHARED_SQL);
+							return this._esql.executeUpdate(BACKFILL_SQL, from, hi, from, hi, from, hi, from, hi, from, hi);
+						}));
+					}//end for
+					return null;
+				}));
+			}//end for
+			for (Future<Object> worker : done){
+				worker.get();
+			}//end for
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("The backfill was interrupted", "57014");
+		}catch (ExecutionException e){
+			if (e.getCause() instanceof SQLException){
+				throw (SQLException) e.getCause();
+			}//end if
+			throw new SQLException(e.getCause());
+		}finally{
+			workers.shutdownNow();
+		}//end try
+		this._esql.executeInTransaction(() -> {
+			this._esql.executeQueryAndReturnResult(LOCK_SQL);
+			this._esql.executeUpdate(CLEAR_CINEMA_DAYS_SQL);
+			return this._esql.executeUpdate(SUM_CINEMA_DAYS_SQL);
+		});
+		return shows.get();
+	}
+
+	/**
+	 * Starts the fold thread, unless FOLD_MS is 0 or the database has no
+	 * rollup tables.
+	 */
+	public synchronized void start() throws SQLException {
+		if (FOLD_MS <= 0 || this._folder != null){
+			return;
+		}//end if
+		List<List<String>> exists = this._esql.executeQueryAndReturnResult(EXISTS_SQL);
+		if (Integer.parseInt(exists.get(0).get(0)) == 0){
+			return;
+		}//end if
+		Thread folder = new Thread(new Runnable(){
+			public void run(){
+				foldLoop();
+			}
+		}, "rollup-folder");
+		folder.setDaemon(true);
+		this._folder = folder;
+		folder.start();
+	}
+
+	public synchronized void stop(){
+		Thread folder = this._folder;
+		this._folder = null;
+		if (folder != null){
+			folder.interrupt();
+		}//end if
+	}
+
+	private void foldLoop(){
+		Thread self = Thread.currentThread();
+		while (this._folder == self){
+			try{
+				Thread.sleep(FOLD_MS);
+				fold();
+			}catch (InterruptedException e){
+				return;
+			}catch (SQLException e){
+				// the deltas stay until a fold succeeds
+				System.err.println("Unable to fold rollups: " + e.getMessage());
+			}//end try
+		}//end while
+	}
+
+	public static void main(String[] args) throws Exception {
+		String usage = "Usage: java [-classpath <classpath>] " + Rollups.class.getName()
+			+ " <dbname> <port> <user> (-fold | -backfill [threads])";
+		if (args.length < 4){
+			System.err.println(usage);
+			return;
+		}//end if
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			long started = System.nanoTime();
+			if (args[3].equals("-fold")){
+				System.out.println(esql.rollups.fold() + " show(s) updated");
+			}else if (args[3].equals("-backfill")){
+				int threads = args.length > 4 ? Integer.parseInt(args[4]) : THREADS;
+				System.out.println(esql.rollups.backfill(threads) + " show(s) recomputed");
+			}else{
+				System.err.println(usage);
+				return;
+			}//end if
+			System.out.printf("%.1f s%n", (System.nanoTime() - started) / 1e9);
+		}catch (SQLException e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			esql.cleanup();
+		}//end try
+	}
+}
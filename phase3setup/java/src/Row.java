@@ -0,0 +1,145 @@
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+
+/**
+ * A read-only view of the current row of a streamed query result. The same
+ * Row object is reused for every row of a result, so handlers must copy out
+ * any values they want to keep.
+ *
+ * Column indexes start at 1, as in JDBC. Numeric accessors return 0 for
+ * SQL NULL; use isNull() to tell the two apart. ValuesRow serves rows
+ * held in memory through the same interface.
+ *
+ */
+
+public class Row{
+	private final ResultSet _rs;
+	private final ResultSetMetaData _rsmd;
+	private final int _numCol;
+	private long _rowNumber = 0;
+
+	Row(ResultSet rs) throws SQLException {
+		this._rs = rs;
+		this._rsmd = rs.getMetaData();
+		this._numCol = this._rsmd.getColumnCount();
+	}
+
+	/**
+	 * For subclasses that are not backed by a ResultSet; they must override
+	 * every accessor.
+	 */
+	protected Row(){
+		this._rs = null;
+		this._rsmd = null;
+		this._numCol = 0;
+	}
+
+	/**
+	 * Advances to the next row of the underlying result set.
+	 *
+	 * @return false once the result is exhausted
+	 */
+	boolean next() throws SQLException {
+		if (this._rs.next()){
+			++this._rowNumber;
+			return true;
+		}//end if
+		return false;
+	}
+
+	/**
+	 * @return the 1-based position of this row in the result
+	 */
+	public long getRowNumber(){
+		return this._rowNumber;
+	}
+
+	public int getColumnCount(){
+		return this._numCol;
+	}
+
+	public String getColumnName(int column) throws SQLException {
+		return this._rsmd.getColumnName(column);
+	}
+
+	/**
+	 * @return the java.sql.Types code of the column
+	 */
+	public int getColumnType(int column) throws SQLException {
+		return this._rsmd.getColumnType(column);
+	}
+
+	public String getString(int column) throws SQLException {
+		return this._rs.getString(column);
+	}
+
+	public String getString(String column) throws SQLException {
+		return this._rs.getString(column);
+	}
+
+	public int getInt(int column) throws SQLException {
+		return this._rs.getInt(column);
+	}
+
+	public int getInt(String column) throws SQLException {
+		return this._rs.getInt(column);
+	}
+
+	public long getLong(int column) throws SQLException {
+		return this._rs.getLong(column);
+	}
+
+	public long getLong(String column) throws SQLException {
+		return this._rs.getLong(column);
+	}
+
+	public double getDouble(int column) throws SQLException {
+		return this._rs.getDouble(column);
+	}
+
+	public double getDouble(String column) throws SQLException {
+		return this._rs.getDouble(column);
+	}
+
+	public BigDecimal getBigDecimal(int column) throws SQLException {
+		return this._rs.getBigDecimal(column);
+	}
+
+	public Date getDate(int column) throws SQLException {
+		return this._rs.getDate(column);
+	}
+
+	public Date getDate(String column) throws SQLException {
+		return this._rs.getDate(column);
+	}
+
+	public Time getTime(int column) throws SQLException {
+		return this._rs.getTime(column);
+	}
+
+	public Time getTime(String column) throws SQLException {
+		return this._rs.getTime(column);
+	}
+
+	public Timestamp getTimestamp(int column) throws SQLException {
+		return this._rs.getTimestamp(column);
+	}
+
+	public Timestamp getTimestamp(String column) throws SQLException {
+		return this._rs.getTimestamp(column);
+	}
+
+	/**
+	 * @param column the 1-based column index
+	 * @return true when the column is SQL NULL in this row
+	 */
+	public boolean isNull(int column) throws SQLException {
+		return this._rs.getObject(column) == null;
+	}
+}
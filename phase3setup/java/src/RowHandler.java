@@ -0,0 +1,19 @@
+import java.sql.SQLException;
+
+
+/**
+ * Callback used by Ticketmaster.executeQueryAndStream to consume a query
+ * result one row at a time instead of collecting it into a list.
+ *
+ */
+
+public interface RowHandler{
+	/**
+	 * Called once for every row, in result order. The row is only valid for
+	 * the duration of the call.
+	 *
+	 * @param row the current row
+	 * @throws java.sql.SQLException to abort the query
+	 */
+	void handleRow(Row row) throws SQLException;
+}
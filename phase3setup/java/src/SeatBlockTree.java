@@ -0,0 +1,136 @@
+/**
+ * A segment tree over a row of seats that finds the first run of n
+ * adjacent free seats in O(log size), whatever the number of seats taken.
+ * Each node keeps the longest free run in its range and the free runs
+ * touching its two ends, so a run crossing the middle of a node is found
+ * from its two children. A full or nearly full row is rejected at the
+ * root, in constant time.
+ *
+ * Positions are 0 .. size - 1; adjacent[i] says whether positions i and
+ * i + 1 are next to each other, so one tree can cover seats with gaps in
+ * their numbering. All positions start taken. All methods are
+ * synchronized.
+ *
+ */
+
+public class SeatBlockTree{
+	private final int _size;			//	positions in use
+	private final int _leaves;			//	_size rounded up to a power of two
+	private final boolean[] _adjacent;
+	private final int[] _best;			//	longest free run in the node's range
+	private final int[] _prefix;		//	free run starting at the range's first position
+	private final int[] _suffix;		//	free run ending at its last position
+	private final int[] _length;		//	positions in the range, counting padding
+
+	/**
+	 * @param adjacent adjacent[i] is true when positions i and i + 1 are next
+	 *        to each other; its length is one less than the number of positions
+	 */
+	public SeatBlockTree(boolean[] adjacent){
+		this._size = adjacent.length + 1;
+		this._leaves = Integer.highestOneBit(Math.max(1, this._size - 1)) << (this._size > 1 ? 1 : 0);
+		this._adjacent = adjacent;
+		this._best = new int[2 * this._leaves];
+		this._prefix = new int[2 * this._leaves];
+		this._suffix = new int[2 * this._leaves];
+		this._length = new int[2 * this._leaves];
+		for (int v = this._leaves; v < 2 * this._leaves; ++v){
+			this._length[v] = 1;
+		}//end for
+		for (int v = this._leaves - 1; v >= 1; --v){
+			this._length[v] = 2 * this._length[2 * v];
+		}//end for
+	}
+
+	/**
+	 * @return the number of positions
+	 */
+	public int size(){
+		return this._size;
+	}
+
+	/**
+	 * Marks a position free or taken.
+	 */
+	public synchronized void set(int position, boolean free){
+		int v = this._leaves + position;
+		int run = free ? 1 : 0;
+		this._best[v] = run;
+		this._prefix[v] = run;
+		this._suffix[v] = run;
+		for (v >>= 1; v >= 1; v >>= 1){
+			merge(v);
+		}//end for
+	}
+
+	/**
+	 * Sets every position at once, in O(size).
+	 *
+	 * @param free free[i] is true when position i is free
+	 */
+	public synchronized void setAll(boolean[] free){
+		for (int i = 0; i < this._leaves; ++i){
+			int run = i < this._size && free[i] ? 1 : 0;
+			this._best[this._leaves + i] = run;
+			this._prefix[this._leaves + i] = run;
+			this._suffix[this._leaves + i] = run;
+		}//end for
+		for (int v = this._leaves - 1; v >= 1; --v){
+			merge(v);
+		}//end for
+	}
+
+	/**
+	 * @return the first position of the lowest run of count adjacent free
+	 *         positions, or -1 when there is none
+	 */
+	public synchronized int find(int count){
+		if (count < 1 || this._best[1] < count){
+			return -1;
+		}//end if
+		int v = 1;
+		int first = 0;
+		while (v < this._leaves){
+			int left = 2 * v;
+			int middle = first + this._length[left];
+			if (this._best[left] >= count){
+				v = left;
+			}else if (joins(middle - 1) && this._suffix[left] + this._prefix[left + 1] >= count){
+				return middle - this._suffix[left];
+			}else{
+				v = left + 1;
+				first = middle;
+			}//end if
+		}//end while
+		return first;
+	}
+
+	/**
+	 * @return the longest run of adjacent free positions
+	 */
+	public synchronized int longest(){
+		return this._best[1];
+	}
+
+	private boolean joins(int position){
+		return position >= 0 && position < this._adjacent.length && this._adjacent[position];
+	}
+
+	/**
+	 * Recomputes node v from its children.
+	 */
+	private void merge(int v){
+		int left = 2 * v;
+		int right = left + 1;
+		// the last position of the left child, the one before the right child's first
+		int last = (v << Integer.numberOfLeadingZeros(v) - Integer.numberOfLeadingZeros(this._leaves)) - this._leaves
+				+ this._length[left] - 1;
+		boolean joined = joins(last);
+		this._prefix[v] = joined && this._prefix[left] == this._length[left]
+				? this._length[left] + this._prefix[right] : this._prefix[left];
+		this._suffix[v] = joined && this._suffix[right] == this._length[right]
+				? this._length[right] + this._suffix[left] : this._suffix[right];
+		this._best[v] = Math.max(Math.max(this._best[left], this._best[right]),
+				joined ? this._suffix[left] + this._prefix[right] : 0);
+	}
+}
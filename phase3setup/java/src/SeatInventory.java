@@ -0,0 +1,634 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * This class keeps an in-memory picture of which seats of each show are
+ * free, so availability checks do not need a database round trip.
+ *
+ * The seats of a show (its ShowSeats rows joined to CinemaSeats) are loaded
+ * the first time the show is used. Seats already assigned to a booking are
+ * kept in a bitset; seats a customer is in the middle of booking are
+ * claimed with a short-lived hold, taken with a compare-and-set on the
+ * seat's slot so concurrent terminals never both get the same seat. An
+ * expired hold may be taken over by anyone.
+ *
+ * A held seat is written through to ShowSeats.bid by writeThrough(), which
+ * only claims rows whose bid is still NULL, so the database stays the
+ * source of truth when several processes sell the same show. The picture
+ * is rebuilt from the database after a restart or invalidate().
+ *
+ * At most -Dticketmaster.seatInventory.shows shows are kept: past that the
+ * least recently used are dropped, except those used within HOLD_MILLIS,
+ * which may still have seats on hold. A show with no seats, e.g. one that
+ * does not exist, is not kept at all.
+ *
+ * holdBlock() picks the seats itself: the first count seats in a row by
+ * seat number, all of one type. Each seat type of a show has a
+ * SeatBlockTree of its free seats, kept up to date as seats are held,
+ * sold and freed, so a block is found in O(log n) however full the show
+ * is. The trees are a guide, not the truth: a seat they show free is still
+ * claimed with tryHold(), and a race lost there just marks the seat taken
+ * and looks again.
+ *
+ */
+
+public class SeatInventory{
+	// how long a hold lasts before another customer may take the seat (ms)
+	static final long HOLD_MILLIS = Long.getLong("ticketmaster.seatHoldMs", 120000L);
+	// blocks holdBlock() tries before giving up to seats other terminals took first
+	static final int BLOCK_ATTEMPTS = Integer.getInteger("ticketmaster.blockAttempts", 4);
+	// shows whose seats are kept in memory
+	static final int MAX_SHOWS = Integer.getInteger("ticketmaster.seatInventory.shows", 10000);
+
+	// seats of one show, in seat number order
+	static final String LOAD_SQL = "SELECT ss.ssid, ss.csid, c.sno, c.stype, ss.price, ss.bid " +
+			"FROM showseats ss, cinemaseats c " +
+			"WHERE ss.sid = ? AND c.csid = ss.csid " +
+			"ORDER BY c.sno";
+	// assigns held seats to a booking unless another process got there first
+	static final String WRITE_THROUGH_SQL = "UPDATE showseats SET bid = ? WHERE ssid = ANY(?::bigint[]) AND bid IS NULL";
+
+	private final Ticketmaster _esql;
+	private final ConcurrentHashMap<Long, ShowSeatMap> _shows = new ConcurrentHashMap<Long, ShowSeatMap>();
+
+	public SeatInventory(Ticketmaster esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * A claim on one seat of one show that lasts until expiresAt.
+	 */
+	static final class Hold{
+		final long expiresAt;
+
+		Hold(long expiresAt){
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now){
+			return now >= this.expiresAt;
+		}
+	}
+
+	/**
+	 * The seats of one show, ordered by seat number.
+	 */
+	static final class ShowSeatMap{
+		final long sid;
+		final int[] sno;			//	seat numbers, ascending
+		final long[] ssid;			//	ShowSeats ids
+		final long[] csid;			//	CinemaSeats ids
+		final String[] stype;		//	seat types
+		final double[] price;
+		final AtomicLongArray sold;						//	bit i set when seat i is assigned to a booking
+		final AtomicReferenceArray<Hold> holds;			//	current hold on seat i, if any
+		String[] types;						//	seat types, in order of their first seat
+		SeatBlockTree[] blocks;				//	free seats of each type
+		int[][] seatsOf;					//	the seats of each type, ascending
+		int[] typeOf;						//	seat i's type, as an index into types
+		int[] position;						//	seat i's position in its type's tree
+		//	earliest expiry of the holds the trees show taken; they are stale from then on
+		final AtomicLong nextExpiry = new AtomicLong(Long.MAX_VALUE);
+		volatile long usedAt;				//	when the show was last looked up; its holds end by usedAt + HOLD_MILLIS
+
+		ShowSeatMap(long sid, int n){
+			this.sid = sid;
+			this.sno = new int[n];
+			this.ssid = new long[n];
+			this.csid = new long[n];
+			this.stype = new String[n];
+			this.price = new double[n];
+			this.sold = new AtomicLongArray((n + 63) / 64);
+			this.holds = new AtomicReferenceArray<Hold>(n);
+		}
+
+		int size(){
+			return this.sno.length;
+		}
+
+		/**
+		 * Builds the tree of each seat type from the seats' current state.
+		 * Seats of one type are adjacent when their numbers are consecutive.
+		 */
+		void indexBlocks(long now){
+			List<String> types = new ArrayList<String>();
+			int[] counts = new int[size()];
+			this.typeOf = new int[size()];
+			this.position = new int[size()];
+			for (int i = 0; i < size(); ++i){
+				int t = types.indexOf(this.stype[i]);
+				if (t < 0){
+					t = types.size();
+					types.add(this.stype[i]);
+				}//end if
+				this.typeOf[i] = t;
+				this.position[i] = counts[t]++;
+			}//end for
+			this.types = types.toArray(new String[types.size()]);
+			this.blocks = new SeatBlockTree[this.types.length];
+			this.seatsOf = new int[this.types.length][];
+			for (int t = 0; t < this.types.length; ++t){
+				this.seatsOf[t] = new int[counts[t]];
+			}//end for
+			for (int i = 0; i < size(); ++i){
+				this.seatsOf[this.typeOf[i]][this.position[i]] = i;
+			}//end for
+			for (int t = 0; t < this.types.length; ++t){
+				int[] seats = this.seatsOf[t];
+				boolean[] adjacent = new boolean[seats.length - 1];
+				for (int k = 0; k + 1 < seats.length; ++k){
+					adjacent[k] = this.sno[seats[k + 1]] == this.sno[seats[k]] + 1;
+				}//end for
+				this.blocks[t] = new SeatBlockTree(adjacent);
+			}//end for
+			reindex(now);
+		}
+
+		/**
+		 * Sets every tree from the seats' current state, clearing the
+		 * expired holds they still show taken.
+		 */
+		void reindex(long now){
+			this.nextExpiry.set(Long.MAX_VALUE);
+			for (int t = 0; t < this.types.length; ++t){
+				int[] seats = this.seatsOf[t];
+				boolean[] free = new boolean[seats.length];
+				for (int k = 0; k < seats.length; ++k){
+					free[k] = isFree(seats[k], now);
+					Hold h = this.holds.get(seats[k]);
+					if (!free[k] && h != null){
+						watch(h);
+					}//end if
+				}//end for
+				this.blocks[t].setAll(free);
+			}//end for
+		}
+
+		/**
+		 * Notes a hold the trees show taken, so they are reindexed once it
+		 * expires.
+		 */
+		void watch(Hold hold){
+			this.nextExpiry.accumulateAndGet(hold.expiresAt, Math::min);
+		}
+
+		/**
+		 * Records seat i as free or taken in its type's tree.
+		 */
+		void mark(int i, boolean free){
+			this.blocks[this.typeOf[i]].set(this.position[i], free);
+		}
+
+		/**
+		 * Finds the lowest-numbered count adjacent free seats of one type.
+		 *
+		 * @param type the seat type, or null for the first type with such a block
+		 * @return the seats' indexes, or null when there is no such block
+		 */
+		int[] findBlock(int count, String type){
+			for (int t = 0; t < this.types.length; ++t){
+				if (type != null && !type.equalsIgnoreCase(this.types[t].trim())){
+					continue;
+				}//end if
+				int first = this.blocks[t].find(count);
+				if (first >= 0){
+					return Arrays.copyOfRange(this.seatsOf[t], first, first + count);
+				}//end if
+			}//end for
+			return null;
+		}
+
+		/**
+		 * @param seatNumber a CinemaSeats.sno
+		 * @return the seat's index, or -1 if the show has no such seat
+		 */
+		int indexOf(int seatNumber){
+			int i = Arrays.binarySearch(this.sno, seatNumber);
+			return i < 0 ? -1 : i;
+		}
+
+		boolean isSold(int i){
+			return (this.sold.get(i >> 6) & (1L << (i & 63))) != 0;
+		}
+
+		void setSold(int i, boolean value){
+			int word = i >> 6;
+			long bit = 1L << (i & 63);
+			long old, next;
+			do{
+				old = this.sold.get(word);
+				next = value ? (old | bit) : (old & ~bit);
+			}while (!this.sold.compareAndSet(word, old, next));
+		}
+
+		/**
+		 * @return true when seat i is neither sold nor under a live hold
+		 */
+		boolean isFree(int i, long now){
+			if (isSold(i)){
+				return false;
+			}//end if
+			Hold h = this.holds.get(i);
+			return h == null || h.isExpired(now);
+		}
+
+		/**
+		 * Claims seat i with the given hold if it is free. Either way the
+		 * seat is taken afterwards, so its tree marks it so.
+		 *
+		 * @return true when the hold was placed
+		 */
+		boolean tryHold(int i, Hold hold, long now){
+			boolean held = claim(i, hold, now);
+			if (held){
+				watch(hold);
+			}//end if
+			mark(i, false);
+			return held;
+		}
+
+		private boolean claim(int i, Hold hold, long now){
+			while (!isSold(i)){
+				Hold current = this.holds.get(i);
+				if (current != null && !current.isExpired(now)){
+					return false;
+				}//end if
+				if (this.holds.compareAndSet(i, current, hold)){
+					// re-check: the seat may have been sold between the two reads
+					if (isSold(i)){
+						this.holds.compareAndSet(i, hold, null);
+						return false;
+					}//end if
+					return true;
+				}//end if
+			}//end while
+			return false;
+		}
+	}
+
+	/**
+	 * The seats one customer is holding for one show.
+	 */
+	public static final class SeatHold{
+		final ShowSeatMap show;
+		final int[] seats;				//	indexes into the show's seat map
+		final Hold hold;
+		final List<Integer> unavailable;	//	requested seat numbers that could not be held
+
+		SeatHold(ShowSeatMap show, int[] seats, Hold hold, List<Integer> unavailable){
+			this.show = show;
+			this.seats = seats;
+			this.hold = hold;
+			this.unavailable = unavailable;
+		}
+
+		/**
+		 * @return true when every requested seat is held
+		 */
+		public boolean isHeld(){
+			return this.unavailable.isEmpty();
+		}
+
+		/**
+		 * @return the requested seat numbers that were taken or do not exist
+		 */
+		public List<Integer> getUnavailable(){
+			return this.unavailable;
+		}
+
+		public long getShowId(){
+			return this.show.sid;
+		}
+
+		/**
+		 * @return the ShowSeats ids of the held seats
+		 */
+		public long[] getShowSeatIds(){
+			long[] ids = new long[this.seats.length];
+			for (int i = 0; i < this.seats.length; ++i){
+				ids[i] = this.show.ssid[this.seats[i]];
+			}//end for
+			return ids;
+		}
+
+		/**
+		 * @return the seat numbers of the held seats
+		 */
+		public int[] getSeatNumbers(){
+			int[] numbers = new int[this.seats.length];
+			for (int i = 0; i < this.seats.length; ++i){
+				numbers[i] = this.show.sno[this.seats[i]];
+			}//end for
+			return numbers;
+		}
+
+		/**
+		 * @return the prices of the held seats, in request order
+		 */
+		public double[] getPrices(){
+			double[] prices = new double[this.seats.length];
+			for (int i = 0; i < this.seats.length; ++i){
+				prices[i] = this.show.price[this.seats[i]];
+			}//end for
+			return prices;
+		}
+	}
+
+	/**
+	 * Returns the seat map of a show, loading it from the database on first
+	 * use.
+	 *
+	 * @param sid the show id
+	 * @return the show's seats
+	 * @throws java.sql.SQLException when the seats cannot be loaded
+	 */
+	ShowSeatMap getShow(long sid) throws SQLException {
+		ShowSeatMap show = this._shows.get(sid);
+		if (show == null){
+			ShowSeatMap loaded = load(sid);
+			if (loaded.size() == 0){
+				// no seats to hold, or no such show: not worth keeping
+				return loaded;
+			}//end if
+			show = this._shows.putIfAbsent(sid, loaded);
+			if (show == null){
+				show = loaded;
+				if (this._shows.size() > MAX_SHOWS){
+					evictIdle();
+				}//end if
+			}//end if
+		}//end if
+		show.usedAt = System.currentTimeMillis();
+		return show;
+	}
+
+	/**
+	 * Drops the least recently used shows until a tenth of MAX_SHOWS is
+	 * free again, leaving out the shows used within HOLD_MILLIS.
+	 */
+	private synchronized void evictIdle(){
+		int excess = this._shows.size() - MAX_SHOWS * 9 / 10;
+		if (excess <= 0){
+			return;
+		}//end if
+		final long now = System.currentTimeMillis();
+		List<long[]> idle = new ArrayList<long[]>();		//	{usedAt, sid}
+		for (ShowSeatMap show : this._shows.values()){
+			long usedAt = show.usedAt;
+			if (now - usedAt >= HOLD_MILLIS){
+				idle.add(new long[]{usedAt, show.sid});
+			}//end if
+		}//end for
+		idle.sort((a, b) -> Long.compare(a[0], b[0]));
+		for (int k = 0; k < idle.size() && k < excess; ++k){
+			// unless it was used since it was found idle
+			this._shows.computeIfPresent(idle.get(k)[1], (sid, show) -> now - show.usedAt >= HOLD_MILLIS ? null : show);
+		}//end for
+	}
+
+	private ShowSeatMap load(final long sid) throws SQLException {
+		final List<Object[]> rows = new ArrayList<Object[]>();
+		this._esql.executeQueryAndStream(LOAD_SQL, new RowHandler(){
+			public void handleRow(Row row) throws SQLException {
+				rows.add(new Object[]{row.getLong(1), row.getLong(2), row.getInt(3), row.getString(4),
+					row.getDouble(5), row.isNull(6)});
+			}
+		}, sid);
+
+		ShowSeatMap show = new ShowSeatMap(sid, rows.size());
+		for (int i = 0; i < rows.size(); ++i){
+			Object[] r = rows.get(i);
+			show.ssid[i] = (Long) r[0];
+			show.csid[i] = (Long) r[1];
+			show.sno[i] = (Integer) r[2];
+			show.stype[i] = (String) r[3];
+			show.price[i] = (Double) r[4];
+			if (!(Boolean) r[5]){
+				show.setSold(i, true);
+			}//end if
+		}//end for
+		show.usedAt = System.currentTimeMillis();
+		show.indexBlocks(show.usedAt);
+		return show;
+	}
+
+	/**
+	 * Checks a seat without claiming it.
+	 *
+	 * @param sid the show id
+	 * @param seatNumber a CinemaSeats.sno
+	 * @return true when the show has the seat and it is free
+	 * @throws java.sql.SQLException when the show's seats cannot be loaded
+	 */
+	public boolean isAvailable(long sid, int seatNumber) throws SQLException {
+		ShowSeatMap show = getShow(sid);
+		int i = show.indexOf(seatNumber);
+		return i >= 0 && show.isFree(i, System.currentTimeMillis());
+	}
+
+	/**
+	 * Finds free seats of a show without claiming them.
+	 *
+	 * @param sid the show id
+	 * @param count the number of seats wanted
+	 * @param from the seat index to start looking at; the search wraps around
+	 * @return up to count free seat numbers
+	 * @throws java.sql.SQLException when the show's seats cannot be loaded
+	 */
+	public int[] findFree(long sid, int count, int from) throws SQLException {
+		ShowSeatMap show = getShow(sid);
+		int n = show.size();
+		long now = System.currentTimeMillis();
+		int[] found = new int[Math.min(count, n)];
+		int k = 0;
+		for (int j = 0; j < n && k < found.length; ++j){
+			int i = Math.floorMod(from + j, n);
+			if (show.isFree(i, now)){
+				found[k++] = show.sno[i];
+			}//end if
+		}//end for
+		return Arrays.copyOf(found, k);
+	}
+
+	/**
+	 * Holds the given seats of a show for HOLD_MILLIS. Either every seat is
+	 * held, or none is and getUnavailable() lists the seats that were taken
+	 * or do not exist.
+	 *
+	 * @param sid the show id
+	 * @param seatNumbers the CinemaSeats.sno values to hold
+	 * @return the hold
+	 * @throws java.sql.SQLException when the show's seats cannot be loaded
+	 */
+	public SeatHold hold(long sid, int[] seatNumbers) throws SQLException {
+		ShowSeatMap show = getShow(sid);
+		int[] seats = new int[seatNumbers.length];
+		for (int k = 0; k < seatNumbers.length; ++k){
+			seats[k] = show.indexOf(seatNumbers[k]);
+		}//end for
+		return holdIndexes(show, seats, seatNumbers, System.currentTimeMillis());
+	}
+
+	/**
+	 * Holds the best count adjacent seats of a show for HOLD_MILLIS: the
+	 * lowest-numbered run of count free seats in a row, all of one type.
+	 *
+	 * @param sid the show id
+	 * @param count the number of seats wanted
+	 * @param type the seat type (CinemaSeats.stype), or null for any
+	 * @return the hold, or null when the show has no such block free
+	 * @throws java.sql.SQLException when the show's seats cannot be loaded
+	 */
+	public SeatHold holdBlock(long sid, int count, String type) throws SQLException {
+		ShowSeatMap show = getShow(sid);
+		for (int attempt = 0; attempt < BLOCK_ATTEMPTS; ++attempt){
+			long now = System.currentTimeMillis();
+			int[] seats = show.findBlock(count, type);
+			if (seats == null){
+				// holds that ran out are still taken in the trees; clear them once the first has
+				if (now < show.nextExpiry.get()){
+					return null;
+				}//end if
+				show.reindex(now);
+				seats = show.findBlock(count, type);
+				if (seats == null){
+					return null;
+				}//end if
+			}//end if
+			int[] numbers = new int[seats.length];
+			for (int k = 0; k < seats.length; ++k){
+				numbers[k] = show.sno[seats[k]];
+			}//end for
+			SeatHold hold = holdIndexes(show, seats, numbers, now);
+			if (hold.isHeld()){
+				return hold;
+			}//end if
+			// another terminal took one of the seats first; tryHold() marked it taken
+		}//end for
+		return null;
+	}
+
+	/**
+	 * Holds seats of a show by index; -1 stands for a seat the show does
+	 * not have. Either every seat is held or none is.
+	 *
+	 * @param seatNumbers the seats' numbers, reported for those not held
+	 */
+	private SeatHold holdIndexes(ShowSeatMap show, int[] indexes, int[] seatNumbers, long now){
+		Hold hold = new Hold(now + HOLD_MILLIS);
+		int[] seats = new int[indexes.length];
+		List<Integer> unavailable = new ArrayList<Integer>();
+		int held = 0;
+		for (int k = 0; k < indexes.length; ++k){
+			int i = indexes[k];
+			if (i >= 0 && show.tryHold(i, hold, now)){
+				seats[held++] = i;
+			}else{
+				unavailable.add(seatNumbers[k]);
+			}//end if
+		}//end for
+		SeatHold result = new SeatHold(show, Arrays.copyOf(seats, held), hold, unavailable);
+		if (!result.isHeld()){
+			release(result);
+		}//end if
+		return result;
+	}
+
+	/**
+	 * Assigns the held seats to a booking in the database. Call it inside the
+	 * transaction that inserts or updates the booking, then call commit()
+	 * once that transaction has committed.
+	 *
+	 * @param hold seats held with hold()
+	 * @param bid the booking the seats go to
+	 * @throws java.sql.SQLException when the hold has been lost or another
+	 *         process assigned one of the seats first
+	 */
+	public void writeThrough(SeatHold hold, long bid) throws SQLException {
+		for (int i : hold.seats){
+			if (hold.show.holds.get(i) != hold.hold){
+				throw new SQLException("The hold on seat " + hold.show.sno[i] + " of show "
+					+ hold.show.sid + " expired", "55000");
+			}//end if
+		}//end for
+		int updated = this._esql.executeUpdate(WRITE_THROUGH_SQL, bid,
+			Ticketmaster.toArrayLiteral(hold.getShowSeatIds()));
+		if (updated != hold.seats.length){
+			// another process sold one of them; our picture of the show is stale
+			invalidate(hold.show.sid);
+			throw new SQLException("One of the seats of show " + hold.show.sid
+				+ " was booked by another terminal", "40001");
+		}//end if
+	}
+
+	/**
+	 * Marks held seats as sold once their booking has committed.
+	 *
+	 * @param hold seats written with writeThrough()
+	 */
+	public void commit(SeatHold hold){
+		for (int i : hold.seats){
+			hold.show.setSold(i, true);
+			hold.show.holds.compareAndSet(i, hold.hold, null);
+		}//end for
+	}
+
+	/**
+	 * Gives held seats back, e.g. when the booking was abandoned or its
+	 * transaction rolled back.
+	 *
+	 * @param hold seats held with hold()
+	 */
+	public void release(SeatHold hold){
+		for (int i : hold.seats){
+			if (hold.show.holds.compareAndSet(i, hold.hold, null)){
+				hold.show.mark(i, !hold.show.isSold(i));
+			}//end if
+		}//end for
+	}
+
+	/**
+	 * Marks seats of a show free again after their booking gave them up in
+	 * the database.
+	 *
+	 * @param sid the show id
+	 * @param seatNumbers the CinemaSeats.sno values released
+	 */
+	public void markFree(long sid, int[] seatNumbers){
+		ShowSeatMap show = this._shows.get(sid);
+		if (show == null){
+			return;
+		}//end if
+		long now = System.currentTimeMillis();
+		for (int seatNumber : seatNumbers){
+			int i = show.indexOf(seatNumber);
+			if (i >= 0){
+				show.setSold(i, false);
+				show.mark(i, show.isFree(i, now));
+			}//end if
+		}//end for
+	}
+
+	/**
+	 * Forgets a show so its seats are reloaded from the database on next use.
+	 *
+	 * @param sid the show id
+	 */
+	public void invalidate(long sid){
+		this._shows.remove(sid);
+	}
+
+	/**
+	 * Forgets every show, e.g. after a bulk change made directly in SQL.
+	 */
+	public void invalidateAll(){
+		this._shows.clear();
+	}
+}
@@ -0,0 +1,531 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class runs the Ticketmaster operations over a city-sharded
+ * deployment: several databases, each made a shard by sql/shard.sql, that
+ * hold disjoint sets of cities with their cinemas, theaters, shows,
+ * bookings, payments and show seats. Users and Movies are on every shard.
+ * Each shard gets its own Ticketmaster, with its own pool, caches and seat
+ * inventory.
+ *
+ * An operation on one cinema, theater, show or booking runs on the shard
+ * that holds it. Cinemas and theaters are looked up in a directory read
+ * from the shards at startup; a show or booking made since sharding
+ * carries its shard in its id (see sql/shard.sql), and an older one is
+ * looked up on the shards once and remembered.
+ *
+ * The listings that span shards run on every shard in parallel and are
+ * merged in memory in the order the single-database query would give.
+ * The paged ones ask each shard for no more rows than the page needs.
+ * SearchMovieTitles reads only Movies, which every shard has in full, so
+ * it runs on one shard, taken in turn.
+ * AddUser writes the user to every shard, and AddMovieShowingToTheater the
+ * movie, with the show on its theater's shard only.
+ *
+ * Usage: java ShardRouter <db>[@port][,<db>[@port]...] <port> <user> <script>|-
+ * runs a BatchRunner script, shards listed in shard order.
+ *
+ */
+
+public class ShardRouter{
+	// bits of an id below its shard number (see sql/shard.sql)
+	static final int ID_SHIFT = 40;
+	// older shows and bookings whose shard has been looked up
+	static final int LOOKUP_CACHE_SIZE = Integer.getInteger("ticketmaster.shards.lookupCacheSize", 100000);
+
+	static final String SHARD_INFO_SQL = "SELECT shard FROM shardinfo";
+	static final String CINEMAS_SQL = "SELECT cid FROM cinemas";
+	static final String THEATERS_SQL = "SELECT tid FROM theaters";
+	static final String SHOW_EXISTS_SQL = "SELECT 1 FROM shows WHERE sid = ?";
+	static final String BOOKING_EXISTS_SQL = "SELECT 1 FROM bookings WHERE bid = ?";
+	static final String DELETE_USER_SQL = "DELETE FROM users WHERE email = ?";
+	static final String DELETE_MOVIE_SQL = "DELETE FROM movies WHERE mvid = ?";
+
+	/**
+	 * Part of an operation run on one shard, handing its rows to out.
+	 */
+	interface ShardQuery{
+		long run(Ticketmaster shard, RowHandler out) throws SQLException;
+	}
+
+	/**
+	 * Part of an operation run on one shard.
+	 */
+	interface ShardWork{
+		long run(Ticketmaster shard) throws SQLException;
+	}
+
+	/**
+	 * Rows gathered from the shards, held in memory.
+	 */
+	static final class Gathered{
+		String[] columns = null;
+		final List<Object[]> rows = new ArrayList<Object[]>();
+	}
+
+	private final Ticketmaster[] _shards;
+	private final Map<Long, Integer> _cinemas = new HashMap<Long, Integer>();
+	private final Map<Long, Integer> _theaters = new HashMap<Long, Integer>();
+	private final LruCache<Long, Integer> _shows = new LruCache<Long, Integer>(LOOKUP_CACHE_SIZE, 0);
+	private final LruCache<Long, Integer> _bookings = new LruCache<Long, Integer>(LOOKUP_CACHE_SIZE, 0);
+	private final ExecutorService _workers;
+	// the shard the next movie search runs on
+	private final AtomicInteger _nextSearch = new AtomicInteger();
+
+	/**
+	 * Connects to every shard and reads the directory.
+	 *
+	 * @param shards the shard databases in shard order, as db[@port],db[@port]...
+	 * @param dbport the port of the shards that do not give one
+	 * @throws java.sql.SQLException when a database is not the shard it is listed as
+	 */
+	public ShardRouter(String shards, String dbport, String user, String passwd) throws SQLException {
+		String[] specs = shards.split(",");
+		this._shards = new Ticketmaster[specs.length];
+		for (int i = 0; i < specs.length; ++i){
+			String[] spec = specs[i].trim().split("@");
+			this._shards[i] = new Ticketmaster(spec[0], spec.length > 1 ? spec[1] : dbport, user, passwd);
+			List<List<String>> info;
+			try{
+				info = this._shards[i].executeQueryAndReturnResult(SHARD_INFO_SQL);
+			}catch (SQLException e){
+				throw new SQLException("Database " + spec[0] + " is not a shard; run sql/shard.sql on it", "55000", e);
+			}//end try
+			if (info.size() != 1 || Integer.parseInt(info.get(0).get(0)) != i){
+				throw new SQLException("Database " + spec[0] + " is listed as shard " + i + " but was made shard "
+						+ (info.isEmpty() ? "?" : info.get(0).get(0)), "55000");
+			}//end if
+			load(i, CINEMAS_SQL, this._cinemas);
+			load(i, THEATERS_SQL, this._theaters);
+		}//end for
+		this._workers = Executors.newFixedThreadPool(this._shards.length, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread worker = new Thread(r, "shard-worker");
+				worker.setDaemon(true);
+				return worker;
+			}
+		});
+	}
+
+	private void load(final int shard, String sql, final Map<Long, Integer> directory) throws SQLException {
+		this._shards[shard].executeQueryAndStream(sql, new RowHandler(){
+			public void handleRow(Row row) throws SQLException {
+				Integer other = directory.put(row.getLong(1), shard);
+				if (other != null){
+					throw new SQLException(row.getColumnName(1) + " " + row.getLong(1) + " is on shards "
+							+ other + " and " + shard, "23505");
+				}//end if
+			}
+		});
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int size(){
+		return this._shards.length;
+	}
+
+	public Ticketmaster forCinema(long cid) throws SQLException {
+		return shard(this._cinemas.get(cid), "Cinema " + cid);
+	}
+
+	public Ticketmaster forTheater(long tid) throws SQLException {
+		return shard(this._theaters.get(tid), "Theater " + tid);
+	}
+
+	public Ticketmaster forShow(long sid) throws SQLException {
+		return this._shards[locate(sid, this._shows, SHOW_EXISTS_SQL, "Show ")];
+	}
+
+	public Ticketmaster forBooking(long bid) throws SQLException {
+		return this._shards[locate(bid, this._bookings, BOOKING_EXISTS_SQL, "Booking ")];
+	}
+
+	private Ticketmaster shard(Integer index, String what) throws SQLException {
+		if (index == null){
+			throw new SQLException(what + " does not exist", "23503");
+		}//end if
+		return this._shards[index];
+	}
+
+	/**
+	 * @return the shard of a show or booking: from its id when it was made
+	 *         since sharding, otherwise from the cache or by asking each shard
+	 */
+	private int locate(long id, LruCache<Long, Integer> cache, String existsSql, String what) throws SQLException {
+		long shard = (id >> ID_SHIFT) - 1;
+		if (shard >= 0 && shard < this._shards.length){
+			return (int) shard;
+		}//end if
+		Integer cached = cache.get(id);
+		if (cached != null){
+			return cached;
+		}//end if
+		for (int i = 0; i < this._shards.length; ++i){
+			if (this._shards[i].executeQuery(existsSql, id) > 0){
+				cache.put(id, i);
+				return i;
+			}//end if
+		}//end for
+		throw new SQLException(what + id + " does not exist", "23503");
+	}
+
+	/**
+	 * Runs a query on every shard in parallel.
+	 *
+	 * @param order how to merge the shards' rows, or null to list them shard by shard
+	 * @return every row, merged
+	 */
+	Gathered gather(final ShardQuery query, Comparator<Object[]> order) throws SQLException {
+		List<Future<Gathered>> parts = new ArrayList<Future<Gathered>>();
+		for (final Ticketmaster shard : this._shards){
+			parts.add(this._workers.submit(() -> collect(shard, query)));
+		}//end for
+		Gathered all = new Gathered();
+		for (Future<Gathered> part : parts){
+			Gathered rows = await(part);
+			if (all.columns == null){
+				all.columns = rows.columns;
+			}//end if
+			all.rows.addAll(rows.rows);
+		}//end for
+		if (order != null){
+			// stable, so rows that tie keep their shard's order
+			Collections.sort(all.rows, order);
+		}//end if
+		return all;
+	}
+
+	/**
+	 * Runs work on every shard in parallel.
+	 *
+	 * @return the sum of what each shard's run returned
+	 */
+	long each(final ShardWork work) throws SQLException {
+		List<Future<Long>> parts = new ArrayList<Future<Long>>();
+		for (final Ticketmaster shard : this._shards){
+			parts.add(this._workers.submit(() -> work.run(shard)));
+		}//end for
+		long total = 0;
+		for (Future<Long> part : parts){
+			total += await(part);
+		}//end for
+		return total;
+	}
+
+	private static <T> T await(Future<T> part) throws SQLException {
+		try{
+			return part.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a shard", "57014");
+		}catch (ExecutionException e){
+			if (e.getCause() instanceof SQLException){
+				throw (SQLException) e.getCause();
+			}else if (e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}//end if
+			throw new SQLException(e.getCause());
+		}//end try
+	}
+
+	/**
+	 * Reads a shard's rows into memory: numbers as BigDecimal, so they
+	 * compare as numbers, everything else as the server's text.
+	 */
+	private static Gathered collect(Ticketmaster shard, ShardQuery query) throws SQLException {
+		final Gathered part = new Gathered();
+		query.run(shard, new RowHandler(){
+			public void handleRow(Row row) throws SQLException {
+				int columns = row.getColumnCount();
+				if (part.columns == null){
+					part.columns = new String[columns];
+					for (int i = 1; i <= columns; ++i){
+						part.columns[i - 1] = row.getColumnName(i);
+					}//end for
+				}//end if
+				Object[] values = new Object[columns];
+				for (int i = 1; i <= columns; ++i){
+					values[i - 1] = isNumeric(row.getColumnType(i)) ? row.getBigDecimal(i) : row.getString(i);
+				}//end for
+				part.rows.add(values);
+			}
+		});
+		return part;
+	}
+
+	private static boolean isNumeric(int type){
+		switch (type){
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Orders rows by the given 1-based columns, a negative one descending;
+	 * nulls sort last, as in PostgreSQL.
+	 */
+	static Comparator<Object[]> orderBy(final int... columns){
+		return new Comparator<Object[]>(){
+			@SuppressWarnings("unchecked")
+			public int compare(Object[] a, Object[] b){
+				for (int column : columns){
+					Object x = a[Math.abs(column) - 1];
+					Object y = b[Math.abs(column) - 1];
+					int c = x == null ? (y == null ? 0 : 1) : y == null ? -1 : ((Comparable<Object>) x).compareTo(y);
+					if (c != 0){
+						return column < 0 ? -c : c;
+					}//end if
+				}//end for
+				return 0;
+			}
+		};
+	}
+
+	/**
+	 * Hands the merged rows from skip on to out, at most limit of them.
+	 *
+	 * @return the number of rows handed on
+	 */
+	static long emit(Gathered gathered, int skip, int limit, RowHandler out) throws SQLException {
+		if (gathered.columns == null){
+			return 0;
+		}//end if
+		ValuesRow row = new ValuesRow(gathered.columns);
+		int end = (int) Math.min(gathered.rows.size(), (long) skip + limit);
+		for (int i = skip; i < end; ++i){
+			row.set(gathered.rows.get(i));
+			out.handleRow(row);
+		}//end for
+		return Math.max(0, end - skip);
+	}
+
+	public void AddUser(String email, String lname, String fname, String phone, String pwd) throws SQLException {
+		int added = 0;
+		try{
+			for (; added < this._shards.length; ++added){
+				Ticketmaster.AddUser(this._shards[added], email, lname, fname, phone, pwd);
+			}//end for
+		}catch (SQLException e){
+			// take the user back off the shards that took it, so it can be added again
+			for (int i = 0; i < added; ++i){
+				try{
+					this._shards[i].executeUpdate(DELETE_USER_SQL, email);
+				}catch (SQLException undo){
+					System.err.println("Unable to remove user " + email + " from shard " + i + ": " + undo.getMessage());
+				}//end try
+			}//end for
+			throw e;
+		}//end try
+	}
+
+	public long AddBooking(String email, long sid, int[] seatNumbers, String status) throws SQLException {
+		return Ticketmaster.AddBooking(forShow(sid), email, sid, seatNumbers, status);
+	}
+
+	public long AddBestAvailableBooking(String email, long sid, int count, String stype, String status) throws SQLException {
+		return Ticketmaster.AddBestAvailableBooking(forShow(sid), email, sid, count, stype, status);
+	}
+
+	/**
+	 * Adds the movie to the other shards first, under an id from the
+	 * theater's shard, then the movie and its show to the theater's shard.
+	 */
+	public long[] AddMovieShowingToTheater(String title, String rdate, String country, String description,
+			int duration, String lang, String genre, String sdate, String sttime, String edtime, long tid) throws SQLException {
+		Ticketmaster home = forTheater(tid);
+		long mvid = home.movieIds.next();
+		List<Integer> added = new ArrayList<Integer>();
+		try{
+			for (int i = 0; i < this._shards.length; ++i){
+				Ticketmaster shard = this._shards[i];
+				if (shard != home){
+					shard.executeInTransaction(() -> {
+						shard.executeUpdate(Ticketmaster.ADD_MOVIE_SQL, mvid, title, rdate, country, description,
+								duration, lang, genre);
+						shard.reference.movieChanged(mvid, title);
+						return null;
+					});
+					added.add(i);
+				}//end if
+			}//end for
+			return Ticketmaster.AddMovieShowingToTheater(home, mvid, title, rdate, country, description, duration,
+					lang, genre, sdate, sttime, edtime, tid);
+		}catch (SQLException e){
+			// take the movie back off the shards that took it
+			for (int i : added){
+				Ticketmaster shard = this._shards[i];
+				try{
+					shard.executeInTransaction(() -> {
+						shard.executeUpdate(DELETE_MOVIE_SQL, mvid);
+						shard.reference.movieChanged(mvid, title);
+						return null;
+					});
+				}catch (SQLException undo){
+					System.err.println("Unable to remove movie " + mvid + " from shard " + i + ": " + undo.getMessage());
+				}//end try
+			}//end for
+			throw e;
+		}//end try
+	}
+
+	public long CancelPendingBookings() throws SQLException {
+		return each(shard -> new MaintenanceJob(shard, "CancelPendingBookings", Ticketmaster.CANCEL_PENDING_SQL).runBatches());
+	}
+
+	public String ChangeSeatsForBooking(long bid, int[] oldSeats, int[] newSeats) throws SQLException {
+		return Ticketmaster.ChangeSeatsForBooking(forBooking(bid), bid, oldSeats, newSeats);
+	}
+
+	public int RemovePayment(long bid) throws SQLException {
+		return Ticketmaster.RemovePayment(forBooking(bid), bid);
+	}
+
+	public long ClearCancelledBookings() throws SQLException {
+		return each(shard -> new MaintenanceJob(shard, "ClearCancelledBookings", Ticketmaster.CLEAR_CANCELLED_SQL).runBatches());
+	}
+
+	// theaters are named, not numbered, so every shard checks for one of that name
+	public long RemoveShowsOnDate(String date, String cinematheater) throws SQLException {
+		return each(shard -> Ticketmaster.RemoveShowsOnDate(shard, date, cinematheater));
+	}
+
+	public long ListTheatersPlayingShow(String title, RowHandler out) throws SQLException {
+		return emit(gather((shard, rows) -> Ticketmaster.ListTheatersPlayingShow(shard, title, rows), null),
+				0, Integer.MAX_VALUE, out);
+	}
+
+	public long ListShowsStartingOnTimeAndDate(String date, String time, RowHandler out) throws SQLException {
+		return emit(gather((shard, rows) -> Ticketmaster.ListShowsStartingOnTimeAndDate(shard, date, time, rows), null),
+				0, Integer.MAX_VALUE, out);
+	}
+
+	/**
+	 * Movies is on every shard, so any one of them gives the whole answer;
+	 * the searches take the shards in turn.
+	 */
+	public long SearchMovieTitles(String search, String releasedAfter, String releasedBefore, int page, int pageSize,
+			RowHandler out) throws SQLException {
+		int shard = Math.floorMod(this._nextSearch.getAndIncrement(), this._shards.length);
+		return Ticketmaster.SearchMovieTitles(this._shards[shard], search, releasedAfter, releasedBefore, page,
+				pageSize, out);
+	}
+
+	/**
+	 * A user with pending bookings on several shards is listed once, with
+	 * the sum of their counts.
+	 */
+	public long ListUsersWithPendingBooking(String afterEmail, int limit, RowHandler out) throws SQLException {
+		// fname, lname, email, pending ORDER BY email
+		Gathered users = gather((shard, rows) -> Ticketmaster.ListUsersWithPendingBooking(shard, afterEmail, limit, rows),
+				orderBy(3));
+		for (int i = users.rows.size() - 1; i > 0; --i){
+			Object[] user = users.rows.get(i);
+			Object[] previous = users.rows.get(i - 1);
+			if (user[2].equals(previous[2])){
+				previous[3] = ((BigDecimal) previous[3]).add((BigDecimal) user[3]);
+				users.rows.remove(i);
+			}//end if
+		}//end for
+		return emit(users, 0, limit, out);
+	}
+
+	public long ListMovieAndShowInfoAtCinemaInDateRange(Long cid, String title, String bgnRange, String endRange,
+			RowHandler out) throws SQLException {
+		if (cid != null){
+			return Ticketmaster.ListMovieAndShowInfoAtCinemaInDateRange(forCinema(cid), cid, title, bgnRange, endRange, out);
+		}//end if
+		return emit(gather((shard, rows) -> Ticketmaster.ListMovieAndShowInfoAtCinemaInDateRange(shard, title,
+				bgnRange, endRange, rows), null), 0, Integer.MAX_VALUE, out);
+	}
+
+	public long ListBookingInfoForUser(String email, long afterBid, long afterSsid, int limit, RowHandler out) throws SQLException {
+		// bid, ssid, ... ORDER BY bid, ssid
+		return emit(gather((shard, rows) -> Ticketmaster.ListBookingInfoForUser(shard, email, afterBid, afterSsid,
+				limit, rows), orderBy(1, 2)), 0, limit, out);
+	}
+
+	public long RevenueReport(Long cid, String from, String to, RowHandler out) throws SQLException {
+		if (cid != null){
+			return Ticketmaster.RevenueReport(forCinema(cid), cid, from, to, out);
+		}//end if
+		// sdate, cid, ... ORDER BY sdate, cid
+		return emit(gather((shard, rows) -> Ticketmaster.RevenueReport(shard, null, from, to, rows), orderBy(1, 2)),
+				0, Integer.MAX_VALUE, out);
+	}
+
+	public long OccupancyReport(Long cid, String from, String to, RowHandler out) throws SQLException {
+		if (cid != null){
+			return Ticketmaster.OccupancyReport(forCinema(cid), cid, from, to, out);
+		}//end if
+		// sdate, sttime, sid, ... ORDER BY sdate, sttime, sid
+		return emit(gather((shard, rows) -> Ticketmaster.OccupancyReport(shard, null, from, to, rows), orderBy(1, 2, 3)),
+				0, Integer.MAX_VALUE, out);
+	}
+
+	/**
+	 * Closes every shard.
+	 */
+	public void cleanup(){
+		this._workers.shutdownNow();
+		for (Ticketmaster shard : this._shards){
+			if (shard != null){
+				shard.cleanup();
+			}//end if
+		}//end for
+	}
+
+	public static void main(String[] args) throws Exception {
+		String usage = "Usage: java [-classpath <classpath>] " + ShardRouter.class.getName()
+			+ " <db>[@port][,<db>[@port]...] <port> <user> <script>|-";
+		if (args.length != 4){
+			System.err.println(usage);
+			return;
+		}//end if
+
+		// stdout carries only the JSON lines; the shards' connection messages go to stderr
+		PrintStream results = System.out;
+		System.setOut(System.err);
+		Class.forName("org.postgresql.Driver");
+		ShardRouter shards = new ShardRouter(args[0], args[1], args[2], "");
+		try{
+			BufferedReader script = args[3].equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, "UTF-8"))
+				: new BufferedReader(new InputStreamReader(new FileInputStream(args[3]), "UTF-8"));
+			int failures = new BatchRunner(shards, results).run(script);
+			script.close();
+			System.err.println(failures + " operation(s) failed");
+		}finally{
+			shards.cleanup();
+		}//end try
+	}
+}
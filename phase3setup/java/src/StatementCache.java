@@ -0,0 +1,93 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * This class keeps the most recently used PreparedStatements of a single
+ * connection, keyed by their SQL text. Reusing the same statement object
+ * lets the PostgreSQL driver switch to a named server-side statement, so
+ * the server parses and plans each distinct query once per session. The
+ * least recently used statement is closed when the cache is full.
+ *
+ * A cache belongs to exactly one connection and, like the connection, is
+ * only used by one thread at a time.
+ *
+ */
+
+public class StatementCache{
+	private final Connection _connection;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	public StatementCache(Connection connection, final int capacity){
+		this._connection = connection;
+		// access-ordered map: iteration starts at the least recently used entry
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if (size() > capacity){
+					closeQuietly(eldest.getValue());
+					return true;
+				}//end if
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached statement for the given SQL, preparing it on a miss.
+	 * The caller must not close the returned statement.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @return a prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt == null || stmt.isClosed()){
+			stmt = this._connection.prepareStatement(sql);
+			this._statements.put(sql, stmt);
+		}else{
+			stmt.clearParameters();
+		}//end if
+		return stmt;
+	}
+
+	/**
+	 * Drops a statement from the cache, e.g. after it failed in a way that
+	 * may have left it unusable.
+	 *
+	 * @param sql the SQL text the statement was prepared with
+	 */
+	public void evict(String sql){
+		closeQuietly(this._statements.remove(sql));
+	}
+
+	public int size(){
+		return this._statements.size();
+	}
+
+	/**
+	 * Closes every cached statement.
+	 */
+	public void clear(){
+		Iterator<PreparedStatement> it = this._statements.values().iterator();
+		while (it.hasNext()){
+			closeQuietly(it.next());
+			it.remove();
+		}//end while
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		if (stmt == null){
+			return;
+		}//end if
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+}
@@ -11,12 +11,16 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.math.BigDecimal;
 import java.io.*;
 //import java.io.File;
 //import java.io.FileReader;
@@ -24,7 +28,13 @@ import java.io.*;
 //import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -34,13 +44,184 @@ import java.util.Scanner;
  */
 
 public class Ticketmaster{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by all operations
+	private ConnectionPool _pool = null;
+	//latency and round-trip counters of the menu operations
+	private final Metrics _metrics = new Metrics();
+	//connection of the transaction each thread has open, if any
+	private final ThreadLocal<PooledConnection> _transaction = new ThreadLocal<PooledConnection>();
+	//takes the plans of slow statements off the calling threads
+	private final ThreadPoolExecutor _explainer = new ThreadPoolExecutor (1, 1, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable> (SLOW_QUERY_BACKLOG), new ThreadFactory(){
+				public Thread newThread (Runnable r) {
+					Thread explainer = new Thread (r, "slow-query-explainer");
+					explainer.setDaemon (true);
+					return explainer;
+				}
+			});
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-	static public int nxtMvid = 60;		//	tracks next available movie id
-	static public int nxtSid = 200;		//	tracks next available show id
 	public int nxtTid = 1000;		//	tracks next available theater id
 
+	//block allocators for the primary keys the operations insert (see create.sql)
+	final IdAllocator bookingIds = new IdAllocator(this, "bookings_bid_seq");
+	final IdAllocator movieIds = new IdAllocator(this, "movies_mvid_seq");
+	final IdAllocator showIds = new IdAllocator(this, "shows_sid_seq");
+	final IdAllocator paymentIds = new IdAllocator(this, "payments_pid_seq");
+	final IdAllocator showSeatIds = new IdAllocator(this, "showseats_ssid_seq");
+	//free/held/sold state of the seats of every show used so far
+	final SeatInventory seats = new SeatInventory(this);
+	//movies, theaters, cinemas, cities and shows read by the browse operations
+	final ReferenceCache reference = new ReferenceCache(this);
+	//monthly partitions of the show-dated tables, if sql/partition.sql was run
+	final PartitionManager partitions = new PartitionManager(this);
+	//cancels Pending bookings once their hold runs out, if enabled
+	final BookingExpiry expiry = new BookingExpiry(this);
+	//revenue and occupancy rollups behind the reports (see create.sql)
+	final Rollups rollups = new Rollups(this);
+	//read replicas the browse operations may be answered from, if configured
+	ReplicaRouter replicas = null;
+
+	/*
+	 * Pool settings, overridable with -D on the java command line, e.g.
+	 * java -Dticketmaster.pool.max=32 ... Ticketmaster <dbname> <port> <user>
+	 */
+	static final int POOL_MIN = Integer.getInteger("ticketmaster.pool.min", 1);
+	static final int POOL_MAX = Integer.getInteger("ticketmaster.pool.max", 8);
+	static final long POOL_ACQUIRE_TIMEOUT = Long.getLong("ticketmaster.pool.acquireTimeout", 30000L);		//	ms
+	static final long POOL_VALIDATION_INTERVAL = Long.getLong("ticketmaster.pool.validationInterval", 30000L);	//	ms
+	static final int STATEMENT_CACHE_SIZE = Integer.getInteger("ticketmaster.statementCacheSize", 64);
+	// executions of a statement before the driver switches to a named server-side statement
+	static final int PREPARE_THRESHOLD = Integer.getInteger("ticketmaster.prepareThreshold", 1);
+	// rows fetched per round trip when streaming a query result
+	static final int FETCH_SIZE = Integer.getInteger("ticketmaster.fetchSize", 500);
+	// statements slower than this (ms) are written to the slow query log; negative disables it
+	static final long SLOW_QUERY_MS = Long.getLong("ticketmaster.slowQueryMs", 500L);
+	static final String SLOW_QUERY_LOG = System.getProperty("ticketmaster.slowQueryLog", "slow_query.log");
+	// slow statements waiting for their plan; more are logged without one
+	static final int SLOW_QUERY_BACKLOG = Integer.getInteger("ticketmaster.slowQueryBacklog", 100);
+	// port serving the metrics at /metrics; 0 disables it
+	static final int METRICS_PORT = Integer.getInteger("ticketmaster.metrics.port", 0);
+	// file the metrics are written to on exit; unset disables it
+	static final String METRICS_FILE = System.getProperty("ticketmaster.metrics.file");
+	// rows listed per page by the title search, booking history and pending users
+	static final int PAGE_SIZE = Integer.getInteger("ticketmaster.pageSize", 20);
+
+	/*
+	 * SQL issued by the menu operations.  PlanCheck runs these same
+	 * statements through EXPLAIN, so keep them here rather than inline.
+	 */
+	static final String ADD_USER_SQL = "INSERT INTO Users VALUES(?, ?, ?, ?, ?)";
+	static final String ADD_BOOKING_SQL = "INSERT INTO bookings VALUES(?, ?, CURRENT_TIMESTAMP, ?, ?, ?)";
+	// partitioned bookings also carry the date of their show (see partition.sql); same parameters
+	static final String ADD_BOOKING_PARTITIONED_SQL = "INSERT INTO bookings (bid, status, bdatetime, seats, sid, email, sdate) " +
+			"SELECT v.bid, v.status, CURRENT_TIMESTAMP, v.seats, v.sid, v.email, s.sdate " +
+			"FROM (VALUES (?::bigint, ?::varchar, ?::integer, ?::bigint, ?::varchar)) AS v(bid, status, seats, sid, email) " +
+			"JOIN shows s ON s.sid = v.sid";
+	static final String ADD_MOVIE_SQL = "INSERT INTO movies VALUES(?, ?, ?, ?, ?, ?, ?, ?)";
+	static final String ADD_SHOW_SQL = "INSERT INTO shows VALUES(?, ?, ?, ?, ?)";
+	static final String ADD_PLAY_SQL = "INSERT INTO plays VALUES(?, ?)";
+	// MaintenanceJob batches: lock up to ? bookings, free their seats, change them,
+	// and return (bookings changed, shows whose seats were freed)
+	static final String CANCEL_PENDING_SQL = "WITH batch AS (" +
+			"SELECT bid FROM bookings WHERE status = 'Pending' " +
+			"ORDER BY bid LIMIT ? FOR UPDATE SKIP LOCKED), " +
+			"freed AS (UPDATE showseats SET bid = NULL WHERE bid IN (SELECT bid FROM batch) RETURNING sid), " +
+			"done AS (UPDATE bookings SET status = 'Cancelled' WHERE bid IN (SELECT bid FROM batch) RETURNING bid) " +
+			"SELECT (SELECT count(*) FROM done), (SELECT string_agg(DISTINCT sid::text, ',') FROM freed)";
+	static final String BOOKING_SHOW_SQL = "SELECT sid FROM bookings WHERE bid = ?";
+	static final String LOCK_BOOKED_SEATS_SQL = "SELECT ss.ssid, c.sno, ss.price FROM showseats ss, cinemaseats c " +
+			"WHERE ss.bid = ? AND c.csid = ss.csid AND c.sno = ANY(?::int[]) " +
+			"ORDER BY ss.ssid FOR UPDATE OF ss";
+	static final String LOCK_FREE_SEATS_SQL = "SELECT ss.ssid, c.sno, ss.price FROM showseats ss, cinemaseats c " +
+			"WHERE ss.sid = ? AND c.csid = ss.csid AND c.sno = ANY(?::int[]) AND ss.bid IS NULL " +
+			"ORDER BY ss.ssid FOR UPDATE OF ss SKIP LOCKED";
+	static final String SWAP_SEATS_SQL = "UPDATE showseats SET bid = CASE WHEN bid IS NULL THEN ?::bigint ELSE NULL END " +
+			"WHERE ssid = ANY(?::bigint[])";
+	static final String CANCEL_BOOKING_SQL = "UPDATE bookings " +
+			"SET status = 'Cancelled' " +
+			"WHERE bid = ?";
+	static final String DELETE_PAYMENT_SQL = "DELETE FROM payments " +
+			"USING bookings " +
+			"WHERE payments.bid = ? " +
+			"AND bookings.bid = payments.bid " +
+			"AND bookings.status = 'Cancelled'";
+	static final String CLEAR_CANCELLED_SQL = "WITH batch AS (" +
+			"SELECT bid FROM bookings WHERE status = 'Cancelled' " +
+			"ORDER BY bid LIMIT ? FOR UPDATE SKIP LOCKED), " +
+			"freed AS (UPDATE showseats SET bid = NULL WHERE bid IN (SELECT bid FROM batch) RETURNING sid), " +
+			"done AS (DELETE FROM bookings WHERE bid IN (SELECT bid FROM batch) RETURNING bid) " +
+			"SELECT (SELECT count(*) FROM done), (SELECT string_agg(DISTINCT sid::text, ',') FROM freed)";
+	static final String REMOVE_PLAYS_ON_DATE_SQL = "DELETE FROM plays " +
+			"USING shows, theaters " +
+			"WHERE shows.sdate = ?::date " +
+			"AND theaters.tname = ? " +
+			"AND shows.sid = plays.sid " +
+			"AND theaters.tid = plays.tid";
+	// bookings for the shows a theater plays on a date, matched on the show's typed sdate
+	static final String CANCEL_BOOKINGS_ON_DATE_SQL = "WITH batch AS (" +
+			"SELECT b.bid FROM bookings b, shows s, plays p, theaters t " +
+			"WHERE s.sdate = ?::date AND t.tname = ? " +
+			"AND b.sid = s.sid AND p.sid = s.sid AND t.tid = p.tid AND b.status <> 'Cancelled' " +
+			"ORDER BY b.bid LIMIT ? FOR UPDATE OF b SKIP LOCKED), " +
+			"freed AS (UPDATE showseats SET bid = NULL WHERE bid IN (SELECT bid FROM batch) RETURNING sid), " +
+			"done AS (UPDATE bookings SET status = 'Cancelled' WHERE bid IN (SELECT bid FROM batch) RETURNING bid) " +
+			"SELECT (SELECT count(*) FROM done), (SELECT string_agg(DISTINCT sid::text, ',') FROM freed)";
+	// same, joining on sdate as well so only the date's partition of bookings is read
+	static final String CANCEL_BOOKINGS_ON_DATE_PARTITIONED_SQL = CANCEL_BOOKINGS_ON_DATE_SQL.replace(
+			"AND b.sid = s.sid ", "AND b.sid = s.sid AND b.sdate = s.sdate ");
+	// the browse operations read the trigger-maintained ShowSchedule (see create.sql)
+	static final String THEATERS_PLAYING_SHOW_SQL = "select tname, sttime from showschedule where title = ?";
+	static final String SHOWS_AT_TIME_AND_DATE_SQL = "SELECT sid, mvid, title, sdate, sttime, edtime, tname " +
+			"FROM showschedule " +
+			"WHERE sdate = ? " +
+			"AND sttime = ?";
+	// search words used at most; each one is another index condition
+	static final int SEARCH_MAX_TERMS = 8;
+	/*
+	 * The paginated listings seek past the last row of the previous page
+	 * (keyset pagination) instead of skipping rows with OFFSET, so every
+	 * page is an index range scan however deep the caller has paged.
+	 */
+	static final String PENDING_USERS_SQL = "SELECT u.fname, u.lname, u.email, p.pending " +
+			"FROM (SELECT email, count(*) AS pending " +
+			"FROM bookings " +
+			"WHERE status = 'Pending' " +
+			"AND email > ? " +
+			"GROUP BY email " +
+			"ORDER BY email " +
+			"LIMIT ?) p " +
+			"JOIN users u ON u.email = p.email " +
+			"ORDER BY u.email";
+	static final String MOVIE_SHOWS_IN_RANGE_SQL = "select tname, title, duration, sdate, sttime from showschedule where title = ? and sdate between ? and ?";
+	// the reports read the rollups (see Rollups.java), never the live tables
+	static final String REVENUE_REPORT_SQL = "SELECT r.sdate, r.cid, c.cname, ci.city_name, r.payments, r.revenue, " +
+			"r.seats_sold, r.seats_total, round(100.0 * r.seats_sold / NULLIF(r.seats_total, 0), 1) AS occupancy " +
+			"FROM cinemadayrollup r JOIN cinemas c ON c.cid = r.cid JOIN cities ci ON ci.city_id = c.city_id " +
+			"WHERE r.sdate BETWEEN ? AND ? " +
+			"ORDER BY r.sdate, r.cid";
+	static final String REVENUE_AT_CINEMA_REPORT_SQL = REVENUE_REPORT_SQL.replace("WHERE ", "WHERE r.cid = ? AND ");
+	static final String OCCUPANCY_REPORT_SQL = "SELECT r.sdate, s.sttime, r.sid, m.title, r.cid, r.seats_sold, r.seats_total, " +
+			"round(100.0 * r.seats_sold / NULLIF(r.seats_total, 0), 1) AS occupancy, r.payments, r.revenue " +
+			"FROM showrollup r JOIN shows s ON s.sid = r.sid AND s.sdate = r.sdate JOIN movies m ON m.mvid = s.mvid " +
+			"WHERE r.sdate BETWEEN ? AND ? " +
+			"ORDER BY r.sdate, s.sttime, r.sid";
+	static final String OCCUPANCY_AT_CINEMA_REPORT_SQL = OCCUPANCY_REPORT_SQL.replace("WHERE ", "WHERE r.cid = ? AND ");
+	static final String MOVIE_SHOWS_AT_CINEMA_IN_RANGE_SQL = "select tname, title, duration, sdate, sttime from showschedule where cid = ? and sdate between ? and ? and title = ?";
+	// one row per seat, ordered by (bid, ssid); b.bid >= ? lets the seek use bookings_email_bid_idx
+	static final String USER_BOOKINGS_SQL = "SELECT b.bid, ss.ssid, m.title, s.sdate, s.sttime, t.tname, c.sno " +
+			"FROM bookings b " +
+			"JOIN showseats ss ON ss.bid = b.bid " +
+			"JOIN cinemaseats c ON c.csid = ss.csid " +
+			"JOIN theaters t ON t.tid = c.tid " +
+			"JOIN shows s ON s.sid = b.sid " +
+			"JOIN movies m ON m.mvid = s.mvid " +
+			"WHERE b.email = ? " +
+			"AND b.status = 'Paid' " +
+			"AND b.bid >= ? " +
+			"AND (b.bid > ? OR ss.ssid > ?) " +
+			"ORDER BY b.bid, ss.ssid " +
+			"LIMIT ?";
+
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
@@ -48,8 +229,23 @@ public class Ticketmaster{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			/*
+			 * stringtype=unspecified lets the server infer the type of string
+			 * parameters, so user-entered dates and times can be bound as text
+			 */
+			url += "?stringtype=unspecified&prepareThreshold=" + PREPARE_THRESHOLD;
+
+			// open the pool, which obtains the first physical connection(s)
+			this._pool = new ConnectionPool(url, user, passwd, Math.max(1, POOL_MIN), POOL_MAX,
+					POOL_ACQUIRE_TIMEOUT, POOL_VALIDATION_INTERVAL, STATEMENT_CACHE_SIZE);
+			this._pool.start();
+			this.replicas = new ReplicaRouter(this._pool, url, user, passwd, POOL_MAX,
+					POOL_VALIDATION_INTERVAL, STATEMENT_CACHE_SIZE);
+			this.reference.start();
+			this.partitions.start();
+			this.expiry.start();
+			this.rollups.start();
+			this.replicas.start();
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -60,99 +256,244 @@ public class Ticketmaster{
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  Values are passed
+	 * separately from the SQL text and bound to its ? placeholders.
 	 * 
 	 * @param sql the input SQL string
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long started = System.nanoTime ();
+		int rowCount;
+		PooledConnection conn = acquire ();
+		try{
+			// fetches the cached statement object
+			PreparedStatement stmt = conn.prepare (sql);
+			bindParameters (stmt, params);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			rowCount = stmt.executeUpdate ();
+		}catch (SQLException e){
+			conn.checkError (e);
+			throw e;
+		}finally{
+			release (conn);
+		}
+		wrote ();
+		recordStatement (sql, params, started, rowCount, 1);
+		return rowCount;
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * method issues the query to the DBMS and outputs the results through a
+	 * ResultWriter, to standard out unless ticketmaster.output.file is set.
+	 * Rows are streamed, so memory use does not grow with the size of the
+	 * result.
 	 * 
 	 * @param query the input query string
+	 * @param params the values bound to the ? placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		ResultWriter out = openResultWriter ();
+		try{
+			return (int) executeQueryAndStream (query, out, params);
+		}finally{
+			out.close ();
+		}
+	}
+
+	/**
+	 * Opens the configured ResultWriter (see ResultWriter.open()).
+	 *
+	 * @throws java.sql.SQLException when the output file or command cannot be opened
+	 */
+	static ResultWriter openResultWriter () throws SQLException {
+		try{
+			return ResultWriter.open ();
+		}catch (IOException e){
+			throw new SQLException ("Unable to open the result output: " + e.getMessage (), "58030", e);
+		}//end try
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Reads and discards each row, for callers that only need the count.
+	 */
+	static final RowHandler DISCARD_ROWS = new RowHandler(){
+		public void handleRow (Row row) {
+		}
+	};
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+	 * each row to a callback as it arrives.  The rows are read through a
+	 * server-side cursor FETCH_SIZE rows at a time, so only one batch is held
+	 * in memory however large the result is.
+	 * 
+	 * @param query the input query string
+	 * @param handler called once per row, in result order
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+		return executeQueryAndStream (query, FETCH_SIZE, handler, params);
+	}
+
+	/**
+	 * Same as executeQueryAndStream(query, handler, params) with an explicit
+	 * number of rows fetched per round trip.
+	 * 
+	 * @param query the input query string
+	 * @param fetchSize rows fetched from the cursor per round trip
+	 * @param handler called once per row, in result order
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryAndStream (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		long started = System.nanoTime ();
+		long rowCount;
+		PooledConnection conn = acquire ();
+		try{
+			rowCount = streamRows (conn, query, fetchSize, handler, params);
+		}catch (SQLException e){
+			conn.checkError (e);
+			throw e;
+		}finally{
+			//release() rolls back and restores auto-commit if we did not commit
+			release (conn);
+		}
+		//one round trip per fetched batch, plus the commit
+		recordStatement (query, params, started, rowCount, 2 + rowCount / Math.max (1, fetchSize));
+		return rowCount;
+	}
+
+	/**
+	 * Same as executeQueryAndStream(query, handler, params) for a query
+	 * that only reads and may see data a moment old: outside a transaction
+	 * it runs on a replica when ReplicaRouter has a healthy one.  A query
+	 * that fails on the replica before its first row is retried on the
+	 * primary.
+	 * 
+	 * @param query the input query string
+	 * @param handler called once per row, in result order
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeReadQueryAndStream (String query, final RowHandler handler, Object... params) throws SQLException {
+		PooledConnection conn = inTransaction () ? null : this.replicas.acquireRead ();
+		if (conn == null){
+			return executeQueryAndStream (query, FETCH_SIZE, handler, params);
+		}//end if
+		long started = System.nanoTime ();
+		long rowCount;
+		final long[] handled = {0};
+		try{
+			rowCount = streamRows (conn, query, FETCH_SIZE, new RowHandler(){
+				public void handleRow (Row row) throws SQLException {
+					++handled[0];
+					handler.handleRow (row);
+				}
+			}, params);
+		}catch (SQLException e){
+			conn.checkError (e);
+			this.replicas.failed (conn, e);
+			if (handled[0] > 0){
+				throw e;
+			}//end if
+			rowCount = -1;
+		}finally{
+			this.replicas.release (conn);
+		}
+		if (rowCount < 0){
+			return executeQueryAndStream (query, FETCH_SIZE, handler, params);
+		}//end if
+		recordStatement (query, params, started, rowCount, 2 + rowCount / FETCH_SIZE);
+		return rowCount;
+	}
 
+	/**
+	 * Runs a query on the given connection and hands each row to the
+	 * handler, through a cursor of fetchSize rows.
+	 */
+	private static long streamRows (PooledConnection conn, String query, int fetchSize, RowHandler handler, Object[] params) throws SQLException {
 		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
+		 * the driver only uses a cursor, instead of reading the whole
+		 * result, when auto-commit is off and a fetch size is set
 		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
+		boolean ownTransaction = conn.getConnection ().getAutoCommit ();
+		conn.getConnection ().setAutoCommit (false);
+
+		//fetches the cached statement object
+		PreparedStatement stmt = conn.prepare (query);
+		bindParameters (stmt, params);
+		stmt.setFetchSize (fetchSize);
+
+		//issues the query instruction and walks the cursor
+		ResultSet rs = stmt.executeQuery ();
+		Row row = new Row (rs);
+		while (row.next ()){
+			handler.handleRow (row);
 		}//end while
-		stmt.close ();
-		return rowCount;
+		rs.close ();
+		if (ownTransaction){
+			conn.getConnection ().commit ();
+		}//end if
+		return row.getRowNumber ();
 	}
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * a list of records. Each record in turn is a list of attribute values.
+	 * The whole result is held in memory; use executeQueryAndStream for
+	 * queries that may return many rows.
 	 * 
 	 * @param query the input query string
+	 * @param params the values bound to the ? placeholders, in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		long started = System.nanoTime ();
 		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
+		PooledConnection conn = acquire ();
+		try{
+			//fetches the cached statement object 
+			PreparedStatement stmt = conn.prepare (query); 
+			bindParameters (stmt, params);
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+		}catch (SQLException e){
+			conn.checkError (e);
+			throw e;
+		}finally{
+			release (conn);
+		}
+		recordStatement (query, params, started, result.size (), 1);
 		return result; 
 	}//end executeQueryAndReturnResult
 	
@@ -161,30 +502,134 @@ public class Ticketmaster{
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
 	 * @param query the input query string
+	 * @param params the values bound to the ? placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long started = System.nanoTime ();
 		int rowCount = 0;
-
-		//iterates through the result set and count number of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
+		PooledConnection conn = acquire ();
+		try{
+			//fetches the cached statement object
+			PreparedStatement stmt = conn.prepare (query);
+			bindParameters (stmt, params);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+
+			//iterates through the result set and count number of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+		}catch (SQLException e){
+			conn.checkError (e);
+			throw e;
+		}finally{
+			release (conn);
+		}
+		recordStatement (query, params, started, rowCount, 1);
 		return rowCount;
 	}
+
+	/**
+	 * Method to record that the statement this thread just ran changed
+	 * data, so its later reads are not sent to a replica that has not
+	 * caught up (see ReplicaRouter).  Call it after a query that writes,
+	 * e.g. a data-modifying WITH; executeUpdate and executeInTransaction
+	 * call it themselves.
+	 */
+	public void wrote () {
+		if (!inTransaction ()){
+			this.replicas.wrote ();
+		}//end if
+	}
 	
+	/**
+	 * Method to run several statements as one transaction.  Every execute
+	 * helper called by the work on this thread uses the same connection,
+	 * with auto-commit off; the transaction commits when the work returns
+	 * and rolls back if it throws.  A nested call joins the outer
+	 * transaction.
+	 * 
+	 * @param work the statements to run
+	 * @return whatever the work returns
+	 * @throws java.sql.SQLException when a statement or the commit failed
+	 */
+	public <T> T executeInTransaction (Transaction<T> work) throws SQLException {
+		if (this._transaction.get () != null){
+			return work.run ();
+		}//end if
+		PooledConnection conn = this._pool.acquire ();
+		this._transaction.set (conn);
+		try{
+			conn.getConnection ().setAutoCommit (false);
+			T result = work.run ();
+			conn.getConnection ().commit ();
+			this.replicas.wrote ();
+			return result;
+		}catch (SQLException e){
+			conn.checkError (e);
+			rollbackQuietly (conn);
+			throw e;
+		}catch (RuntimeException e){
+			rollbackQuietly (conn);
+			throw e;
+		}finally{
+			this._transaction.remove ();
+			this._pool.release (conn);
+			this.reference.endTransaction ();
+		}
+	}
+
+	/**
+	 * @return true when the calling thread is inside executeInTransaction
+	 */
+	public boolean inTransaction () {
+		return this._transaction.get () != null;
+	}
+
+	/**
+	 * Borrows the connection for one statement: the calling thread's
+	 * transaction connection if it has one, otherwise a pooled connection.
+	 */
+	private PooledConnection acquire () throws SQLException {
+		PooledConnection conn = this._transaction.get ();
+		return conn != null ? conn : this._pool.acquire ();
+	}
+
+	/**
+	 * Hands back a connection taken with acquire(); a transaction's
+	 * connection stays with its transaction.
+	 */
+	private void release (PooledConnection conn) {
+		if (conn != this._transaction.get ()){
+			this._pool.release (conn);
+		}//end if
+	}
+
+	/**
+	 * Opens a connection outside the pool; the caller closes it.
+	 */
+	Connection openConnection () throws SQLException {
+		return this._pool.openUnpooled ();
+	}
+
+	private static void rollbackQuietly (PooledConnection conn) {
+		try{
+			conn.getConnection ().rollback ();
+		}catch (SQLException e){
+			// ignored; the pool discards the connection if it is broken.
+		}//end try
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.  currval() is
+	 * per session, so this only sees a nextval() issued on the same
+	 * pooled connection.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -192,40 +637,280 @@ public class Ticketmaster{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		PooledConnection conn = acquire ();
+		try{
+			PreparedStatement stmt = conn.prepare ("Select currval(?)");
+			stmt.setString (1, sequence);
+			
+			ResultSet rs = stmt.executeQuery ();
+			int value = rs.next() ? rs.getInt(1) : -1;
+			rs.close ();
+			return value;
+		}catch (SQLException e){
+			conn.checkError (e);
+			throw e;
+		}finally{
+			release (conn);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to advance a sequence and return its new value.  Use an
+	 * IdAllocator instead to avoid one round trip per generated key.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return the next value of the sequence
+	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public void cleanup(){
+	public long getNextSeqVal(String sequence) throws SQLException {
+		List<List<String>> result = executeQueryAndReturnResult ("Select nextval(?)", sequence);
+		wrote ();
+		return Long.parseLong (result.get(0).get(0));
+	}
+
+	/**
+	 * Method to look up how far each nextval() advances a sequence.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return the sequence's INCREMENT BY
+	 * @throws java.sql.SQLException when the sequence does not exist
+	 */
+	public int getSeqIncrement(String sequence) throws SQLException {
+		List<List<String>> result = executeQueryAndReturnResult (
+			"SELECT increment_by FROM pg_sequences WHERE schemaname = current_schema() AND sequencename = ?", sequence);
+		if (result.isEmpty ()){
+			throw new SQLException ("Sequence " + sequence + " does not exist; re-run create.sql", "42P01");
+		}//end if
+		return Integer.parseInt (result.get(0).get(0));
+	}
+
+	/**
+	 * Records a finished statement in the metrics of the calling thread's
+	 * operation, and logs it with its plan when it was slow.
+	 * 
+	 * @param sql the statement text
+	 * @param params the bound values
+	 * @param started System.nanoTime() when the statement was issued
+	 * @param rows rows returned or affected
+	 * @param roundTrips database round trips the statement needed
+	 */
+	private void recordStatement (String sql, Object[] params, long started, long rows, long roundTrips) {
+		long elapsed = System.nanoTime () - started;
+		boolean slow = SLOW_QUERY_MS >= 0 && elapsed >= SLOW_QUERY_MS * 1000000L;
+		this._metrics.recordStatement (elapsed, rows, roundTrips, slow);
+		if (slow){
+			logSlowQuery (sql, params, elapsed);
+		}//end if
+	}
+
+	/**
+	 * Queues a slow statement for the slow query log.  Its plan is taken by
+	 * a background thread on a connection of its own, so the caller, which
+	 * may be holding locks in an open transaction, never waits on it.
+	 * 
+	 * @param sql the statement text
+	 * @param params the bound values
+	 * @param elapsed how long the statement took, in ns
+	 */
+	private void logSlowQuery (final String sql, final Object[] params, long elapsed) {
+		final StringBuilder entry = new StringBuilder ();
+		entry.append ("-- ").append (new Timestamp (System.currentTimeMillis ()))
+			.append (" operation=").append (Metrics.currentOperation ())
+			.append (" elapsed=").append (elapsed / 1000000L).append (" ms\n")
+			.append (sql).append ("\n-- params: ").append (java.util.Arrays.toString (params)).append ("\n");
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
+			this._explainer.execute (new Runnable(){
+				public void run () {
+					explainSlowQuery (sql, params, entry);
+				}
+			});
+		}catch (java.util.concurrent.RejectedExecutionException e){
+			writeSlowQuery (entry.append ("-- plan skipped: too many slow statements waiting\n"));
+		}//end try
+	}
+
+	/**
+	 * Appends a slow statement and its plan to the slow query log.  Only
+	 * the pure reads in ANALYZED_SQL are re-run under EXPLAIN (ANALYZE,
+	 * BUFFERS) for actual timings; anything else could change data, take
+	 * locks or burn sequence values a second time, so it gets its
+	 * estimated plan.
+	 */
+	private void explainSlowQuery (String sql, Object[] params, StringBuilder entry) {
+		String explain = (ANALYZED_SQL.contains (sql) ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql;
+		PooledConnection conn = null;
+		try{
+			conn = this._pool.acquire ();
+			PreparedStatement stmt = conn.getConnection ().prepareStatement (explain);
+			bindParameters (stmt, params);
+			ResultSet rs = stmt.executeQuery ();
+			while (rs.next ()){
+				entry.append (rs.getString (1)).append ("\n");
+			}//end while
+			stmt.close ();
 		}catch (SQLException e){
-	         // ignored.
+			if (conn != null){
+				conn.checkError (e);
+			}//end if
+			entry.append ("-- plan unavailable: ").append (e.getMessage ()).append ("\n");
+		}finally{
+			if (conn != null){
+				this._pool.release (conn);
+			}//end if
+		}
+		writeSlowQuery (entry);
+	}
+
+	private static void writeSlowQuery (StringBuilder entry) {
+		synchronized (Ticketmaster.class){
+			try{
+				Writer log = new BufferedWriter (new FileWriter (SLOW_QUERY_LOG, true));
+				log.write (entry.append ("\n").toString ());
+				log.close ();
+			}catch (IOException e){
+				System.err.println ("Unable to write slow query log: " + e.getMessage ());
+			}//end try
+		}
+	}
+
+	// the statements safe to run twice under EXPLAIN ANALYZE: plain reads, no locks, no side effects
+	static final Set<String> ANALYZED_SQL = new HashSet<String> (Arrays.asList (
+		THEATERS_PLAYING_SHOW_SQL, SHOWS_AT_TIME_AND_DATE_SQL, PENDING_USERS_SQL,
+		MOVIE_SHOWS_IN_RANGE_SQL, MOVIE_SHOWS_AT_CINEMA_IN_RANGE_SQL, USER_BOOKINGS_SQL,
+		REVENUE_REPORT_SQL, REVENUE_AT_CINEMA_REPORT_SQL, OCCUPANCY_REPORT_SQL, OCCUPANCY_AT_CINEMA_REPORT_SQL));
+
+	/**
+	 * @return the latency and round-trip counters of this instance
+	 */
+	public Metrics getMetrics () {
+		return this._metrics;
+	}
+
+	/**
+	 * Formats ids as a PostgreSQL array literal, for binding to a
+	 * "= ANY(?::bigint[])" predicate.
+	 * 
+	 * @param ids the ids
+	 * @return the literal, e.g. {1,2,3}
+	 */
+	static String toArrayLiteral (long[] ids) {
+		StringBuilder sb = new StringBuilder ("{");
+		for (int i = 0; i < ids.length; ++i){
+			if (i > 0){
+				sb.append (',');
+			}//end if
+			sb.append (ids[i]);
+		}//end for
+		return sb.append ('}').toString ();
+	}
+
+	static String toArrayLiteral (int[] values) {
+		long[] ids = new long[values.length];
+		for (int i = 0; i < values.length; ++i){
+			ids[i] = values[i];
+		}//end for
+		return toArrayLiteral (ids);
+	}
+
+	/**
+	 * Binds each value to the matching ? placeholder using the setter for
+	 * its Java type.  A null value is sent as an untyped SQL NULL.
+	 * 
+	 * @param stmt the statement to bind
+	 * @param params the values, in placeholder order
+	 * @throws java.sql.SQLException when a value cannot be bound
+	 */
+	static void bindParameters (PreparedStatement stmt, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; ++i){
+			Object value = params[i];
+			int index = i + 1;
+			if (value == null){
+				stmt.setNull (index, Types.NULL);
+			}else if (value instanceof Integer){
+				stmt.setInt (index, (Integer) value);
+			}else if (value instanceof Long){
+				stmt.setLong (index, (Long) value);
+			}else if (value instanceof String){
+				stmt.setString (index, (String) value);
+			}else if (value instanceof Double){
+				stmt.setDouble (index, (Double) value);
+			}else if (value instanceof Float){
+				stmt.setFloat (index, (Float) value);
+			}else if (value instanceof Boolean){
+				stmt.setBoolean (index, (Boolean) value);
+			}else if (value instanceof BigDecimal){
+				stmt.setBigDecimal (index, (BigDecimal) value);
+			}else if (value instanceof Date){
+				stmt.setDate (index, (Date) value);
+			}else if (value instanceof Time){
+				stmt.setTime (index, (Time) value);
+			}else if (value instanceof Timestamp){
+				stmt.setTimestamp (index, (Timestamp) value);
+			}else{
+				stmt.setObject (index, value);
+			}//end if
+		}//end for
+	}
+
+	/**
+	 * Method to close the connection pool and every physical connection in it.
+	 */
+	public void cleanup(){
+		// let the queued slow query plans finish while the pool is still open
+		this._explainer.shutdown ();
+		try{
+			this._explainer.awaitTermination (5, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread ().interrupt ();
 		}//end try
+		this.reference.stop ();
+		this.partitions.stop ();
+		this.expiry.stop ();
+		this.rollups.stop ();
+		if (this.replicas != null){
+			this.replicas.stop ();
+		}//end if
+		this._metrics.stopServer ();
+		if (METRICS_FILE != null){
+			try{
+				Writer out = new BufferedWriter (new FileWriter (METRICS_FILE));
+				this._metrics.dump (out);
+				// the background components' counters, as comments
+				out.write ("# " + this.expiry.stats () + "\n");
+				out.write ("# " + this.reference.stats () + "\n");
+				if (this.replicas != null){
+					out.write ("# " + this.replicas.stats () + "\n");
+				}//end if
+				out.close ();
+			}catch (IOException e){
+				System.err.println ("Unable to write metrics: " + e.getMessage ());
+			}//end try
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
 	 * The main execution method
 	 * 
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 *        and optionally -batch <file|-> to run a script instead of the menu
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length != 3 && !(args.length == 5 && args[3].equals ("-batch"))) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [-batch <file>|-]");
 			return;
 		}//end if
 		
 		Ticketmaster esql = null;
+		// in batch mode stdout carries only the JSON lines; every other message goes to stderr
+		PrintStream results = System.out;
+		if (args.length == 5){
+			System.setOut (System.err);
+		}//end if
 		
 		try{
 			System.out.println("(1)");
@@ -245,6 +930,20 @@ public class Ticketmaster{
 			String user = args[2];
 			
 			esql = new Ticketmaster (dbname, dbport, user, "");
+			if (METRICS_PORT > 0){
+				esql.getMetrics ().startServer (METRICS_PORT);
+			}//end if
+
+			if (args.length == 5){
+				// headless: run the script's operations and print one JSON line each
+				BufferedReader script = args[4].equals ("-")
+					? in
+					: new BufferedReader (new InputStreamReader (new FileInputStream (args[4]), "UTF-8"));
+				int failures = new BatchRunner (esql, results, BatchRunner.BATCH_SIZE).run (script);
+				script.close ();
+				System.err.println (failures + " operation(s) failed");
+				return;
+			}//end if
 			
 			boolean keepon = true;
 			while(keepon){
@@ -260,31 +959,43 @@ public class Ticketmaster{
 				System.out.println("8. Remove Shows on a Given Date");
 				System.out.println("9. List all Theaters in a Cinema Playing a Given Show");
 				System.out.println("10. List all Shows that Start at a Given Time and Date");
-				System.out.println("11. List Movie Titles Containing \"love\" Released After 2010");
+				System.out.println("11. Search Movie Titles (e.g. Containing \"love\" Released After 2010)");
 				System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
 				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
 				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
-				System.out.println("15. EXIT");
+				System.out.println("15. Revenue and Occupancy Report for a Date Range");
+				System.out.println("16. EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
-					case 1: AddUser(esql); break;
-					case 2: AddBooking(esql); break;
-					case 3: AddMovieShowingToTheater(esql); break;
-					case 4: CancelPendingBookings(esql); break;
-					case 5: ChangeSeatsForBooking(esql); break;
-					case 6: RemovePayment(esql); break;
-					case 7: ClearCancelledBookings(esql); break;
-					case 8: RemoveShowsOnDate(esql); break;
-					case 9: ListTheatersPlayingShow(esql); break;
-					case 10: ListShowsStartingOnTimeAndDate(esql); break;
-					case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
-					case 12: ListUsersWithPendingBooking(esql); break;
-					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
-					case 14: ListBookingInfoForUser(esql); break;
-					case 15: keepon = false; break;
+				int choice = readChoice();
+				if (choice >= 1 && choice < OPERATIONS.length){
+					esql.getMetrics().beginOperation(OPERATIONS[choice]);
+				}
+				boolean failed = true;
+				try{
+					switch (choice){
+						case 1: AddUser(esql); break;
+						case 2: AddBooking(esql); break;
+						case 3: AddMovieShowingToTheater(esql); break;
+						case 4: CancelPendingBookings(esql); break;
+						case 5: ChangeSeatsForBooking(esql); break;
+						case 6: RemovePayment(esql); break;
+						case 7: ClearCancelledBookings(esql); break;
+						case 8: RemoveShowsOnDate(esql); break;
+						case 9: ListTheatersPlayingShow(esql); break;
+						case 10: ListShowsStartingOnTimeAndDate(esql); break;
+						case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
+						case 12: ListUsersWithPendingBooking(esql); break;
+						case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
+						case 14: ListBookingInfoForUser(esql); break;
+						case 15: RevenueAndOccupancyReport(esql); break;
+						case 16: keepon = false; break;
+					}
+					failed = false;
+				}finally{
+					esql.getMetrics().endOperation(failed);
 				}
 			}
 		}catch(Exception e){
@@ -302,14 +1013,27 @@ public class Ticketmaster{
 		}
 	}
 
+	// metric names of the menu operations, indexed by menu choice
+	static final String[] OPERATIONS = {null,
+		"AddUser", "AddBooking", "AddMovieShowingToTheater", "CancelPendingBookings",
+		"ChangeSeatsForBooking", "RemovePayment", "ClearCancelledBookings", "RemoveShowsOnDate",
+		"ListTheatersPlayingShow", "ListShowsStartingOnTimeAndDate", "ListMovieTitlesContainingLoveReleasedAfter2010",
+		"ListUsersWithPendingBooking", "ListMovieAndShowInfoAtCinemaInDateRange", "ListBookingInfoForUser",
+		"RevenueAndOccupancyReport"};
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
 		do {
 			System.out.print("Please make your choice: ");
 			try { // read the integer, parse it and break.
+				String line = in.readLine();
+				if (line == null) {
+					// end of piped input: EXIT
+					return OPERATIONS.length;
+				}//end if
 				// parseInt() converts string to int
-				input = Integer.parseInt(in.readLine());
+				input = Integer.parseInt(line.trim());
 				break;
 			}catch (Exception e) {
 				System.out.println("Your input is invalid!");
@@ -318,10 +1042,49 @@ public class Ticketmaster{
 		}while (true);
 		return input;
 	}//end readChoice
+
+	/**
+	 * Reads a number typed on its own line, asking again until it is one.
+	 * Every prompt reads through the one shared reader 'in': a second reader
+	 * on System.in would buffer away the answers to later prompts when input
+	 * is piped in.
+	 *
+	 * @return the number
+	 * @throws java.io.IOException at the end of the input
+	 */
+	public static long readLong() throws IOException {
+		do {
+			String line = in.readLine();
+			if (line == null) {
+				throw new EOFException("End of input");
+			}//end if
+			try {
+				return Long.parseLong(line.trim());
+			}catch (NumberFormatException e) {
+				System.out.print("Please enter a number: ");
+			}//end try
+		}while (true);
+	}//end readLong
+
+	/**
+	 * Reads a count or seat number; a value outside the int range is
+	 * rejected and asked for again rather than silently wrapped.
+	 *
+	 * @return the number
+	 * @throws java.io.IOException at the end of the input
+	 */
+	public static int readInt() throws IOException {
+		do {
+			try {
+				return Math.toIntExact(readLong());
+			}catch (ArithmeticException e) {
+				System.out.print("Please enter a smaller number: ");
+			}//end try
+		}while (true);
+	}//end readInt
 	
 
 	public static void AddUser(Ticketmaster esql) throws IOException, SQLException {//1
-		Scanner input = new Scanner(System.in);
 
 		//Prompt user to enter email, lname, fname, phone, and pwd
 		System.out.print("Enter email: ");
@@ -339,36 +1102,66 @@ public class Ticketmaster{
 		System.out.print("Enter password: ");
 		String pwd = in.readLine();
 
-		//Insert values into the query
-		String insertQuery = "INSERT INTO Users VALUES(" + "\'"+ email+ "\'" + "," +  "\'"+ lname+ "\'"
-				+ "," + "\'" +fname+ "\'" +"," + phone+ "," + "\'" + pwd+ "\'" + ")";
-		//Show the query to the console.
-		//System.out.println(insertQuery);
-		//Execute the query
-		esql.executeUpdate(insertQuery);
+		AddUser(esql, email, lname, fname, phone.isEmpty() ? null : phone, pwd);
 		System.out.print("User has been added to database!\n");
 
 	}
 
+	/**
+	 * Adds a user without prompting; the menu's AddUser calls this with what
+	 * was typed in.
+	 *
+	 * @param phone the phone number, or null
+	 */
+	public static void AddUser(Ticketmaster esql, String email, String lname, String fname, String phone, String pwd) throws SQLException {
+		//Bind the values into the query and execute it
+		esql.executeUpdate(ADD_USER_SQL, email, lname, fname, phone, pwd);
+	}
+
 	public static void AddBooking(Ticketmaster esql) throws IOException, SQLException {//2
-		Scanner input = new Scanner(System.in);
 		/*
-		Grab the values: bid, dateTime, email, sets, showing id, and status to insert into the query.
+		Grab the values: dateTime, email, sets, showing id, and status to insert into the query.
 		 */
-		String query = "SELECT MAX(bid) FROM bookings";
-		//Return result as a list
-		List<List<String>> maxBid = esql.executeQueryAndReturnResult(query);
-		//Grab highest bid and add 1
-		Integer bid = Integer.parseInt(maxBid.get(0).get(0)) + 1;
-		//Grab the current date/time
-		String dateTime = "(SELECT CURRENT_TIMESTAMP)";
 		//Prompt user to enter email, seats, id, and status
 		System.out.print("Enter email: ");
 		String email = in.readLine();
 		System.out.print("Enter number of seats: ");
-		int numSeats = input.nextInt();
+		int numSeats = readInt();
 		System.out.print("Enter showing id: ");
-		int sid = input.nextInt();
+		long sid = readLong();
+		System.out.print("Choose the seats yourself (y/n): ");
+		final SeatInventory.SeatHold hold;
+		String choose = in.readLine();
+		if (choose != null && choose.trim().toLowerCase().startsWith("y"))
+		{
+			int[] seatNumbers = new int[numSeats];
+			for (int i = 0; i < numSeats; i++)
+			{
+				System.out.print("Enter seat number " + (i + 1) + ": ");
+				seatNumbers[i] = readInt();
+			}
+			//Hold the seats right away so an unavailable seat is reported before anything is written
+			hold = esql.seats.hold(sid, seatNumbers);
+			if (!hold.isHeld())
+			{
+				System.out.print("Seats not available for show " + sid + ": " + hold.getUnavailable() + "\n");
+				return;
+			}
+		}
+		else
+		{
+			//Hold the best block of adjacent seats of the type asked for
+			System.out.print("Enter seat type (blank for any): ");
+			String stype = in.readLine();
+			stype = stype == null ? "" : stype.trim();
+			hold = esql.seats.holdBlock(sid, numSeats, stype.isEmpty() ? null : stype);
+			if (hold == null)
+			{
+				System.out.print("No " + numSeats + " adjacent seats available for show " + sid + "\n");
+				return;
+			}
+			System.out.print("Your seats are " + Arrays.toString(hold.getSeatNumbers()) + "\n");
+		}
 		System.out.print("Paid or Pending: ");
 		String status = in.readLine().toLowerCase();
 		boolean statusChoice = true;
@@ -393,17 +1186,75 @@ public class Ticketmaster{
 
 		}
 
-		//Insert values into the query
-		String insertQuery = "INSERT INTO bookings VALUES(" + bid+ "," +  "\'"+ status + "\'"
-				+ "," + dateTime + "," + numSeats + "," + sid
-				+ "," + "\'" + email +"\'" + ")";
-		//Show the query to the console.
-		//System.out.println(insertQuery);
-		//Execute the query
-		esql.executeUpdate(insertQuery);
+		long bid = bookHeldSeats(esql, hold, email, status);
+		System.out.print("Your booking ID is " + bid + "\n");
+
 
 
+	}
 
+	/**
+	 * Books seats without prompting.
+	 *
+	 * @param seatNumbers the CinemaSeats.sno values to book
+	 * @param status "Paid" or "Pending"
+	 * @return the new booking id, or -1 when one of the seats is not available
+	 */
+	public static long AddBooking(Ticketmaster esql, String email, long sid, int[] seatNumbers, String status) throws SQLException {
+		SeatInventory.SeatHold hold = esql.seats.hold(sid, seatNumbers);
+		if (!hold.isHeld()){
+			return -1;
+		}//end if
+		return bookHeldSeats(esql, hold, email, status);
+	}
+
+	/**
+	 * Books the best count adjacent seats of a show without prompting (see
+	 * SeatInventory.holdBlock()).
+	 *
+	 * @param stype the seat type, or null for any
+	 * @param status "Paid" or "Pending"
+	 * @return the new booking id, or -1 when the show has no such block free
+	 */
+	public static long AddBestAvailableBooking(Ticketmaster esql, String email, long sid, int count, String stype,
+			String status) throws SQLException {
+		SeatInventory.SeatHold hold = esql.seats.holdBlock(sid, count, stype);
+		if (hold == null){
+			return -1;
+		}//end if
+		return bookHeldSeats(esql, hold, email, status);
+	}
+
+	/**
+	 * Inserts a booking for seats held with SeatInventory.hold() and assigns
+	 * them to it in one transaction.  The hold is released if that fails.
+	 *
+	 * @return the new booking id
+	 */
+	static long bookHeldSeats(final Ticketmaster esql, final SeatInventory.SeatHold hold, String email, String status) throws SQLException {
+		//Take the next booking id from this process's block of ids
+		final long bid = esql.bookingIds.next();
+		//Bind the values into the query, stamped with the current date/time
+		final Object[] values = {bid, status, hold.getShowSeatIds().length, hold.getShowId(), email};
+		//Insert the booking and assign its seats in one transaction
+		try{
+			final boolean partitioned = esql.partitions.isPartitioned();
+			esql.executeInTransaction(() -> {
+				if (esql.executeUpdate(partitioned ? ADD_BOOKING_PARTITIONED_SQL : ADD_BOOKING_SQL, values) == 0){
+					throw new SQLException("Show " + hold.getShowId() + " does not exist", "23503");
+				}//end if
+				esql.seats.writeThrough(hold, bid);
+				return null;
+			});
+		}catch (SQLException e){
+			esql.seats.release(hold);
+			throw e;
+		}
+		esql.seats.commit(hold);
+		if ("Pending".equals(status)){
+			esql.expiry.schedule(bid);
+		}//end if
+		return bid;
 	}
 
 	public static void AddMovieShowingToTheater(Ticketmaster esql) throws IOException, SQLException {//3
@@ -427,7 +1278,6 @@ public class Ticketmaster{
 		 * 
 		 * insert into plays (sid, tid) values (201, 50);
 		 */
-		Scanner input = new Scanner(System.in);
 
 		//Prompt user to enter title, rdate, country, description, duration, lang, genre
 		System.out.print("Please enter the new movie title: ");
@@ -443,7 +1293,7 @@ public class Ticketmaster{
 		String description = in.readLine();
 
 		System.out.print("Please enter the new movie duration: ");
-		int duration = input.nextInt();
+		int duration = readInt();
 
 		System.out.print("Please enter the new movie language code, such as en, de, etc.: ");
 		String lang = in.readLine();
@@ -461,126 +1311,240 @@ public class Ticketmaster{
 		System.out.print("Please enter show endtime: ");
 		String edtime = in.readLine();
 
-		// Insert values into the insert statement for movies
-		String insrtMovies = "INSERT INTO movies VALUES(" + nxtMvid + "\'"+ title + "\'" + "," +  "\'"+ rdate + "\'"
-				+ "," + "\'" + country + "\'" + "," + "\'" + description + "\'" + "," + duration + "," + "\'" + lang + "\'" + "," + "\'" + genre + "\'" + ")";
-		// Show the query to the console.
-		// System.out.println(insertQuery);
-		// Execute the query
-		esql.executeUpdate(insrtMovies);
-		System.out.print("Your new Movie ID is " + nxtMvid);
-		// input this new movie into the database then continue
-
-		// Insert values into the insert statement for shows
-		String insrtShows = "INSERT INTO shows VALUES(" + nxtSid + "," + nxtMvid + "," + "\'"+ sdate + "\'" + "," +  "\'"+ sttime + "\'"
-				+ "," + "\'" + edtime + "\'" + ")";
-		// Execute the query
-		esql.executeUpdate(insrtShows);
-		System.out.print("Your new Show ID is " + nxtSid);
-
 		System.out.print("Please enter the TID that you would like your show assigned to: ");
-		int tid = input.nextInt();
-
-		String insrtPlays = "INSERT INTO plays VALUES(" + nxtSid + "," + tid + ")";
-		esql.executeUpdate(insrtPlays);
+		long tid = readLong();
 
+		long[] ids = AddMovieShowingToTheater(esql, title, rdate, country, description, duration, lang, genre,
+			sdate, sttime, edtime, tid);
+		System.out.print("Your new Movie ID is " + ids[0] + "\n");
+		System.out.print("Your new Show ID is " + ids[1] + "\n");
 		System.out.print("Your new movie has been scheduled to play! at " + tid +"\n");
 
 		//nxtTid += 1;
-		nxtMvid += 1;
-		nxtSid = nxtSid++;
-		// if mvid <= nxtMvid print(please enter a value greater than)
+	}
+
+	/**
+	 * Adds a movie, a show of it and the theater playing it without
+	 * prompting, in one transaction (movies -> shows -> plays).
+	 *
+	 * @return {the new movie id, the new show id}
+	 */
+	public static long[] AddMovieShowingToTheater(final Ticketmaster esql, final String title, final String rdate,
+			final String country, final String description, final int duration, final String lang, final String genre,
+			final String sdate, final String sttime, final String edtime, final long tid) throws SQLException {
+		return AddMovieShowingToTheater(esql, esql.movieIds.next(), title, rdate, country, description, duration,
+				lang, genre, sdate, sttime, edtime, tid);
+	}
+
+	/**
+	 * Same as above with the movie id allocated by the caller, e.g. by
+	 * ShardRouter, which adds the same movie to every shard.
+	 */
+	public static long[] AddMovieShowingToTheater(final Ticketmaster esql, final long mvid, final String title,
+			final String rdate, final String country, final String description, final int duration, final String lang,
+			final String genre, final String sdate, final String sttime, final String edtime, final long tid) throws SQLException {
+		final long sid = esql.showIds.next();
+		// creating a partition locks its table, so it is done before (and outside) the insert transaction
+		esql.partitions.ensureMonth(sdate);
+		esql.executeInTransaction(() -> {
+			// Bind values into the insert statement for movies and execute it
+			esql.executeUpdate(ADD_MOVIE_SQL, mvid, title, rdate, country, description, duration, lang, genre);
+			// Bind values into the insert statement for shows and execute it
+			esql.executeUpdate(ADD_SHOW_SQL, sid, mvid, sdate, sttime, edtime);
+			esql.executeUpdate(ADD_PLAY_SQL, sid, tid);
+			esql.reference.movieChanged(mvid, title);
+			return null;
+		});
+		return new long[]{mvid, sid};
 	}
 
 	public static void CancelPendingBookings(Ticketmaster esql) throws IOException, SQLException{//4
 		/*
-		Sets status to 'Cancelled' for all records that have status = 'Pending'
+		Sets status to 'Cancelled' for all records that have status = 'Pending',
+		a batch at a time, and frees their seats
 		 */
-		esql.executeUpdate("UPDATE bookings " +
-				"SET status = 'Cancelled' " +
-				"WHERE status = 'Pending'");
-		System.out.print("All pending bookings have been cancelled!\n");
+		if (new MaintenanceJob(esql, "CancelPendingBookings", CANCEL_PENDING_SQL).execute()){
+			System.out.print("All pending bookings have been cancelled!\n");
+		}//end if
 	}
 
 	public static void ChangeSeatsForBooking(Ticketmaster esql) throws IOException, SQLException{//5
 		/* Change Seats Reserved for a Booking
-		 * JUST override the seats dont worry about if someone is sitting there;
 		 * Replace the seats reserved for a given booking with different seats in the same theater.
 		 * For example, a user changes their mind about where they want to sit. 
 		 * They have already booked seats 10 and 11 but would like to move back one row to seats 20 and 21.
 		 * This should only work if the new seats are available and they are the same price.
 		 * 
 		 * bookings -> showseats -> cinemaseats
-		 * Ask user for bid and new seat numbers
+		 * Ask user for bid, the seats to give up and the seats to move to
 		 * 
-		 * THIS returns seat numbers for a specific booking ID
-		 * select c.sno from bookings b, showseats s, cinemaseats c 
-		 * where b.bid = 401 and b.sid = s.sid and s.csid = c.csid;
+		 * Only this booking's ShowSeats rows move; CinemaSeats (the physical seats,
+		 * shared by every show) is never touched.  All seats move in one transaction:
 		 * 
-		 * THIS changed all of the seat numbers to 4 in the users booking:
-		 * update cinemaseats set sno = 4 where sno in 
-		 * (select c.sno from bookings b, showseats s, cinemaseats c 
-		 * where b.bid = 401 and b.sid = s.sid and s.csid = c.csid);
+		 * lock the booking's current seats:
+		 * select ss.ssid, c.sno, ss.price from showseats ss, cinemaseats c
+		 * where ss.bid = 401 and c.csid = ss.csid and c.sno = any('{10,11}') for update of ss;
 		 * 
-		 * ASK the user for their booking number and what seat # they want to change & what they want to 
-		 * change it to.
-		 *
-		 * QUERY:
-		 *
+		 * lock the free target seats, skipping rows another terminal is changing:
+		 * select ss.ssid, c.sno, ss.price from showseats ss, cinemaseats c
+		 * where ss.sid = 83 and c.csid = ss.csid and c.sno = any('{20,21}') and ss.bid is null
+		 * for update of ss skip locked;
+		 * 
+		 * swap them with a single statement:
+		 * update showseats set bid = case when bid is null then 401 else null end
+		 * where ssid = any('{...old and new ssids...}');
 		 * */
-		Scanner input = new Scanner(System.in);
-		System.out.print("Enter number of seats to change: ");
-		int num_seats = input.nextInt();
 		System.out.print("Enter the booking ID: ");
-		Integer bid = input.nextInt();
+		final long bid = readLong();
+
+		System.out.print("Enter number of seats to change: ");
+		int num_seats = readInt();
+		final int[] oldSeats = new int[num_seats];
+		final int[] newSeats = new int[num_seats];
 		for (int i = 0; i < num_seats; i++)
 		{
 			System.out.print("Enter the seat number you want changed: ");
-			int sno = input.nextInt();
+			oldSeats[i] = readInt();
 			System.out.print("Enter the new seat number you want to change to: ");
-			int new_sno = input.nextInt();
-			System.out.print("Enter the theater id: ");
-			int tid = input.nextInt();
-			System.out.println("Making changes...");
-			esql.executeUpdate("UPDATE cinemaseats SET sno = " + new_sno + " WHERE csid = (SELECT c.csid FROM bookings b, showseats s, cinemaseats c WHERE b.bid = " + bid + " AND b.sid = s.sid AND s.csid = c.csid AND c.tid = " + tid + " AND c.sno = " + sno + ")");
-			
+			newSeats[i] = readInt();
+		}
+
+		System.out.println("Making changes...");
+		String error = ChangeSeatsForBooking(esql, bid, oldSeats, newSeats);
+		if (error != null)
+		{
+			System.out.print(error + "\n");
+			return;
 		}
 		System.out.print("Changes Complete.\n");
 		
 	}
 
+	/**
+	 * Moves a booking from oldSeats[i] to newSeats[i] for every i without
+	 * prompting.
+	 *
+	 * @return null on success, otherwise why the seats could not be moved
+	 */
+	public static String ChangeSeatsForBooking(final Ticketmaster esql, final long bid, final int[] oldSeats, final int[] newSeats) throws SQLException {
+		List<List<String>> booking = esql.executeQueryAndReturnResult(BOOKING_SHOW_SQL, bid);
+		if (booking.isEmpty())
+		{
+			return "No booking with ID " + bid;
+		}
+		final long sid = Long.parseLong(booking.get(0).get(0));
+
+		//Hold the new seats first; a taken seat is rejected from memory, without a round trip
+		final SeatInventory.SeatHold hold = esql.seats.hold(sid, newSeats);
+		if (!hold.isHeld())
+		{
+			return "Seats not available for show " + sid + ": " + hold.getUnavailable();
+		}
+
+		String error;
+		try{
+			error = esql.executeInTransaction(() -> moveSeats(esql, bid, sid, oldSeats, newSeats));
+		}catch (SQLException e){
+			esql.seats.release(hold);
+			throw e;
+		}
+		if (error != null)
+		{
+			esql.seats.release(hold);
+			return error;
+		}
+		esql.seats.commit(hold);
+		esql.seats.markFree(sid, oldSeats);
+		return null;
+	}
+
+	/**
+	 * Moves a booking from oldSeats[i] to newSeats[i] for every i.  Must run
+	 * inside a transaction; nothing is written unless every old seat belongs
+	 * to the booking, every new seat is free and each pair has the same price.
+	 *
+	 * @return null on success, otherwise why the seats could not be moved
+	 */
+	static String moveSeats(Ticketmaster esql, long bid, long sid, int[] oldSeats, int[] newSeats) throws SQLException {
+		List<List<String>> current = esql.executeQueryAndReturnResult(LOCK_BOOKED_SEATS_SQL, bid, toArrayLiteral(oldSeats));
+		List<List<String>> targets = esql.executeQueryAndReturnResult(LOCK_FREE_SEATS_SQL, sid, toArrayLiteral(newSeats));
+
+		long[] ssids = new long[oldSeats.length + newSeats.length];
+		for (int i = 0; i < oldSeats.length; i++)
+		{
+			List<String> from = findSeat(current, oldSeats[i]);
+			if (from == null)
+			{
+				return "Seat " + oldSeats[i] + " is not part of booking " + bid;
+			}
+			List<String> to = findSeat(targets, newSeats[i]);
+			if (to == null)
+			{
+				return "Seat " + newSeats[i] + " is not available for show " + sid;
+			}
+			if (Double.parseDouble(from.get(2)) != Double.parseDouble(to.get(2)))
+			{
+				return "Seat " + newSeats[i] + " costs " + to.get(2) + ", seat " + oldSeats[i] + " costs " + from.get(2);
+			}
+			ssids[i] = Long.parseLong(from.get(0));
+			ssids[oldSeats.length + i] = Long.parseLong(to.get(0));
+		}
+
+		//Give up the old seats and take the new ones in one statement
+		esql.executeUpdate(SWAP_SEATS_SQL, bid, toArrayLiteral(ssids));
+		return null;
+	}
+
+	private static List<String> findSeat(List<List<String>> seats, int sno) {
+		for (List<String> seat : seats)
+		{
+			if (Integer.parseInt(seat.get(1)) == sno)
+			{
+				return seat;
+			}
+		}
+		return null;
+	}
+
 	public static void RemovePayment(Ticketmaster esql)throws IOException, SQLException{//6
-		Scanner input = new Scanner(System.in);
 		/*
 		Grab the booking id to set the status to 'Cancelled'
 		 */
 		//Grab the booking id
 		System.out.print("Input the booking id: ");
-		int bid = input.nextInt();
+		long bid = readLong();
 
-		//Execute the query to change the status from 'Paid' to 'Cancelled' based on the booking id
-		esql.executeUpdate("UPDATE bookings " +
-				"SET status = 'Cancelled' " +
-				"WHERE bid = " + bid);
+		RemovePayment(esql, bid);
 
-		/*
-		Deletes payments based on the booking that was changed from 'Paid' to 'Cancelled'
-		*/
-		esql.executeUpdate("DELETE FROM payments " +
-				"USING bookings " +
-				"WHERE payments.bid = " + bid + " " +
-				"AND bookings.status = 'Cancelled'");
+	}
 
+	/**
+	 * Cancels a booking and deletes its payment without prompting, in one
+	 * transaction.
+	 *
+	 * @return the number of payments deleted
+	 */
+	public static int RemovePayment(final Ticketmaster esql, final long bid) throws SQLException {
+		return esql.executeInTransaction(() -> {
+			//Execute the query to change the status from 'Paid' to 'Cancelled' based on the booking id
+			esql.executeUpdate(CANCEL_BOOKING_SQL, bid);
+
+			/*
+			Deletes payments based on the booking that was changed from 'Paid' to 'Cancelled'
+			*/
+			return esql.executeUpdate(DELETE_PAYMENT_SQL, bid);
+		});
 	}
 
 	public static void ClearCancelledBookings(Ticketmaster esql) throws SQLException {//7
 		/* Clear Cancelled Bookings
 		 * QUERY:
 		 * delete from bookings where status = 'Cancelled'
+		 * run a batch at a time; their seats are freed first
 		*/
-		String clrBooks = "delete from bookings where status = 'Cancelled'";
-		esql.executeUpdate(clrBooks);
-		System.out.print("All bookings with status cancelled have been removed from DataBase.\n");
+		if (new MaintenanceJob(esql, "ClearCancelledBookings", CLEAR_CANCELLED_SQL).execute()){
+			System.out.print("All bookings with status cancelled have been removed from DataBase.\n");
+		}//end if
 	}
 
 	public static void RemoveShowsOnDate(Ticketmaster esql) throws IOException, SQLException {//8
@@ -595,22 +1559,29 @@ public class Ticketmaster{
 		System.out.print("Input the cinema theater where you want the show removed: ");
 		String cinematheater = in.readLine();
 
-		//Execute query to remove shows based on a given date and cinema theater
-		esql.executeUpdate("DELETE FROM plays " +
-				"USING shows, theaters " +
-				"WHERE shows.sdate = " + "\'" + date + "\' " +
-				"AND theaters.tname = " + "\'" + cinematheater + "\' " +
-				"AND shows.sid = plays.sid " +
-				"AND theaters.tid = plays.tid");
+		int removed = RemoveShowsOnDate(esql, date, cinematheater);
+		System.out.print(removed + " show(s) removed from " + cinematheater + " on " + date + "\n");
+
+	}
+
+	/**
+	 * Cancels the bookings of a theater's shows on a date, then removes the
+	 * shows from the theater, without prompting.
+	 *
+	 * @return the number of shows removed
+	 */
+	public static int RemoveShowsOnDate(Ticketmaster esql, String date, String cinematheater) throws SQLException {
 		/*
-		If there are nay bookings on this day, set the status to 'Cancelled'
+		If there are any bookings for these shows, set the status to 'Cancelled'.
+		This has to run before the plays are removed, since it finds the shows through them.
 		 */
-		//Execute query to update the table if there are any bookings on the given day
-		esql.executeUpdate("UPDATE bookings " +
-				"SET status = 'Cancelled' " +
-				"WHERE bdatetime::text LIKE " + "\'" + date + "%\'");
-
+		String cancel = esql.partitions.isPartitioned() ? CANCEL_BOOKINGS_ON_DATE_PARTITIONED_SQL : CANCEL_BOOKINGS_ON_DATE_SQL;
+		new MaintenanceJob(esql, "RemoveShowsOnDate", cancel, date, cinematheater).runBatches();
 
+		//Execute query to remove shows based on a given date and cinema theater
+		int removed = esql.executeUpdate(REMOVE_PLAYS_ON_DATE_SQL, date, cinematheater);
+		esql.reference.showingsChanged();
+		return removed;
 	}
 
 	public static void ListTheatersPlayingShow(Ticketmaster esql) throws IOException, SQLException {//9
@@ -627,14 +1598,32 @@ public class Ticketmaster{
 		System.out.print("Please enter the movie title that you would like to search: ");
 		String title = in.readLine();
 
-		String thtrListQuery = "select t.tname, s.sttime from movies m, shows s, plays p, theaters t where m.title = " + "\'" + title + "\'" + "and m.mvid = s.mvid and s.sid = p.sid and p.tid = t.tid";
-
-		esql.executeQueryAndPrintResult(thtrListQuery);
-		System.out.print(esql.executeQuery(thtrListQuery) + " Results matched your criteria\n");
+		ResultWriter out = openResultWriter();
+		long rowCount;
+		try{
+			rowCount = ListTheatersPlayingShow(esql, title, out);
+		}finally{
+			out.close();
+		}
+		System.out.print(rowCount + " Results matched your criteria\n");
 		
 		
 	}
 
+	/**
+	 * Answered from the reference cache when it can be.
+	 *
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long ListTheatersPlayingShow(Ticketmaster esql, String title, RowHandler out) throws SQLException {
+		long rowCount = esql.reference.theatersPlaying(title, out);
+		if (rowCount >= 0){
+			return rowCount;
+		}//end if
+		return esql.executeReadQueryAndStream(THEATERS_PLAYING_SHOW_SQL, out, title);
+	}
+
 	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql) throws IOException, SQLException {//10
 		/*
 		List the shows that start on the given time and date
@@ -647,38 +1636,180 @@ public class Ticketmaster{
 		String time = in.readLine();
 
 
-		String rangeQuery = "SELECT * " +
-				"FROM shows " +
-				"WHERE sdate = " + "\'" + date + "\'" +
-				"AND sttime = " + "\'" + time + "\'";
-						
 		//Execute query
-		esql.executeQueryAndPrintResult(rangeQuery);	
-		System.out.print(esql.executeQuery(rangeQuery) + " Results matched your criteria\n");
+		ResultWriter out = openResultWriter();
+		long rowCount;
+		try{
+			rowCount = ListShowsStartingOnTimeAndDate(esql, date, time, out);
+		}finally{
+			out.close();
+		}
+		System.out.print(rowCount + " Results matched your criteria\n");
 	}
 
-	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
+	/**
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long ListShowsStartingOnTimeAndDate(Ticketmaster esql, String date, String time, RowHandler out) throws SQLException {
+		return esql.executeReadQueryAndStream(SHOWS_AT_TIME_AND_DATE_SQL, out, date, time);
+	}
+
+	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql) throws IOException, SQLException {//11
 		/* List Movie Titles Containing “love” Released After 2010
 		 * 
-		 * QUERY:
+		 * Generalized into a search for any words, ignoring case, within a
+		 * range of release dates, best matches first, a page at a time.
+		 * The defaults are the original query:
 		 * select * from movies where title like '%Love%' and rdate > '2010-01-01';
 		 */
-		String loveQuery = "select * from movies where title like '%Love%' and rdate > '2010-01-01'";
-		esql.executeUpdate(loveQuery);
-		System.out.print("There were "+esql.executeQuery(loveQuery)+" results found.\n");
+		System.out.print("Please enter the words to search movie titles for [Love]: ");
+		String search = in.readLine();
+		if (search == null || search.trim().length() == 0){
+			search = "Love";
+		}//end if
+		System.out.print("Released after (yyyy-mm-dd) [2010-01-01]: ");
+		String after = in.readLine();
+		if (after == null || after.trim().length() == 0){
+			after = "2010-01-01";
+		}//end if
+		System.out.print("Released before (yyyy-mm-dd, blank for any): ");
+		String before = in.readLine();
+		if (before != null && before.trim().length() == 0){
+			before = null;
+		}//end if
 
+		ResultWriter out = openResultWriter();
+		long total = 0;
+		try{
+			long rowCount;
+			int page = 0;
+			do{
+				rowCount = SearchMovieTitles(esql, search, after, before, page++, PAGE_SIZE, out);
+				total += rowCount;
+			}while (rowCount == PAGE_SIZE && showMore(out));
+		}finally{
+			out.close();
+		}
+		System.out.print("There were "+total+" results found.\n");
 	}
 
-	public static void ListUsersWithPendingBooking(Ticketmaster esql) throws SQLException{//12
+	/**
+	 * Searches movie titles for every word of a search, ignoring case, and
+	 * lists the matches ranked by their similarity to the whole search.
+	 * Each word is matched as a substring through the pg_trgm index on
+	 * Movies.title, so the search stays an index scan as the catalog grows.
+	 *
+	 * @param search the words to look for; at most SEARCH_MAX_TERMS are used
+	 * @param releasedAfter only list movies released after this date, or null
+	 * @param releasedBefore only list movies released before this date, or null
+	 * @param page the 0-based page to list
+	 * @param pageSize the number of movies per page
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long SearchMovieTitles(Ticketmaster esql, String search, String releasedAfter, String releasedBefore,
+			int page, int pageSize, RowHandler out) throws SQLException {
+		List<String> terms = searchTerms(search);
+		List<Object> params = new ArrayList<Object>();
+		params.add(search.trim());
+		for (String term : terms){
+			params.add("%" + escapeLike(term) + "%");
+		}//end for
+		if (releasedAfter != null){
+			params.add(releasedAfter);
+		}//end if
+		if (releasedBefore != null){
+			params.add(releasedBefore);
+		}//end if
+		params.add(pageSize);
+		params.add((long) page * pageSize);
+		return esql.executeReadQueryAndStream(titleSearchSql(terms.size(), releasedAfter != null, releasedBefore != null),
+			out, params.toArray());
+	}
+
+	/**
+	 * Builds the title search for the given number of words and date
+	 * bounds. Parameters: the whole search (for ranking), a %word% pattern
+	 * per word, the dates given, the page size and the offset.
+	 */
+	static String titleSearchSql(int terms, boolean releasedAfter, boolean releasedBefore){
+		StringBuilder sql = new StringBuilder("SELECT mvid, title, rdate, country, duration, lang, genre, " +
+				"round(similarity(title, ?)::numeric, 3) AS score " +
+				"FROM movies");
+		String and = " WHERE ";
+		for (int i = 0; i < terms; ++i){
+			sql.append(and).append("title ILIKE ?");
+			and = " AND ";
+		}//end for
+		if (releasedAfter){
+			sql.append(and).append("rdate > ?");
+			and = " AND ";
+		}//end if
+		if (releasedBefore){
+			sql.append(and).append("rdate < ?");
+		}//end if
+		sql.append(" ORDER BY score DESC, rdate DESC, mvid LIMIT ? OFFSET ?");
+		return sql.toString();
+	}
+
+	/**
+	 * @return the distinct words of a search, lower-cased
+	 */
+	static List<String> searchTerms(String search){
+		List<String> terms = new ArrayList<String>();
+		for (String word : search.trim().toLowerCase().split("\\s+")){
+			if (word.length() > 0 && !terms.contains(word) && terms.size() < SEARCH_MAX_TERMS){
+				terms.add(word);
+			}//end if
+		}//end for
+		return terms;
+	}
+
+	/**
+	 * Escapes the LIKE wildcards in a word so it only matches itself.
+	 */
+	static String escapeLike(String word){
+		return word.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	public static void ListUsersWithPendingBooking(Ticketmaster esql) throws IOException, SQLException{//12
 		/*
-		List the First Name, Last Name, and email of Users with 'Pending' bookings
+		List the First Name, Last Name, and email of Users with 'Pending' bookings,
+		once per user with their number of pending bookings, a page at a time
 		 */
-		//Execute query
-		esql.executeQueryAndPrintResult("SELECT u.fname, u.lname, u.email " +
-				"FROM users u, bookings b " +
-				"WHERE u.email = b.email " +
-				"AND b.status = 'Pending' ");
+		final ResultWriter writer = openResultWriter();
+		final String[] last = {""};
+		RowHandler out = new RowHandler(){
+			public void handleRow(Row row) throws SQLException {
+				writer.handleRow(row);
+				last[0] = row.getString("email");
+			}
+		};
+		long total = 0;
+		try{
+			long rowCount;
+			//Execute query
+			do{
+				rowCount = ListUsersWithPendingBooking(esql, last[0], PAGE_SIZE, out);
+				total += rowCount;
+			}while (rowCount == PAGE_SIZE && showMore(writer));
+		}finally{
+			writer.close();
+		}
+		System.out.print(total + " user(s) with a pending booking listed\n");
+	}
 
+	/**
+	 * Lists one page of the users with a pending booking, by email.
+	 *
+	 * @param afterEmail the email of the last user of the previous page, or "" for the first page
+	 * @param limit the most users to list
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long ListUsersWithPendingBooking(Ticketmaster esql, String afterEmail, int limit, RowHandler out) throws SQLException {
+		return esql.executeReadQueryAndStream(PENDING_USERS_SQL, out, afterEmail, limit);
 	}
 
 	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql)throws IOException, SQLException {//13
@@ -699,11 +1830,18 @@ public class Ticketmaster{
 		 * and m.mvid = s.mvid and s.sid = p.sid and t.tid = p.tid;
 		 * 
 		 */
-		// Implementing this input usually yeilded no search results
-		// "t.cid =" +  cid
-		// Scanner input = new Scanner(System.in);
-		// System.out.print("Please enter the theater ID that you would like to search: ");
-		// int cid = input.nextInt();
+		// a blank cinema ID searches every cinema
+		System.out.print("Please enter the cinema ID that you would like to search (blank for all): ");
+		String cinema = in.readLine();
+		Long cid = null;
+		while (cinema != null && cinema.trim().length() > 0 && cid == null){
+			try{
+				cid = Long.parseLong(cinema.trim());
+			}catch (NumberFormatException e){
+				System.out.print("Please enter a number: ");
+				cinema = in.readLine();
+			}//end try
+		}//end while
 
 		System.out.print("Please enter the movie title that you would like to search: ");
 		String title = in.readLine();
@@ -714,34 +1852,179 @@ public class Ticketmaster{
 		System.out.print("Please enter the end date for your search (yyyy-mm-dd): ");
 		String endRange = in.readLine();
 
-		String rangeQuery = "select t.tname, m.title, m.duration, s.sdate, s.sttime from movies m, shows s, plays p, theaters t where m.title = " + "\'" + title + "\'" + "and s.sdate between" + "\'" + bgnRange + "\'" + " and " + "\'" + endRange + "\'" + "and m.mvid = s.mvid and s.sid = p.sid and p.tid =  + t.tid";
+		ResultWriter out = openResultWriter();
+		long rowCount;
+		try{
+			rowCount = ListMovieAndShowInfoAtCinemaInDateRange(esql, cid, title, bgnRange, endRange, out);
+		}finally{
+			out.close();
+		}
+		System.out.print(rowCount + " Results matched your criteria\n");
+	}
 
-		esql.executeQueryAndPrintResult(rangeQuery);
-		System.out.print(esql.executeQuery(rangeQuery) + " Results matched your criteria\n");
+	/**
+	 * Same as ListMovieAndShowInfoAtCinemaInDateRange(esql, null, ...), for
+	 * every cinema.
+	 */
+	public static long ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql, String title, String bgnRange, String endRange,
+			RowHandler out) throws SQLException {
+		return ListMovieAndShowInfoAtCinemaInDateRange(esql, null, title, bgnRange, endRange, out);
+	}
+
+	/**
+	 * Answered from the reference cache when it can be.
+	 *
+	 * @param cid the cinema to search, or null for every cinema
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql, Long cid, String title, String bgnRange,
+			String endRange, RowHandler out) throws SQLException {
+		long rowCount = esql.reference.showsInRange(cid, title, bgnRange, endRange, out);
+		if (rowCount >= 0){
+			return rowCount;
+		}//end if
+		if (cid != null){
+			return esql.executeReadQueryAndStream(MOVIE_SHOWS_AT_CINEMA_IN_RANGE_SQL, out, cid, bgnRange, endRange, title);
+		}//end if
+		return esql.executeReadQueryAndStream(MOVIE_SHOWS_IN_RANGE_SQL, out, title, bgnRange, endRange);
 	}
 
 	public static void ListBookingInfoForUser(Ticketmaster esql)throws IOException, SQLException{//14
 		/*
 		List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number fora all Bookings
-		of a Given User
+		of a Given User, one row per booked seat, a page at a time
 		 */
 		//Grab the email
 		System.out.print("Input the email to search for: ");
 		String email = in.readLine();
 
+		final ResultWriter writer = openResultWriter();
+		final long[] last = {Long.MIN_VALUE, Long.MIN_VALUE};
+		RowHandler out = new RowHandler(){
+			public void handleRow(Row row) throws SQLException {
+				writer.handleRow(row);
+				last[0] = row.getLong("bid");
+				last[1] = row.getLong("ssid");
+			}
+		};
 		//execute query
 		//**Also include a check for booking status to make sure the booking has been paid for. Will not display
 		//any results if status is 'Pending' or 'Cancelled'**
-		esql.executeQueryAndPrintResult("SELECT DISTINCT m.title, s.sdate, s.sttime, t.tname, c.sno " +
-				"FROM movies m, shows s, theaters t, cinemaseats c, bookings b, plays p " +
-				"WHERE b.email = " + "\'" + email + "\'" +
-				"AND b.sid = s.sid " +
-				"AND s.mvid = m.mvid " +
-				"AND s.sid = p.sid " +
-				"AND t.tid = p.tid " +
-				"AND c.tid = t.tid " +
-				"AND b.status = 'Paid'");
+		long total = 0;
+		try{
+			long rowCount;
+			do{
+				rowCount = ListBookingInfoForUser(esql, email, last[0], last[1], PAGE_SIZE, out);
+				total += rowCount;
+			}while (rowCount == PAGE_SIZE && showMore(writer));
+		}finally{
+			writer.close();
+		}
+		System.out.print(total + " booked seat(s) listed\n");
+	}
+
+	/**
+	 * Lists one page of the seats of a user's paid bookings, ordered by
+	 * booking and then show seat id.
+	 *
+	 * @param afterBid the bid of the last row of the previous page, or Long.MIN_VALUE for the first page
+	 * @param afterSsid the ssid of the last row of the previous page, or Long.MIN_VALUE for the first page
+	 * @param limit the most rows to list
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long ListBookingInfoForUser(Ticketmaster esql, String email, long afterBid, long afterSsid, int limit,
+			RowHandler out) throws SQLException {
+		return esql.executeReadQueryAndStream(USER_BOOKINGS_SQL, out, email, afterBid, afterBid, afterSsid, limit);
+	}
 
+	public static void RevenueAndOccupancyReport(Ticketmaster esql) throws IOException, SQLException {//15
+		/*
+		Revenue and seats sold per cinema and day, or per show, over a date range,
+		read from the rollups instead of joining payments, bookings, shows,
+		plays, theaters, cinemas and show seats
+		 */
+		System.out.print("Please enter the cinema ID to report on (blank for all): ");
+		String cinema = in.readLine();
+		Long cid = null;
+		while (cinema != null && cinema.trim().length() > 0 && cid == null){
+			try{
+				cid = Long.parseLong(cinema.trim());
+			}catch (NumberFormatException e){
+				System.out.print("Please enter a number: ");
+				cinema = in.readLine();
+			}//end try
+		}//end while
+
+		System.out.print("Please enter the start date of the report (yyyy-mm-dd): ");
+		String from = in.readLine();
+
+		System.out.print("Please enter the end date of the report (yyyy-mm-dd): ");
+		String to = in.readLine();
+
+		System.out.print("Report per (c)inema and day or per (s)how? [c]: ");
+		String per = in.readLine();
+		boolean perShow = per != null && per.trim().toLowerCase().startsWith("s");
+
+		ResultWriter out = openResultWriter();
+		long rowCount;
+		try{
+			rowCount = perShow ? OccupancyReport(esql, cid, from, to, out) : RevenueReport(esql, cid, from, to, out);
+		}finally{
+			out.close();
+		}
+		System.out.print(rowCount + " row(s) reported\n");
+	}
+
+	/**
+	 * Lists payments, revenue and occupancy per cinema and day, after
+	 * folding in the changes not yet rolled up.
+	 *
+	 * @param cid the cinema to report on, or null for every cinema
+	 * @param from the first show date reported
+	 * @param to the last show date reported
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long RevenueReport(Ticketmaster esql, Long cid, String from, String to, RowHandler out) throws SQLException {
+		esql.rollups.fold();
+		// from the primary: a replica may not have the fold yet
+		if (cid == null){
+			return esql.executeQueryAndStream(REVENUE_REPORT_SQL, out, from, to);
+		}//end if
+		return esql.executeQueryAndStream(REVENUE_AT_CINEMA_REPORT_SQL, out, cid, from, to);
+	}
+
+	/**
+	 * Lists seats sold, occupancy and revenue per show, after folding in the
+	 * changes not yet rolled up.
+	 *
+	 * @param cid the cinema to report on, or null for every cinema
+	 * @param from the first show date reported
+	 * @param to the last show date reported
+	 * @param out receives each row
+	 * @return the number of rows
+	 */
+	public static long OccupancyReport(Ticketmaster esql, Long cid, String from, String to, RowHandler out) throws SQLException {
+		esql.rollups.fold();
+		// from the primary: a replica may not have the fold yet
+		if (cid == null){
+			return esql.executeQueryAndStream(OCCUPANCY_REPORT_SQL, out, from, to);
+		}//end if
+		return esql.executeQueryAndStream(OCCUPANCY_AT_CINEMA_REPORT_SQL, out, cid, from, to);
+	}
+
+	/**
+	 * Writes out the page listed so far and asks whether to list another.
+	 *
+	 * @return true when the user answered yes
+	 */
+	static boolean showMore(ResultWriter out) throws IOException, SQLException {
+		out.flush();
+		System.out.print("Show more results? (y/n): ");
+		String more = in.readLine();
+		return more != null && more.trim().toLowerCase().startsWith("y");
 	}
 	
 }
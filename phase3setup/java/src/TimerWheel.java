@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * A hashed timer wheel: a ring of slots, each covering one tick of time,
+ * holding the items due in that tick. Scheduling an item is O(1) whatever
+ * the number of pending items, and each tick only looks at one slot.
+ * Deadlines further away than one turn of the wheel wait in their slot
+ * for the remaining number of turns.
+ *
+ * The wheel keeps no thread of its own: the owner calls advance() with the
+ * current time, about once a tick, and gets back the items that are due.
+ * Items are due no earlier than their deadline and at most one tick (plus
+ * the caller's lateness) after it. All methods are synchronized.
+ *
+ */
+
+public class TimerWheel<T>{
+	private final long _tick;		//	ms per slot
+	private final List<Entry<T>>[] _slots;
+	private long _next;				//	the first tick not yet advanced over
+	private int _size = 0;
+
+	private static final class Entry<T>{
+		final T item;
+		long rounds;				//	turns of the wheel left before the item is due
+
+		Entry(T item, long rounds){
+			this.item = item;
+			this.rounds = rounds;
+		}
+	}
+
+	/**
+	 * @param tick ms covered by each slot
+	 * @param slots number of slots; one turn of the wheel is tick * slots ms
+	 * @param now the current time in ms, where the wheel starts
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tick, int slots, long now){
+		if (tick < 1 || slots < 1){
+			throw new IllegalArgumentException("Invalid timer wheel: " + slots + " slots of " + tick + " ms");
+		}//end if
+		this._tick = tick;
+		this._slots = new List[slots];
+		for (int i = 0; i < slots; ++i){
+			this._slots[i] = new ArrayList<Entry<T>>();
+		}//end for
+		this._next = now / tick;
+	}
+
+	/**
+	 * Schedules an item. A deadline in the past makes it due at the next
+	 * advance().
+	 *
+	 * @param deadline the time in ms the item is due
+	 */
+	public synchronized void schedule(T item, long deadline){
+		// the first tick that ends at or after the deadline
+		long due = Math.max((deadline + this._tick - 1) / this._tick, this._next);
+		long ahead = due - this._next;
+		this._slots[(int) (due % this._slots.length)].add(new Entry<T>(item, ahead / this._slots.length));
+		++this._size;
+	}
+
+	/**
+	 * Moves the wheel up to the given time.
+	 *
+	 * @param now the current time in ms
+	 * @return the items that became due, in deadline order tick by tick
+	 */
+	public synchronized List<T> advance(long now){
+		List<T> due = new ArrayList<T>();
+		long last = now / this._tick;
+		for (; this._next <= last && this._size > 0; ++this._next){
+			Iterator<Entry<T>> entries = this._slots[(int) (this._next % this._slots.length)].iterator();
+			while (entries.hasNext()){
+				Entry<T> entry = entries.next();
+				if (entry.rounds <= 0){
+					entries.remove();
+					--this._size;
+					due.add(entry.item);
+				}else{
+					--entry.rounds;
+				}//end if
+			}//end while
+		}//end for
+		// an empty wheel skips the idle ticks at once
+		if (this._next <= last){
+			this._next = last + 1;
+		}//end if
+		return due;
+	}
+
+	/**
+	 * @return the number of items scheduled and not yet due
+	 */
+	public synchronized int size(){
+		return this._size;
+	}
+}
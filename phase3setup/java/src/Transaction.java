@@ -0,0 +1,17 @@
+import java.sql.SQLException;
+
+
+/**
+ * A unit of work run by Ticketmaster.executeInTransaction. Every execute
+ * helper called from inside run() on the same thread uses the transaction's
+ * connection, so the statements commit or roll back together.
+ *
+ */
+
+public interface Transaction<T>{
+	/**
+	 * @return the result handed back by executeInTransaction
+	 * @throws java.sql.SQLException to roll the transaction back
+	 */
+	T run() throws SQLException;
+}
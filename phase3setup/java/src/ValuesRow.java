@@ -0,0 +1,199 @@
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+
+/**
+ * A Row over values held in memory instead of a ResultSet, so results
+ * served from a cache reach the same RowHandlers as query results. Like
+ * Row, one object is reused for every row: set() moves it to the next one.
+ *
+ * Values may be stored either as their Java type or as the text the server
+ * would have returned, e.g. "2019-03-01" for a date.
+ *
+ */
+
+public class ValuesRow extends Row{
+	private final String[] _columns;
+	private Object[] _values;
+	private long _rowNumber = 0;
+
+	ValuesRow(String... columns){
+		this._columns = columns;
+	}
+
+	/**
+	 * Advances to the next row.
+	 *
+	 * @param values the column values of the row, in column order
+	 */
+	void set(Object... values){
+		this._values = values;
+		++this._rowNumber;
+	}
+
+	public long getRowNumber(){
+		return this._rowNumber;
+	}
+
+	public int getColumnCount(){
+		return this._columns.length;
+	}
+
+	public String getColumnName(int column) throws SQLException {
+		checkColumn(column);
+		return this._columns[column - 1];
+	}
+
+	/**
+	 * @return Types.NUMERIC for a Number value in the current row, otherwise Types.VARCHAR
+	 */
+	public int getColumnType(int column) throws SQLException {
+		return value(column) instanceof Number ? Types.NUMERIC : Types.VARCHAR;
+	}
+
+	public String getString(int column) throws SQLException {
+		Object value = value(column);
+		return value == null ? null : value.toString();
+	}
+
+	public String getString(String column) throws SQLException {
+		return getString(indexOf(column));
+	}
+
+	public int getInt(int column) throws SQLException {
+		return (int) getLong(column);
+	}
+
+	public int getInt(String column) throws SQLException {
+		return getInt(indexOf(column));
+	}
+
+	public long getLong(int column) throws SQLException {
+		Object value = value(column);
+		if (value == null){
+			return 0;
+		}else if (value instanceof Number){
+			return ((Number) value).longValue();
+		}//end if
+		try{
+			return Long.parseLong(value.toString().trim());
+		}catch (NumberFormatException e){
+			throw badValue(column, value);
+		}//end try
+	}
+
+	public long getLong(String column) throws SQLException {
+		return getLong(indexOf(column));
+	}
+
+	public double getDouble(int column) throws SQLException {
+		Object value = value(column);
+		if (value == null){
+			return 0;
+		}else if (value instanceof Number){
+			return ((Number) value).doubleValue();
+		}//end if
+		try{
+			return Double.parseDouble(value.toString().trim());
+		}catch (NumberFormatException e){
+			throw badValue(column, value);
+		}//end try
+	}
+
+	public double getDouble(String column) throws SQLException {
+		return getDouble(indexOf(column));
+	}
+
+	public BigDecimal getBigDecimal(int column) throws SQLException {
+		Object value = value(column);
+		if (value == null || value instanceof BigDecimal){
+			return (BigDecimal) value;
+		}//end if
+		try{
+			return new BigDecimal(value.toString().trim());
+		}catch (NumberFormatException e){
+			throw badValue(column, value);
+		}//end try
+	}
+
+	public Date getDate(int column) throws SQLException {
+		Object value = value(column);
+		if (value == null || value instanceof Date){
+			return (Date) value;
+		}//end if
+		try{
+			return Date.valueOf(value.toString().trim());
+		}catch (IllegalArgumentException e){
+			throw badValue(column, value);
+		}//end try
+	}
+
+	public Date getDate(String column) throws SQLException {
+		return getDate(indexOf(column));
+	}
+
+	public Time getTime(int column) throws SQLException {
+		Object value = value(column);
+		if (value == null || value instanceof Time){
+			return (Time) value;
+		}//end if
+		try{
+			return Time.valueOf(value.toString().trim());
+		}catch (IllegalArgumentException e){
+			throw badValue(column, value);
+		}//end try
+	}
+
+	public Time getTime(String column) throws SQLException {
+		return getTime(indexOf(column));
+	}
+
+	public Timestamp getTimestamp(int column) throws SQLException {
+		Object value = value(column);
+		if (value == null || value instanceof Timestamp){
+			return (Timestamp) value;
+		}//end if
+		try{
+			return Timestamp.valueOf(value.toString().trim());
+		}catch (IllegalArgumentException e){
+			throw badValue(column, value);
+		}//end try
+	}
+
+	public Timestamp getTimestamp(String column) throws SQLException {
+		return getTimestamp(indexOf(column));
+	}
+
+	public boolean isNull(int column) throws SQLException {
+		return value(column) == null;
+	}
+
+	private Object value(int column) throws SQLException {
+		checkColumn(column);
+		return this._values[column - 1];
+	}
+
+	private void checkColumn(int column) throws SQLException {
+		if (column < 1 || column > this._columns.length){
+			throw new SQLException("The column index is out of range: " + column
+				+ ", number of columns: " + this._columns.length, "22023");
+		}//end if
+	}
+
+	private int indexOf(String column) throws SQLException {
+		for (int i = 0; i < this._columns.length; ++i){
+			if (this._columns[i].equalsIgnoreCase(column)){
+				return i + 1;
+			}//end if
+		}//end for
+		throw new SQLException("The column name " + column + " was not found in this row.", "42703");
+	}
+
+	private SQLException badValue(int column, Object value){
+		return new SQLException("Bad value for column " + this._columns[column - 1] + ": " + value, "22003");
+	}
+}
@@ -9,7 +9,8 @@ root=$(realpath $(dirname "$0"))
 echo $root
 root=$(dirname $root)
 echo $root
-dbname=$(logname)_db
+# DBNAME=... ./createdb.sh creates another database, e.g. one per shard
+dbname=${DBNAME:-$(logname)_db}
 echo "creating db named ... $dbname"
 createdb -h localhost $dbname
 pg_ctl status
@@ -19,4 +20,16 @@ sleep 1
 cp $root/data/*.csv /tmp/$(logname)/mydb/data/
 
 echo "Initializing tables .. "
-psql -h localhost $dbname < $root/sql/create.sql
\ No newline at end of file
+psql -h localhost $dbname < $root/sql/create.sql
+
+# PARTITIONED=1 ./createdb.sh converts the show-dated tables to monthly partitions
+if [ "$PARTITIONED" = "1" ]; then
+	echo "Partitioning tables by show date .. "
+	psql -h localhost $dbname < $root/sql/partition.sql
+fi
+
+# SHARD=n CITIES='{1,2,3}' ./createdb.sh keeps only those cities, as shard n (see ../sql/shard.sql)
+if [ -n "$SHARD" ]; then
+	echo "Keeping cities $CITIES as shard $SHARD .. "
+	psql -h localhost -v shard=$SHARD -v cities="$CITIES" $dbname < $root/sql/shard.sql
+fi
@@ -1,3 +1,7 @@
+DROP TABLE IF EXISTS RollupDeltas;
+DROP TABLE IF EXISTS CinemaDayRollup;
+DROP TABLE IF EXISTS ShowRollup;
+DROP TABLE IF EXISTS ShowSchedule;
 DROP TABLE IF EXISTS Plays;
 DROP TABLE IF EXISTS ShowSeats;
 DROP TABLE IF EXISTS Payments;
@@ -239,3 +243,316 @@ COPY Plays (
 )
 FROM 'Plays.csv'
 WITH DELIMITER ',';
+
+
+-------------
+-- INDEXES --
+-------------
+
+-- Created after the data is loaded, which is much faster than maintaining
+-- them row by row during COPY.
+
+-- CancelPendingBookings, ListUsersWithPendingBooking: only the (few) pending rows
+CREATE INDEX bookings_pending_email_idx ON Bookings (email) WHERE status = 'Pending';
+-- BookingExpiry: the overdue pending bookings, oldest first
+CREATE INDEX bookings_pending_bdatetime_idx ON Bookings (bdatetime) WHERE status = 'Pending';
+-- ClearCancelledBookings
+CREATE INDEX bookings_cancelled_idx ON Bookings (bid) WHERE status = 'Cancelled';
+-- ListBookingInfoForUser, seeking to the next page by bid
+CREATE INDEX bookings_email_bid_idx ON Bookings (email, bid);
+-- booking lookups by show, and the ON DELETE CASCADE from Shows
+CREATE INDEX bookings_sid_idx ON Bookings (sid);
+
+-- ListShowsStartingOnTimeAndDate, RemoveShowsOnDate
+CREATE INDEX shows_sdate_sttime_idx ON Shows (sdate, sttime);
+-- movie -> shows joins
+CREATE INDEX shows_mvid_idx ON Shows (mvid);
+
+-- ListTheatersPlayingShow, ListMovieAndShowInfoAtCinemaInDateRange
+CREATE INDEX movies_title_idx ON Movies (title);
+-- SearchMovieTitles (option 11): ILIKE '%word%' through title trigrams
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX movies_title_trgm_idx ON Movies USING gin (title gin_trgm_ops);
+
+-- theater -> shows joins (Plays' primary key leads with sid)
+CREATE INDEX plays_tid_idx ON Plays (tid);
+
+-- seats of a booking, and the foreign key check when a booking is deleted;
+-- most seats are unsold, so only index the assigned ones
+CREATE INDEX showseats_bid_idx ON ShowSeats (bid) WHERE bid IS NOT NULL;
+
+-- seats of a theater by seat number
+CREATE INDEX cinemaseats_tid_sno_idx ON CinemaSeats (tid, sno);
+
+-- RemoveShowsOnDate looks theaters up by name
+CREATE INDEX theaters_tname_idx ON Theaters (tname);
+-- cinema -> theaters joins
+CREATE INDEX theaters_cid_idx ON Theaters (cid);
+
+
+-------------------
+-- SHOW SCHEDULE --
+-------------------
+
+-- One row per show and theater playing it, with the movie and theater
+-- columns the browse operations (ListTheatersPlayingShow,
+-- ListShowsStartingOnTimeAndDate, ListMovieAndShowInfoAtCinemaInDateRange)
+-- print, so each of them is a range scan of one index instead of a
+-- four-way join. Filled once here, then kept up to date row by row by the
+-- triggers below.
+CREATE TABLE ShowSchedule (
+    sid BIGINT NOT NULL,  -- Show ID
+    tid BIGINT NOT NULL,  -- Theater ID
+    mvid BIGINT NOT NULL,  -- Movie ID
+    title VARCHAR(128) NOT NULL,
+    duration INTEGER,
+    sdate DATE NOT NULL,
+    sttime TIME NOT NULL,
+    edtime TIME NOT NULL,
+    tname VARCHAR(64) NOT NULL,
+    cid BIGINT NOT NULL,  -- Cinema ID
+    PRIMARY KEY(sid, tid)
+);
+
+INSERT INTO ShowSchedule (sid, tid, mvid, title, duration, sdate, sttime, edtime, tname, cid)
+SELECT s.sid, t.tid, m.mvid, m.title, m.duration, s.sdate, s.sttime, s.edtime, t.tname, t.cid
+FROM Plays p
+JOIN Shows s ON s.sid = p.sid
+JOIN Movies m ON m.mvid = s.mvid
+JOIN Theaters t ON t.tid = p.tid;
+
+-- ListTheatersPlayingShow, ListMovieAndShowInfoAtCinemaInDateRange
+CREATE INDEX showschedule_title_sdate_idx ON ShowSchedule (title, sdate);
+-- ListShowsStartingOnTimeAndDate
+CREATE INDEX showschedule_sdate_sttime_idx ON ShowSchedule (sdate, sttime);
+-- ListMovieAndShowInfoAtCinemaInDateRange for one cinema
+CREATE INDEX showschedule_cid_sdate_idx ON ShowSchedule (cid, sdate);
+
+-- A play added or removed adds or removes its schedule row
+CREATE OR REPLACE FUNCTION showschedule_plays() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        DELETE FROM ShowSchedule WHERE sid = OLD.sid AND tid = OLD.tid;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO ShowSchedule (sid, tid, mvid, title, duration, sdate, sttime, edtime, tname, cid)
+        SELECT s.sid, t.tid, m.mvid, m.title, m.duration, s.sdate, s.sttime, s.edtime, t.tname, t.cid
+        FROM Shows s
+        JOIN Movies m ON m.mvid = s.mvid
+        JOIN Theaters t ON t.tid = NEW.tid
+        WHERE s.sid = NEW.sid;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER showschedule_plays AFTER INSERT OR UPDATE OR DELETE ON Plays
+FOR EACH ROW EXECUTE PROCEDURE showschedule_plays();
+
+-- A show that is moved, or given another movie, updates the rows of its
+-- theaters, found through the primary key
+CREATE OR REPLACE FUNCTION showschedule_shows() RETURNS trigger AS $$
+BEGIN
+    UPDATE ShowSchedule sc
+    SET mvid = m.mvid, title = m.title, duration = m.duration,
+        sdate = NEW.sdate, sttime = NEW.sttime, edtime = NEW.edtime
+    FROM Movies m
+    WHERE sc.sid = NEW.sid AND m.mvid = NEW.mvid;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER showschedule_shows AFTER UPDATE OF mvid, sdate, sttime, edtime ON Shows
+FOR EACH ROW EXECUTE PROCEDURE showschedule_shows();
+
+-- Renaming a movie or theater, or moving a theater to another cinema, is
+-- rare and not indexed for: it rewrites that movie's or theater's rows
+CREATE OR REPLACE FUNCTION showschedule_movies() RETURNS trigger AS $$
+BEGIN
+    UPDATE ShowSchedule SET title = NEW.title, duration = NEW.duration WHERE mvid = NEW.mvid;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER showschedule_movies AFTER UPDATE OF title, duration ON Movies
+FOR EACH ROW EXECUTE PROCEDURE showschedule_movies();
+
+CREATE OR REPLACE FUNCTION showschedule_theaters() RETURNS trigger AS $$
+BEGIN
+    UPDATE ShowSchedule SET tname = NEW.tname, cid = NEW.cid WHERE tid = NEW.tid;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER showschedule_theaters AFTER UPDATE OF tname, cid ON Theaters
+FOR EACH ROW EXECUTE PROCEDURE showschedule_theaters();
+
+
+-------------
+-- ROLLUPS --
+-------------
+
+-- Seats sold and payments per show, and per cinema and day, read by the
+-- revenue and occupancy reports instead of joining the live tables. A
+-- show's cinema is that of the first theater playing it. Revenue counts
+-- the payments of bookings that are not cancelled.
+--
+-- The triggers below do not update the rollups themselves, or every
+-- booking of a show would queue on its rollup row: each statement appends
+-- its net change per show to RollupDeltas, and Rollups.java folds the
+-- deltas into both tables every few seconds and before each report.
+-- Changes the triggers cannot attribute to a show (a booking deleted
+-- together with its payment, a show moved to another date) are put right
+-- by a backfill (rollups.sh -backfill).
+CREATE TABLE ShowRollup (
+    sid BIGINT NOT NULL,  -- Show ID
+    cid BIGINT,  -- Cinema ID
+    sdate DATE NOT NULL,
+    seats_total INTEGER NOT NULL,
+    seats_sold INTEGER NOT NULL,
+    payments INTEGER NOT NULL,
+    revenue NUMERIC NOT NULL,
+    PRIMARY KEY(sid)
+);
+
+CREATE TABLE CinemaDayRollup (
+    cid BIGINT NOT NULL,  -- Cinema ID
+    sdate DATE NOT NULL,
+    seats_total INTEGER NOT NULL,
+    seats_sold INTEGER NOT NULL,
+    payments INTEGER NOT NULL,
+    revenue NUMERIC NOT NULL,
+    PRIMARY KEY(cid, sdate)
+);
+
+CREATE TABLE RollupDeltas (
+    sid BIGINT NOT NULL,  -- Show ID
+    seats_total INTEGER NOT NULL DEFAULT 0,
+    seats_sold INTEGER NOT NULL DEFAULT 0,
+    payments INTEGER NOT NULL DEFAULT 0,
+    revenue NUMERIC NOT NULL DEFAULT 0
+);
+
+INSERT INTO ShowRollup (sid, cid, sdate, seats_total, seats_sold, payments, revenue)
+SELECT s.sid,
+    (SELECT t.cid FROM Plays p JOIN Theaters t ON t.tid = p.tid WHERE p.sid = s.sid ORDER BY p.tid LIMIT 1),
+    s.sdate, COALESCE(ss.total, 0), COALESCE(ss.sold, 0), COALESCE(pay.payments, 0), COALESCE(pay.revenue, 0)
+FROM Shows s
+LEFT JOIN (SELECT sid, count(*) AS total, count(bid) AS sold FROM ShowSeats GROUP BY sid) ss ON ss.sid = s.sid
+LEFT JOIN (SELECT b.sid, count(*) AS payments, sum(p.amount::numeric) AS revenue
+    FROM Payments p JOIN Bookings b ON b.bid = p.bid
+    WHERE b.status <> 'Cancelled' GROUP BY b.sid) pay ON pay.sid = s.sid;
+
+INSERT INTO CinemaDayRollup (cid, sdate, seats_total, seats_sold, payments, revenue)
+SELECT cid, sdate, sum(seats_total), sum(seats_sold), sum(payments), sum(revenue)
+FROM ShowRollup WHERE cid IS NOT NULL GROUP BY cid, sdate;
+
+-- OccupancyReport, for every cinema or one
+CREATE INDEX showrollup_sdate_idx ON ShowRollup (sdate);
+CREATE INDEX showrollup_cid_sdate_idx ON ShowRollup (cid, sdate);
+-- RevenueReport for every cinema; one cinema reads the primary key
+CREATE INDEX cinemadayrollup_sdate_idx ON CinemaDayRollup (sdate);
+
+-- Statement triggers see all the rows a statement changed at once
+-- (transition tables), so a batch of a thousand cancellations adds one
+-- delta per show, not a thousand. A trigger with transition tables fires
+-- on one event only, hence three triggers per table.
+CREATE OR REPLACE FUNCTION rollup_showseats() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO RollupDeltas (sid, seats_total, seats_sold)
+        SELECT sid, count(*), count(bid) FROM new_rows GROUP BY sid;
+    ELSIF TG_OP = 'DELETE' THEN
+        INSERT INTO RollupDeltas (sid, seats_total, seats_sold)
+        SELECT sid, -count(*), -count(bid) FROM old_rows GROUP BY sid;
+    ELSE
+        INSERT INTO RollupDeltas (sid, seats_total, seats_sold)
+        SELECT sid, sum(total), sum(sold) FROM (
+            SELECT sid, 1 AS total, (bid IS NOT NULL)::integer AS sold FROM new_rows
+            UNION ALL
+            SELECT sid, -1, -(bid IS NOT NULL)::integer FROM old_rows) d
+        GROUP BY sid HAVING sum(total) <> 0 OR sum(sold) <> 0;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rollup_showseats_insert AFTER INSERT ON ShowSeats
+REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_showseats();
+CREATE TRIGGER rollup_showseats_update AFTER UPDATE ON ShowSeats
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_showseats();
+CREATE TRIGGER rollup_showseats_delete AFTER DELETE ON ShowSeats
+REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_showseats();
+
+-- Payments of cancelled bookings are not revenue, so RemovePayment, which
+-- cancels the booking before deleting its payment, changes nothing here
+CREATE OR REPLACE FUNCTION rollup_payments() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        INSERT INTO RollupDeltas (sid, payments, revenue)
+        SELECT b.sid, -count(*), -sum(o.amount::numeric)
+        FROM old_rows o JOIN Bookings b ON b.bid = o.bid
+        WHERE b.status <> 'Cancelled' GROUP BY b.sid;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO RollupDeltas (sid, payments, revenue)
+        SELECT b.sid, count(*), sum(n.amount::numeric)
+        FROM new_rows n JOIN Bookings b ON b.bid = n.bid
+        WHERE b.status <> 'Cancelled' GROUP BY b.sid;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rollup_payments_insert AFTER INSERT ON Payments
+REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_payments();
+CREATE TRIGGER rollup_payments_update AFTER UPDATE ON Payments
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_payments();
+CREATE TRIGGER rollup_payments_delete AFTER DELETE ON Payments
+REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_payments();
+
+-- A booking cancelled (or restored) takes its payment out of (or back
+-- into) the revenue
+CREATE OR REPLACE FUNCTION rollup_bookings() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO RollupDeltas (sid, payments, revenue)
+    SELECT n.sid, sum(CASE WHEN n.status = 'Cancelled' THEN -1 ELSE 1 END),
+        sum(CASE WHEN n.status = 'Cancelled' THEN -p.amount::numeric ELSE p.amount::numeric END)
+    FROM new_rows n
+    JOIN old_rows o ON o.bid = n.bid
+    JOIN Payments p ON p.bid = n.bid
+    WHERE (n.status = 'Cancelled') <> (o.status = 'Cancelled')
+    GROUP BY n.sid;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rollup_bookings_update AFTER UPDATE ON Bookings
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_bookings();
+
+
+---------------
+-- SEQUENCES --
+---------------
+
+-- Each nextval() reserves a block of INCREMENT BY ids for one client process
+-- (see IdAllocator.java): the block is (value - increment, value]. The
+-- sequences start one block past the loaded data.
+
+CREATE SEQUENCE bookings_bid_seq INCREMENT BY 50 OWNED BY Bookings.bid;
+SELECT setval('bookings_bid_seq', COALESCE(MAX(bid), 0) + 50, false) FROM Bookings;
+
+CREATE SEQUENCE movies_mvid_seq INCREMENT BY 50 OWNED BY Movies.mvid;
+SELECT setval('movies_mvid_seq', COALESCE(MAX(mvid), 0) + 50, false) FROM Movies;
+
+CREATE SEQUENCE shows_sid_seq INCREMENT BY 50 OWNED BY Shows.sid;
+SELECT setval('shows_sid_seq', COALESCE(MAX(sid), 0) + 50, false) FROM Shows;
+
+CREATE SEQUENCE payments_pid_seq INCREMENT BY 50 OWNED BY Payments.pid;
+SELECT setval('payments_pid_seq', COALESCE(MAX(pid), 0) + 50, false) FROM Payments;
+
+CREATE SEQUENCE showseats_ssid_seq INCREMENT BY 50 OWNED BY ShowSeats.ssid;
+SELECT setval('showseats_ssid_seq', COALESCE(MAX(ssid), 0) + 50, false) FROM ShowSeats;
+
+-- refresh planner statistics for the freshly loaded tables
+ANALYZE;
@@ -0,0 +1,228 @@
+-- Converts the date-bound tables created and loaded by create.sql to
+-- monthly range partitions by show date (requires PostgreSQL 12 or later):
+--
+--     psql -h localhost <dbname> < partition.sql
+--
+-- (or PARTITIONED=1 ../postgresql/createdb.sh). Shows, Bookings, Payments,
+-- ShowSeats and ShowSchedule get one partition per month, named
+-- <table>_yYYYYmMM, so date-filtered queries only read the months they
+-- ask for. Bookings, Payments and ShowSeats gain an sdate column, the date
+-- of their show, which is part of their keys: a unique key or a foreign
+-- key into a partitioned table must include its partition key. Plays is
+-- not partitioned and loses its foreign key to Shows.
+--
+-- New months are created ahead of time by create_show_partitions(), which
+-- the application calls at startup, daily, and before adding a show (see
+-- PartitionManager.java). detach_show_partitions() takes a whole month out
+-- of the live tables into the archive schema, from where it can be
+-- exported and dropped.
+
+BEGIN;
+
+CREATE SCHEMA IF NOT EXISTS archive;
+
+-- Creates the partitions of the months starting with first_month that do
+-- not exist yet. An advisory lock makes concurrent callers take turns.
+CREATE OR REPLACE FUNCTION create_show_partitions(first_month DATE, months INTEGER) RETURNS INTEGER AS $$
+DECLARE
+    created INTEGER := 0;
+    m DATE;
+    t TEXT;
+    part TEXT;
+BEGIN
+    PERFORM pg_advisory_xact_lock(hashtext('create_show_partitions'));
+    FOR i IN 0 .. months - 1 LOOP
+        m := (date_trunc('month', first_month) + make_interval(months => i))::date;
+        FOREACH t IN ARRAY ARRAY['shows', 'bookings', 'payments', 'showseats', 'showschedule'] LOOP
+            part := t || to_char(m, '"_y"YYYY"m"MM');
+            IF to_regclass(part) IS NULL THEN
+                EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)',
+                    part, t, m, (m + interval '1 month')::date);
+                created := created + 1;
+            END IF;
+        END LOOP;
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Takes the month of the given date out of the live tables: its plays
+-- (and through the trigger its schedule rows) are deleted, its empty
+-- ShowSchedule partition is dropped, and the other partitions are
+-- detached, referencing tables first, and moved to the archive schema
+-- without their foreign keys.
+CREATE OR REPLACE FUNCTION detach_show_partitions(month DATE) RETURNS INTEGER AS $$
+DECLARE
+    suffix TEXT := to_char(month, '"_y"YYYY"m"MM');
+    detached INTEGER := 0;
+    t TEXT;
+    c RECORD;
+BEGIN
+    IF to_regclass('shows' || suffix) IS NULL THEN
+        RETURN 0;
+    END IF;
+    EXECUTE format('DELETE FROM Plays p USING %I s WHERE p.sid = s.sid', 'shows' || suffix);
+    EXECUTE format('ALTER TABLE ShowSchedule DETACH PARTITION %I', 'showschedule' || suffix);
+    EXECUTE format('DROP TABLE %I', 'showschedule' || suffix);
+    FOREACH t IN ARRAY ARRAY['payments', 'showseats', 'bookings', 'shows'] LOOP
+        EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', t, t || suffix);
+        FOR c IN SELECT conname FROM pg_constraint
+                WHERE conrelid = (t || suffix)::regclass AND contype = 'f' LOOP
+            EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', t || suffix, c.conname);
+        END LOOP;
+        EXECUTE format('ALTER TABLE %I SET SCHEMA archive', t || suffix);
+        detached := detached + 1;
+    END LOOP;
+    RETURN detached;
+END;
+$$ LANGUAGE plpgsql;
+
+
+-- Set the loaded rows aside, with the date of their show
+
+CREATE TEMP TABLE shows_old ON COMMIT DROP AS SELECT * FROM Shows;
+CREATE TEMP TABLE bookings_old ON COMMIT DROP AS
+SELECT b.*, s.sdate FROM Bookings b JOIN Shows s ON s.sid = b.sid;
+CREATE TEMP TABLE payments_old ON COMMIT DROP AS
+SELECT p.*, s.sdate FROM Payments p JOIN Bookings b ON b.bid = p.bid JOIN Shows s ON s.sid = b.sid;
+CREATE TEMP TABLE showseats_old ON COMMIT DROP AS
+SELECT ss.*, s.sdate FROM ShowSeats ss JOIN Shows s ON s.sid = ss.sid;
+CREATE TEMP TABLE showschedule_old ON COMMIT DROP AS SELECT * FROM ShowSchedule;
+
+-- the id sequences outlive the tables they belong to
+ALTER SEQUENCE shows_sid_seq OWNED BY NONE;
+ALTER SEQUENCE bookings_bid_seq OWNED BY NONE;
+ALTER SEQUENCE payments_pid_seq OWNED BY NONE;
+ALTER SEQUENCE showseats_ssid_seq OWNED BY NONE;
+
+DROP TABLE ShowSchedule;
+DROP TABLE ShowSeats;
+DROP TABLE Payments;
+DROP TABLE Bookings;
+DROP TABLE Shows CASCADE;  -- and Plays' foreign key
+
+
+-- Partitioned tables, with the columns of create.sql in the same order
+
+CREATE TABLE Shows (
+    sid BIGINT NOT NULL,  -- Show ID
+    mvid BIGINT NOT NULL,  -- Movie ID
+    sdate DATE NOT NULL,  -- Show date
+    sttime TIME NOT NULL,  -- Start time
+    edtime TIME NOT NULL,  -- End time
+    PRIMARY KEY(sid, sdate),
+    FOREIGN KEY(mvid) REFERENCES Movies(mvid)
+) PARTITION BY RANGE (sdate);
+
+CREATE TABLE Bookings (
+    bid BIGINT NOT NULL,  -- Booking ID
+    status VARCHAR(16) NOT NULL,
+    bdatetime TIMESTAMPTZ NOT NULL,  -- Booking date and time
+    seats INTEGER NOT NULL,  -- Number of seats booked
+    sid BIGINT NOT NULL,  -- Show ID
+    email VARCHAR(64) NOT NULL,  -- User account
+    sdate DATE NOT NULL,  -- Show date
+    PRIMARY KEY(bid, sdate),
+    FOREIGN KEY(sid, sdate) REFERENCES Shows(sid, sdate) ON DELETE CASCADE,
+    FOREIGN KEY(email) REFERENCES Users(email)
+) PARTITION BY RANGE (sdate);
+
+CREATE TABLE Payments (
+    pid BIGINT NOT NULL,  -- Payment ID
+    bid BIGINT NOT NULL,  -- Booking ID
+    pmethod VARCHAR(32) NOT NULL,
+    pdatetime TIMESTAMPTZ NOT NULL,  -- Payment date and time
+    amount REAL NOT NULL,
+    trid BIGINT,  -- Transaction ID
+    sdate DATE NOT NULL,  -- Show date
+    PRIMARY KEY(pid, sdate),
+    FOREIGN KEY(bid, sdate) REFERENCES Bookings(bid, sdate) ON DELETE CASCADE,
+    UNIQUE(bid, sdate)  -- No two payments can have the same booking
+) PARTITION BY RANGE (sdate);
+
+CREATE TABLE ShowSeats (
+    ssid BIGINT NOT NULL,  -- Show seat ID
+    sid BIGINT NOT NULL,  -- Show ID
+    csid BIGINT NOT NULL, -- Cinema seat ID
+    bid BIGINT, -- Booking ID
+    price REAL NOT NULL,
+    sdate DATE NOT NULL,  -- Show date
+    PRIMARY KEY(ssid, sdate),
+    FOREIGN KEY(sid, sdate) REFERENCES Shows(sid, sdate),
+    FOREIGN KEY(csid) REFERENCES CinemaSeats(csid),
+    FOREIGN KEY(bid, sdate) REFERENCES Bookings(bid, sdate),
+    UNIQUE(sid, csid, sdate)  -- The same seat can only be booked once for the same show
+) PARTITION BY RANGE (sdate);
+
+CREATE TABLE ShowSchedule (
+    sid BIGINT NOT NULL,  -- Show ID
+    tid BIGINT NOT NULL,  -- Theater ID
+    mvid BIGINT NOT NULL,  -- Movie ID
+    title VARCHAR(128) NOT NULL,
+    duration INTEGER,
+    sdate DATE NOT NULL,
+    sttime TIME NOT NULL,
+    edtime TIME NOT NULL,
+    tname VARCHAR(64) NOT NULL,
+    cid BIGINT NOT NULL,  -- Cinema ID
+    PRIMARY KEY(sid, tid, sdate)
+) PARTITION BY RANGE (sdate);
+
+-- every month of the loaded shows, through three months from now
+SELECT create_show_partitions(lo, ((date_part('year', hi) - date_part('year', lo)) * 12
+        + date_part('month', hi) - date_part('month', lo))::integer + 4)
+FROM (SELECT COALESCE(min(sdate), current_date) AS lo,
+        GREATEST(max(sdate), current_date) AS hi FROM shows_old) r;
+
+INSERT INTO Shows SELECT * FROM shows_old;
+INSERT INTO Bookings SELECT * FROM bookings_old;
+INSERT INTO Payments SELECT * FROM payments_old;
+INSERT INTO ShowSeats SELECT * FROM showseats_old;
+INSERT INTO ShowSchedule SELECT * FROM showschedule_old;
+
+
+-- The indexes of create.sql, created on every partition
+
+CREATE INDEX bookings_pending_email_idx ON Bookings (email) WHERE status = 'Pending';
+CREATE INDEX bookings_pending_bdatetime_idx ON Bookings (bdatetime) WHERE status = 'Pending';
+CREATE INDEX bookings_cancelled_idx ON Bookings (bid) WHERE status = 'Cancelled';
+CREATE INDEX bookings_email_bid_idx ON Bookings (email, bid);
+CREATE INDEX bookings_sid_idx ON Bookings (sid);
+
+CREATE INDEX shows_sdate_sttime_idx ON Shows (sdate, sttime);
+CREATE INDEX shows_mvid_idx ON Shows (mvid);
+
+CREATE INDEX showseats_bid_idx ON ShowSeats (bid) WHERE bid IS NOT NULL;
+
+CREATE INDEX showschedule_title_sdate_idx ON ShowSchedule (title, sdate);
+CREATE INDEX showschedule_sdate_sttime_idx ON ShowSchedule (sdate, sttime);
+CREATE INDEX showschedule_cid_sdate_idx ON ShowSchedule (cid, sdate);
+
+CREATE TRIGGER showschedule_shows AFTER UPDATE OF mvid, sdate, sttime, edtime ON Shows
+FOR EACH ROW EXECUTE PROCEDURE showschedule_shows();
+
+-- The rollup triggers of create.sql. Detaching a month fires none of them,
+-- so its shows stay in the rollups after they are archived.
+CREATE TRIGGER rollup_showseats_insert AFTER INSERT ON ShowSeats
+REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_showseats();
+CREATE TRIGGER rollup_showseats_update AFTER UPDATE ON ShowSeats
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_showseats();
+CREATE TRIGGER rollup_showseats_delete AFTER DELETE ON ShowSeats
+REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_showseats();
+CREATE TRIGGER rollup_payments_insert AFTER INSERT ON Payments
+REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_payments();
+CREATE TRIGGER rollup_payments_update AFTER UPDATE ON Payments
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_payments();
+CREATE TRIGGER rollup_payments_delete AFTER DELETE ON Payments
+REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_payments();
+CREATE TRIGGER rollup_bookings_update AFTER UPDATE ON Bookings
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE rollup_bookings();
+
+ALTER SEQUENCE shows_sid_seq OWNED BY Shows.sid;
+ALTER SEQUENCE bookings_bid_seq OWNED BY Bookings.bid;
+ALTER SEQUENCE payments_pid_seq OWNED BY Payments.pid;
+ALTER SEQUENCE showseats_ssid_seq OWNED BY ShowSeats.ssid;
+
+COMMIT;
+
+ANALYZE;
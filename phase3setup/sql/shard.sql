@@ -0,0 +1,67 @@
+-- Turns a database created and loaded by create.sql (and optionally
+-- partition.sql) into one shard of a city-sharded deployment:
+--
+--     psql -h localhost -v shard=0 -v cities='{1,2,3}' <dbname> < shard.sql
+--
+-- (or SHARD=0 CITIES='{1,2,3}' ../postgresql/createdb.sh). Every shard
+-- starts as a full copy of the data; this script deletes the cities not in
+-- :cities with everything under them: cinemas, theaters, cinema seats,
+-- and the shows playing there with their bookings, payments and show
+-- seats. A show belongs to the shard of its lowest-numbered theater, as in
+-- the rollups, and a show no theater plays stays on shard 0. Users and
+-- Movies are reference data and stay whole on every shard.
+--
+-- Shards are numbered from 0, in the order ShardRouter.java lists them.
+-- Shard n hands out new ids from [(n + 1) << 40, (n + 2) << 40), so the
+-- router finds the shard of a new show or booking from its id alone.
+
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS ShardInfo (
+    shard INTEGER NOT NULL,
+    id_base BIGINT NOT NULL,  -- first id this shard's sequences hand out
+    id_limit BIGINT NOT NULL  -- first id past them
+);
+DELETE FROM ShardInfo;
+INSERT INTO ShardInfo VALUES (:shard, (:shard + 1)::bigint << 40, (:shard + 2)::bigint << 40);
+
+CREATE TEMP TABLE gone_theaters ON COMMIT DROP AS
+SELECT t.tid FROM Theaters t JOIN Cinemas c ON c.cid = t.cid
+WHERE c.city_id <> ALL (:'cities'::bigint[]);
+
+CREATE TEMP TABLE gone_shows ON COMMIT DROP AS
+SELECT s.sid FROM Shows s
+WHERE COALESCE((SELECT min(p.tid) FROM Plays p WHERE p.sid = s.sid) IN (SELECT tid FROM gone_theaters), :shard <> 0);
+CREATE UNIQUE INDEX ON gone_shows (sid);
+ANALYZE gone_theaters;
+ANALYZE gone_shows;
+
+-- children first: nothing below cascades except Payments and the schedule triggers
+DELETE FROM Payments WHERE bid IN (SELECT bid FROM Bookings WHERE sid IN (SELECT sid FROM gone_shows));
+DELETE FROM ShowSeats WHERE sid IN (SELECT sid FROM gone_shows)
+OR csid IN (SELECT csid FROM CinemaSeats WHERE tid IN (SELECT tid FROM gone_theaters));
+DELETE FROM Bookings WHERE sid IN (SELECT sid FROM gone_shows);
+DELETE FROM Plays WHERE sid IN (SELECT sid FROM gone_shows) OR tid IN (SELECT tid FROM gone_theaters);
+DELETE FROM Shows WHERE sid IN (SELECT sid FROM gone_shows);
+DELETE FROM CinemaSeats WHERE tid IN (SELECT tid FROM gone_theaters);
+DELETE FROM Theaters WHERE tid IN (SELECT tid FROM gone_theaters);
+DELETE FROM Cinemas WHERE city_id <> ALL (:'cities'::bigint[]);
+DELETE FROM Cities WHERE city_id <> ALL (:'cities'::bigint[]);
+
+-- the deletes above only queued rollup deltas for the shows that left
+DELETE FROM RollupDeltas WHERE sid IN (SELECT sid FROM gone_shows);
+DELETE FROM ShowRollup WHERE sid IN (SELECT sid FROM gone_shows);
+DELETE FROM CinemaDayRollup WHERE cid NOT IN (SELECT cid FROM Cinemas);
+
+-- new ids continue from the shard's range, one block in (see create.sql)
+SELECT setval('bookings_bid_seq', COALESCE((SELECT MAX(bid) FROM Bookings WHERE bid >= id_base AND bid < id_limit), id_base) + 50, false) FROM ShardInfo;
+SELECT setval('movies_mvid_seq', COALESCE((SELECT MAX(mvid) FROM Movies WHERE mvid >= id_base AND mvid < id_limit), id_base) + 50, false) FROM ShardInfo;
+SELECT setval('shows_sid_seq', COALESCE((SELECT MAX(sid) FROM Shows WHERE sid >= id_base AND sid < id_limit), id_base) + 50, false) FROM ShardInfo;
+SELECT setval('payments_pid_seq', COALESCE((SELECT MAX(pid) FROM Payments WHERE pid >= id_base AND pid < id_limit), id_base) + 50, false) FROM ShardInfo;
+SELECT setval('showseats_ssid_seq', COALESCE((SELECT MAX(ssid) FROM ShowSeats WHERE ssid >= id_base AND ssid < id_limit), id_base) + 50, false) FROM ShardInfo;
+
+COMMIT;
+
+VACUUM ANALYZE;